@@ -44,6 +44,11 @@ public class BasicBlock extends Value implements Parented<Method> {
 	@ParentedList.Parent
 	private Method parent;
 	private final IntrusiveList<Instruction> instructions = new ParentedList<>(this, Instruction.class);
+	/**
+	 * This block's execution frequency relative to the other blocks in its
+	 * method, or NaN if unknown.
+	 */
+	private double frequency = Double.NaN;
 	/**
 	 * Creates a new, empty BasicBlock not attached to any parent.  The Module
 	 * is used to get the correct BasicBlockType.
@@ -88,6 +93,26 @@ public class BasicBlock extends Value implements Parented<Method> {
 		return instructions;
 	}
 
+	/**
+	 * Returns this block's execution frequency relative to the other blocks in
+	 * its method (e.g., from a profile), or NaN if it hasn't been set.  The
+	 * frequency is only a hint; MethodUnresolver uses it for block layout.
+	 * @return this block's frequency, or NaN
+	 */
+	public double getFrequency() {
+		return frequency;
+	}
+
+	/**
+	 * Sets this block's execution frequency relative to the other blocks in its
+	 * method, or NaN to clear it.
+	 * @param frequency the block's frequency (nonnegative), or NaN
+	 */
+	public void setFrequency(double frequency) {
+		checkArgument(Double.isNaN(frequency) || frequency >= 0, frequency);
+		this.frequency = frequency;
+	}
+
 	public TerminatorInst getTerminator() {
 		if (instructions.isEmpty())
 			return null;
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Exports a module's classes to a jar for class data sharing, and at runtime
+ * tells whether archived classes are still current.
+ *
+ * At build time, {@link #export(Module, Path, Path)} writes each mutable
+ * Klass to a jar, along with an index of the klasses' structural hashes, and
+ * writes a class list naming them.  Put the jar on the class path and create
+ * a CDS archive, either statically:
+ * <pre>
+ * java -Xshare:dump -XX:SharedClassListFile=classes.lst \
+ *     -XX:SharedArchiveFile=app.jsa -cp app.jar:generated.jar
+ * </pre>
+ * or dynamically, by running the application once with
+ * {@code -XX:ArchiveClassesAtExit=app.jsa}; then run with
+ * {@code -XX:SharedArchiveFile=app.jsa}.  (CDS only archives classes loaded
+ * by the built-in class loaders, which is why the classes go on the class
+ * path.)
+ *
+ * At runtime, {@link #open(ClassLoader)} reads the index, and a
+ * {@link ModuleClassLoader} given the archive loads archived classes through
+ * its parent (and thus from the CDS archive) if their IR hasn't changed, and
+ * defines the others from the module as usual.  Archived classes resolve
+ * their references through the parent, so if some klasses have changed,
+ * archived classes referring to them will see the archived versions; check
+ * {@link #matchesAll(Module)} to avoid mixing.
+ * @author agent <agent@local>
+ * @since 10/18/2026
+ */
+public final class ClassArchive {
+	/**
+	 * The name of the index resource in exported jars.  Each line holds a
+	 * class name and its structural hash, separated by a space.
+	 */
+	public static final String INDEX_NAME = "META-INF/bytecodelib-classes.idx";
+	/**
+	 * Timestamp for jar entries, so exports of the same classes are
+	 * byte-identical.  (1/1/1980, the earliest time zip supports.)
+	 */
+	private static final long ENTRY_TIME = 315532800000L;
+	private final ImmutableMap<String, HashCode> hashes;
+	private ClassArchive(Map<String, HashCode> hashes) {
+		this.hashes = ImmutableMap.copyOf(hashes);
+	}
+
+	/**
+	 * Writes each mutable Klass in the given module to a jar, unresolved with
+	 * the default options plus
+	 * {@link MethodUnresolver.Option#SPLIT_HUGE_METHODS} (as
+	 * ModuleClassLoader loads them), and writes a class list (in the format of
+	 * -XX:SharedClassListFile) naming them.  Splitting adds helper methods to
+	 * the Klasses; the index records their hashes from before splitting.
+	 * @param module the module to export
+	 * @param jar the jar file to write
+	 * @param classList the class list file to write
+	 * @throws IOException if the files can't be written
+	 */
+	public static void export(Module module, Path jar, Path classList) throws IOException {
+		export(module, jar, classList, KlassUnresolver.withSplitting(MethodUnresolver.DEFAULT_OPTIONS));
+	}
+
+	/**
+	 * Writes each mutable Klass in the given module to a jar, unresolved with
+	 * the given options, and writes a class list (in the format of
+	 * -XX:SharedClassListFile) naming them.
+	 * @param module the module to export
+	 * @param jar the jar file to write
+	 * @param classList the class list file to write
+	 * @param options the options to unresolve methods with
+	 * @throws IOException if the files can't be written
+	 */
+	public static void export(Module module, Path jar, Path classList, Set<MethodUnresolver.Option> options) throws IOException {
+		checkNotNull(jar);
+		checkNotNull(classList);
+		checkNotNull(options);
+		List<Klass> klasses = new ArrayList<>();
+		for (Klass k : module.klasses())
+			if (k.isMutable())
+				klasses.add(k);
+		//Sort so the jar and list don't depend on creation order.
+		Collections.sort(klasses, new Comparator<Klass>() {
+			@Override
+			public int compare(Klass a, Klass b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+
+		StringBuilder index = new StringBuilder();
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		try (OutputStream out = Files.newOutputStream(jar);
+				JarOutputStream jos = new JarOutputStream(out)) {
+			JarEntry manifestEntry = new JarEntry("META-INF/MANIFEST.MF");
+			manifestEntry.setTime(ENTRY_TIME);
+			jos.putNextEntry(manifestEntry);
+			manifest.write(jos);
+			jos.closeEntry();
+			for (Klass k : klasses) {
+				//Hash before unresolving, which may split methods.
+				index.append(k.getName()).append(' ').append(StructuralHash.hash(k)).append('\n');
+				JarEntry entry = new JarEntry(internalName(k) + ".class");
+				entry.setTime(ENTRY_TIME);
+				jos.putNextEntry(entry);
+				jos.write(KlassUnresolver.unresolve(k, options));
+				jos.closeEntry();
+			}
+			JarEntry indexEntry = new JarEntry(INDEX_NAME);
+			indexEntry.setTime(ENTRY_TIME);
+			jos.putNextEntry(indexEntry);
+			jos.write(index.toString().getBytes(StandardCharsets.UTF_8));
+			jos.closeEntry();
+		}
+
+		try (Writer w = Files.newBufferedWriter(classList, StandardCharsets.UTF_8)) {
+			for (Klass k : klasses)
+				w.write(internalName(k) + "\n");
+		}
+	}
+
+	/**
+	 * Reads the indexes of all exported jars visible to the given class
+	 * loader.
+	 * @param loader the class loader to search
+	 * @return the archive
+	 * @throws IOException if an index can't be read
+	 */
+	public static ClassArchive open(ClassLoader loader) throws IOException {
+		Map<String, HashCode> hashes = new HashMap<>();
+		for (Enumeration<URL> e = loader.getResources(INDEX_NAME); e.hasMoreElements();)
+			try (InputStream in = e.nextElement().openStream();
+					BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+				for (String line = r.readLine(); line != null; line = r.readLine()) {
+					int space = line.indexOf(' ');
+					if (space == -1)
+						continue;
+					//The first jar on the path wins, as it would for the class.
+					String name = line.substring(0, space);
+					if (!hashes.containsKey(name))
+						hashes.put(name, HashCode.fromString(line.substring(space+1)));
+				}
+			}
+		return new ClassArchive(hashes);
+	}
+
+	/**
+	 * Returns true if the named class was archived.
+	 * @param name a class name
+	 * @return true iff the class was archived
+	 */
+	public boolean contains(String name) {
+		return hashes.containsKey(name);
+	}
+
+	/**
+	 * Returns true if the given klass was archived and its IR hasn't changed
+	 * since.
+	 * @param klass a mutable klass
+	 * @return true iff the archived class is current
+	 */
+	public boolean matches(Klass klass) {
+		HashCode archived = hashes.get(klass.getName());
+		return archived != null && archived.equals(StructuralHash.hash(klass));
+	}
+
+	/**
+	 * Returns true if every mutable Klass in the given module was archived
+	 * and hasn't changed since.
+	 * @param module a module
+	 * @return true iff all the module's classes can be loaded from the archive
+	 */
+	public boolean matchesAll(Module module) {
+		List<Klass> klasses;
+		synchronized (module) {
+			klasses = ImmutableList.copyOf(module.klasses());
+		}
+		for (Klass k : klasses)
+			if (k.isMutable() && !matches(k))
+				return false;
+		return true;
+	}
+
+	private static String internalName(Klass k) {
+		return k.getName().replace('.', '/');
+	}
+}
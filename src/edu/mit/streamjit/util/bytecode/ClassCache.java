@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An on-disk cache of class files emitted from Klasses, keyed by the Klass's
+ * {@link StructuralHash structural hash}, so processes building the same IR
+ * can skip emission (and, by checking the cache before optimizing, the
+ * optimizations that produced it).
+ *
+ * Each entry is a file in the cache directory named by its key.  Entries are
+ * written to a temporary file and renamed into place, so readers (including
+ * other processes sharing the directory) never see a partial entry.  Reading
+ * an entry updates its modification time, and when the cache grows past its
+ * size limit, the least recently used entries are deleted.
+ *
+ * The cache is best-effort: unresolve(Klass) falls back to emitting the class
+ * if the cache can't be read or written.  Since value names don't affect the
+ * structural hash, a cached class may carry another klass's value names in
+ * its local variable table.
+ * @author agent <agent@local>
+ * @since 10/18/2026
+ */
+public final class ClassCache {
+	/**
+	 * Changes when the emitted code for the same IR might change, so caches
+	 * written by older versions aren't used.
+	 */
+	private static final int FORMAT_VERSION = 1;
+	private static final String SUFFIX = ".class", TEMP_SUFFIX = ".part";
+	/**
+	 * Temporary files older than this were abandoned by a crashed writer.
+	 */
+	private static final long STALE_TEMP_MILLIS = TimeUnit.HOURS.toMillis(1);
+	private final Path directory;
+	private final long maxBytes;
+	private final ImmutableSet<MethodUnresolver.Option> options;
+	/**
+	 * The approximate total size of the cache's entries.  Other processes may
+	 * add entries, so we recompute this when evicting.
+	 */
+	private long size;
+
+	/**
+	 * Opens (creating if necessary) a cache in the given directory, holding
+	 * classes emitted with the default options.
+	 * @param directory the cache directory
+	 * @param maxBytes the maximum total size of the cached classes
+	 * @throws IOException if the directory can't be created or read
+	 */
+	public ClassCache(Path directory, long maxBytes) throws IOException {
+		this(directory, maxBytes, MethodUnresolver.DEFAULT_OPTIONS);
+	}
+
+	/**
+	 * Opens (creating if necessary) a cache in the given directory, holding
+	 * classes emitted with the given options.  Caches with different options
+	 * may share a directory.
+	 * @param directory the cache directory
+	 * @param maxBytes the maximum total size of the cached classes
+	 * @param options the options to unresolve methods with
+	 * @throws IOException if the directory can't be created or read
+	 */
+	public ClassCache(Path directory, long maxBytes, Set<MethodUnresolver.Option> options) throws IOException {
+		checkArgument(maxBytes >= 0, maxBytes);
+		this.directory = Files.createDirectories(checkNotNull(directory));
+		this.maxBytes = maxBytes;
+		this.options = Sets.immutableEnumSet(options.isEmpty() ?
+				EnumSet.noneOf(MethodUnresolver.Option.class) : EnumSet.copyOf(options));
+		this.size = scan();
+	}
+
+	/**
+	 * Returns the cache key for the given klass: its structural hash,
+	 * combined with this cache's options.
+	 * @param klass a mutable klass
+	 * @return the klass's cache key
+	 */
+	public HashCode key(Klass klass) {
+		Hasher h = Hashing.sha256().newHasher();
+		h.putInt(FORMAT_VERSION);
+		for (MethodUnresolver.Option o : options)
+			h.putInt(o.ordinal());
+		h.putBytes(StructuralHash.hash(klass).asBytes());
+		return h.hash();
+	}
+
+	/**
+	 * Returns the class bytes for the given klass from the cache, or if not
+	 * cached, unresolves the klass and caches the result.  Failures to read
+	 * or write the cache are ignored.
+	 * @param klass a mutable klass
+	 * @return the class bytes
+	 */
+	public byte[] unresolve(Klass klass) {
+		HashCode key = key(klass);
+		try {
+			byte[] bytes = get(key);
+			if (bytes != null)
+				return bytes;
+		} catch (IOException ex) {
+			//fall through to unresolving
+		}
+		byte[] bytes = KlassUnresolver.unresolve(klass, options);
+		try {
+			put(key, bytes);
+		} catch (IOException ex) {
+			//we still have the bytes
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the cached class bytes for the given key, or null if not
+	 * cached, marking the entry as recently used.
+	 * @param key a cache key
+	 * @return the cached class bytes, or null
+	 * @throws IOException if the entry exists but can't be read
+	 */
+	public byte[] get(HashCode key) throws IOException {
+		Path file = entry(key);
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(file);
+		} catch (NoSuchFileException ex) {
+			return null;
+		}
+		if (bytes.length < 4 || (bytes[0] & 0xFF) != 0xCA || (bytes[1] & 0xFF) != 0xFE ||
+				(bytes[2] & 0xFF) != 0xBA || (bytes[3] & 0xFF) != 0xBE) {
+			Files.deleteIfExists(file);
+			return null;
+		}
+		try {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (NoSuchFileException ex) {
+			//evicted by another process since we read it; we still have it
+		}
+		return bytes;
+	}
+
+	/**
+	 * Caches the given class bytes under the given key, replacing any
+	 * existing entry, then evicts least-recently-used entries if the cache is
+	 * over its size limit.
+	 * @param key a cache key
+	 * @param bytes the class bytes
+	 * @throws IOException if the entry can't be written
+	 */
+	public void put(HashCode key, byte[] bytes) throws IOException {
+		checkNotNull(bytes);
+		Path file = entry(key);
+		Path temp = Files.createTempFile(directory, key.toString(), TEMP_SUFFIX);
+		try {
+			Files.write(temp, bytes);
+			try {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		synchronized (this) {
+			size += bytes.length;
+			if (size > maxBytes)
+				evict();
+		}
+	}
+
+	private Path entry(HashCode key) {
+		return directory.resolve(key.toString() + SUFFIX);
+	}
+
+	/**
+	 * Deletes entries, least recently used first, until the cache is within
+	 * its size limit.
+	 */
+	private synchronized void evict() throws IOException {
+		List<Path> entries = new ArrayList<>();
+		final List<FileTime> times = new ArrayList<>();
+		List<Long> sizes = new ArrayList<>();
+		long total = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*"+SUFFIX)) {
+			for (Path p : stream) {
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(p, BasicFileAttributes.class);
+				} catch (NoSuchFileException ex) {
+					continue;
+				}
+				entries.add(p);
+				times.add(attrs.lastModifiedTime());
+				sizes.add(attrs.size());
+				total += attrs.size();
+			}
+		}
+		List<Integer> order = new ArrayList<>(entries.size());
+		for (int i = 0; i < entries.size(); ++i)
+			order.add(i);
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return times.get(a).compareTo(times.get(b));
+			}
+		});
+		for (int i : order) {
+			if (total <= maxBytes)
+				break;
+			Files.deleteIfExists(entries.get(i));
+			total -= sizes.get(i);
+		}
+		size = total;
+	}
+
+	/**
+	 * Returns the total size of the cache's entries, deleting stale temporary
+	 * files.
+	 */
+	private long scan() throws IOException {
+		long total = 0;
+		long staleBefore = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path p : stream) {
+				String name = p.getFileName().toString();
+				try {
+					BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+					if (name.endsWith(SUFFIX))
+						total += attrs.size();
+					else if (name.endsWith(TEMP_SUFFIX) &&
+							attrs.lastModifiedTime().toMillis() < staleBefore)
+						Files.deleteIfExists(p);
+				} catch (NoSuchFileException ex) {
+					//removed concurrently
+				}
+			}
+		}
+		return total;
+	}
+}
@@ -36,6 +36,7 @@ public final class Cloning {
 
 	public static BasicBlock cloneBasicBlock(BasicBlock source, Map<Value, Value> vmap) {
 		BasicBlock dest = new BasicBlock(source.getType().getModule(), source.getName()+"_clone");
+		dest.setFrequency(source.getFrequency());
 
 		//Loop over all instructions, copying them over without remapping,
 		//recording the mapping in the value map.
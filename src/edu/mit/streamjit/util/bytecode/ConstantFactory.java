@@ -115,18 +115,20 @@ public class ConstantFactory implements Iterable<Constant<?>> {
 	}
 
 	private Constant<?> getConstant(Object obj) {
-		Constant<?> cst = constantsMap.get(obj);
-		if (cst == null) {
-			Type type;
-			if (obj != null) {
-				type = parent.types().getReferenceType(parent.getKlass(obj.getClass()));
-				if (type instanceof WrapperType)
-					type = ((WrapperType)type).unwrap();
-			} else
-				type = parent.types().getNullType();
-			cst = new Constant<>(type, obj, parent);
-			constantsMap.put(obj, cst);
+		synchronized (parent) {
+			Constant<?> cst = constantsMap.get(obj);
+			if (cst == null) {
+				Type type;
+				if (obj != null) {
+					type = parent.types().getReferenceType(parent.getKlass(obj.getClass()));
+					if (type instanceof WrapperType)
+						type = ((WrapperType)type).unwrap();
+				} else
+					type = parent.types().getNullType();
+				cst = new Constant<>(type, obj, parent);
+				constantsMap.put(obj, cst);
+			}
+			return cst;
 		}
-		return cst;
 	}
 }
\ No newline at end of file
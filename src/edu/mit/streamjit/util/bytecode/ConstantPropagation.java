@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import edu.mit.streamjit.util.bytecode.insts.ArrayLengthInst;
+import edu.mit.streamjit.util.bytecode.insts.BinaryInst;
+import edu.mit.streamjit.util.bytecode.insts.BranchInst;
+import edu.mit.streamjit.util.bytecode.insts.CastInst;
+import edu.mit.streamjit.util.bytecode.insts.Instruction;
+import edu.mit.streamjit.util.bytecode.insts.JumpInst;
+import edu.mit.streamjit.util.bytecode.insts.NewArrayInst;
+import edu.mit.streamjit.util.bytecode.insts.PhiInst;
+import edu.mit.streamjit.util.bytecode.insts.SwitchInst;
+import edu.mit.streamjit.util.bytecode.insts.TerminatorInst;
+import edu.mit.streamjit.util.bytecode.types.PrimitiveType;
+import edu.mit.streamjit.util.bytecode.types.Type;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Sparse conditional constant propagation (Wegman and Zadeck, "Constant
+ * Propagation with Conditional Branches", TOPLAS 1991).
+ *
+ * Each instruction's value starts out undefined and is lowered to a constant
+ * or to overdefined as the control-flow edges reaching it are discovered to be
+ * executable, so constants flow around loops and through phis whose other
+ * incoming edges are never taken.  Afterwards, instructions with constant
+ * values are replaced by Constants, branches and switches on constants become
+ * jumps, and unreachable blocks and the phi entries for non-executable edges
+ * are removed.
+ *
+ * BinaryInst, CastInst (between primitive types, or of null), PhiInst and
+ * ArrayLengthInst of a NewArrayInst are folded.  Integral division or
+ * remainder by zero is never folded, so the exception is preserved.  Other
+ * instructions are assumed to produce arbitrary values.
+ * @author agent <agent@local>
+ * @since 10/19/2026
+ */
+public final class ConstantPropagation {
+	/**
+	 * The lattice value for values that may take more than one value.
+	 * (Undefined values have no lattice entry.)
+	 */
+	private static final Object OVERDEFINED = new Object() {
+		@Override
+		public String toString() {
+			return "overdefined";
+		}
+	};
+	/**
+	 * The lattice value for the null constant.
+	 */
+	private static final Object NULL = new Object() {
+		@Override
+		public String toString() {
+			return "null";
+		}
+	};
+
+	private final Method method;
+	/**
+	 * Lattice values of instructions; constants are normalized by
+	 * normalize().
+	 */
+	private final Map<Instruction, Object> lattice = new IdentityHashMap<>();
+	/**
+	 * Maps each executable block to the predecessors whose edges to it are
+	 * executable.  (The entry block maps to an empty set.)
+	 */
+	private final Map<BasicBlock, Set<BasicBlock>> executableEdges = new IdentityHashMap<>();
+	private final Deque<BasicBlock[]> edgeWorklist = new ArrayDeque<>();
+	private final Deque<Instruction> instWorklist = new ArrayDeque<>();
+	private ConstantPropagation(Method method) {
+		this.method = method;
+	}
+
+	/**
+	 * Propagates constants through the given method, folding instructions with
+	 * constant values and removing code that can't be reached.
+	 * @param method the method to optimize
+	 * @return true iff changes were made
+	 */
+	public static boolean propagateConstants(Method method) {
+		checkArgument(method.isMutable(), "%s not mutable", method);
+		if (method.basicBlocks().isEmpty())
+			return false;
+		ConstantPropagation cp = new ConstantPropagation(method);
+		cp.solve();
+		return cp.rewrite();
+	}
+
+	private void solve() {
+		BasicBlock entry = method.basicBlocks().get(0);
+		executableEdges.put(entry, newIdentitySet());
+		for (Instruction i : entry.instructions())
+			visit(i);
+
+		while (!edgeWorklist.isEmpty() || !instWorklist.isEmpty()) {
+			while (!edgeWorklist.isEmpty()) {
+				BasicBlock[] edge = edgeWorklist.removeFirst();
+				BasicBlock from = edge[0], to = edge[1];
+				Set<BasicBlock> preds = executableEdges.get(to);
+				boolean firstVisit = preds == null;
+				if (firstVisit)
+					executableEdges.put(to, preds = newIdentitySet());
+				if (!preds.add(from))
+					continue;
+				//The first time we reach a block we evaluate everything in it;
+				//after that, only the phis can change due to a new edge.
+				for (Instruction i : to.instructions())
+					if (firstVisit || i instanceof PhiInst)
+						visit(i);
+			}
+			while (!instWorklist.isEmpty()) {
+				Instruction i = instWorklist.removeFirst();
+				if (i.getParent() != null && executableEdges.containsKey(i.getParent()))
+					visit(i);
+			}
+		}
+	}
+
+	private void visit(Instruction i) {
+		if (i instanceof TerminatorInst) {
+			visitTerminator((TerminatorInst)i);
+			return;
+		}
+		Object oldValue = lattice.get(i);
+		if (oldValue == OVERDEFINED)
+			return;
+		Object newValue = meet(oldValue, evaluate(i));
+		if (Objects.equals(oldValue, newValue))
+			return;
+		lattice.put(i, newValue);
+		for (User u : i.users().elementSet())
+			if (u instanceof Instruction)
+				instWorklist.addLast((Instruction)u);
+	}
+
+	private void visitTerminator(TerminatorInst terminator) {
+		BasicBlock block = terminator.getParent();
+		if (terminator instanceof BranchInst) {
+			BranchInst branch = (BranchInst)terminator;
+			Object a = valueOf(branch.getOperand(0)), b = valueOf(branch.getOperand(1));
+			if (a == null || b == null)
+				return;
+			Boolean taken = compare(branch.getSense(), a, b);
+			if (taken == null) {
+				markEdge(block, (BasicBlock)branch.getOperand(2));
+				markEdge(block, (BasicBlock)branch.getOperand(3));
+			} else
+				markEdge(block, (BasicBlock)branch.getOperand(taken ? 2 : 3));
+		} else if (terminator instanceof SwitchInst) {
+			SwitchInst switchInst = (SwitchInst)terminator;
+			Object v = valueOf(switchInst.getValue());
+			if (v == null)
+				return;
+			if (v instanceof Integer) {
+				BasicBlock target = switchInst.getDefault();
+				for (Constant<Integer> c : switchInst.cases())
+					if (c.getConstant().equals(v))
+						target = switchInst.get(c);
+				markEdge(block, target);
+			} else
+				for (BasicBlock s : switchInst.successors())
+					markEdge(block, s);
+		} else
+			for (BasicBlock s : terminator.successors())
+				markEdge(block, s);
+	}
+
+	private void markEdge(BasicBlock from, BasicBlock to) {
+		Set<BasicBlock> preds = executableEdges.get(to);
+		if (preds == null || !preds.contains(from))
+			edgeWorklist.addLast(new BasicBlock[]{from, to});
+	}
+
+	/**
+	 * Returns the lattice value of the given value: a normalized constant,
+	 * OVERDEFINED, or null if the value is (as yet) undefined.
+	 */
+	private Object valueOf(Value v) {
+		if (v instanceof Constant)
+			return normalize((Constant<?>)v);
+		if (v instanceof Instruction)
+			return lattice.get((Instruction)v);
+		//Arguments, uninitialized values, etc.
+		return OVERDEFINED;
+	}
+
+	private static Object meet(Object a, Object b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		return a.equals(b) ? a : OVERDEFINED;
+	}
+
+	private Object evaluate(Instruction i) {
+		if (i instanceof PhiInst) {
+			PhiInst phi = (PhiInst)i;
+			Set<BasicBlock> preds = executableEdges.get(phi.getParent());
+			Object result = null;
+			Iterator<BasicBlock> blocks = phi.predecessors().iterator();
+			Iterator<Value> values = phi.incomingValues().iterator();
+			while (blocks.hasNext()) {
+				BasicBlock b = blocks.next();
+				Value v = values.next();
+				if (preds.contains(b))
+					result = meet(result, valueOf(v));
+			}
+			return result;
+		} else if (i instanceof BinaryInst) {
+			BinaryInst bi = (BinaryInst)i;
+			Object a = valueOf(bi.getOperand(0)), b = valueOf(bi.getOperand(1));
+			if (a == OVERDEFINED || b == OVERDEFINED)
+				return OVERDEFINED;
+			if (a == null || b == null)
+				return null;
+			return fold(bi.getOperation(), a, b);
+		} else if (i instanceof CastInst) {
+			Object v = valueOf(i.getOperand(0));
+			if (v == null || v == OVERDEFINED)
+				return v;
+			if (v == NULL)
+				return i.getType() instanceof PrimitiveType ? OVERDEFINED : NULL;
+			if (i.getType() instanceof PrimitiveType && v instanceof Number)
+				return convert((Number)v, (PrimitiveType)i.getType());
+			return OVERDEFINED;
+		} else if (i instanceof ArrayLengthInst) {
+			Value array = i.getOperand(0);
+			if (!(array instanceof NewArrayInst))
+				return OVERDEFINED;
+			Object length = valueOf(((NewArrayInst)array).getOperand(0));
+			//A negative length throws, so the arraylength is never reached.
+			if (length instanceof Integer && (Integer)length >= 0)
+				return length;
+			return length == null ? null : OVERDEFINED;
+		}
+		return OVERDEFINED;
+	}
+
+	/**
+	 * Normalizes a constant to its lattice value.  Constants of types that
+	 * the JVM computes with as int are represented as Integer.
+	 */
+	private static Object normalize(Constant<?> c) {
+		Object v = c.getConstant();
+		if (v == null)
+			return NULL;
+		if (v instanceof Boolean)
+			return (Boolean)v ? 1 : 0;
+		if (v instanceof Character)
+			return (int)(Character)v;
+		if (v instanceof Byte || v instanceof Short)
+			return ((Number)v).intValue();
+		return v;
+	}
+
+	private static Object fold(BinaryInst.Operation op, Object a, Object b) {
+		if (a instanceof Integer && b instanceof Integer) {
+			int x = (Integer)a, y = (Integer)b;
+			switch (op) {
+				case ADD: return x + y;
+				case SUB: return x - y;
+				case MUL: return x * y;
+				case DIV: return y == 0 ? OVERDEFINED : x / y;
+				case REM: return y == 0 ? OVERDEFINED : x % y;
+				case SHL: return x << y;
+				case SHR: return x >> y;
+				case USHR: return x >>> y;
+				case AND: return x & y;
+				case OR: return x | y;
+				case XOR: return x ^ y;
+				default: return OVERDEFINED;
+			}
+		} else if (a instanceof Long && (b instanceof Long || b instanceof Integer)) {
+			long x = (Long)a, y = ((Number)b).longValue();
+			boolean shift = op == BinaryInst.Operation.SHL || op == BinaryInst.Operation.SHR || op == BinaryInst.Operation.USHR;
+			//Long shifts take an int shift distance; everything else is long.
+			if (shift != (b instanceof Integer))
+				return OVERDEFINED;
+			switch (op) {
+				case ADD: return x + y;
+				case SUB: return x - y;
+				case MUL: return x * y;
+				case DIV: return y == 0 ? OVERDEFINED : x / y;
+				case REM: return y == 0 ? OVERDEFINED : x % y;
+				case SHL: return x << y;
+				case SHR: return x >> y;
+				case USHR: return x >>> y;
+				case AND: return x & y;
+				case OR: return x | y;
+				case XOR: return x ^ y;
+				case CMP: return Long.compare(x, y);
+				default: return OVERDEFINED;
+			}
+		} else if (a instanceof Float && b instanceof Float) {
+			float x = (Float)a, y = (Float)b;
+			switch (op) {
+				case ADD: return x + y;
+				case SUB: return x - y;
+				case MUL: return x * y;
+				case DIV: return x / y;
+				case REM: return x % y;
+				case CMP: return x > y ? 1 : x == y ? 0 : -1;
+				case CMPG: return x < y ? -1 : x == y ? 0 : 1;
+				default: return OVERDEFINED;
+			}
+		} else if (a instanceof Double && b instanceof Double) {
+			double x = (Double)a, y = (Double)b;
+			switch (op) {
+				case ADD: return x + y;
+				case SUB: return x - y;
+				case MUL: return x * y;
+				case DIV: return x / y;
+				case REM: return x % y;
+				case CMP: return x > y ? 1 : x == y ? 0 : -1;
+				case CMPG: return x < y ? -1 : x == y ? 0 : 1;
+				default: return OVERDEFINED;
+			}
+		}
+		return OVERDEFINED;
+	}
+
+	/**
+	 * Converts the given number as the JVM's primitive conversion
+	 * instructions would.
+	 */
+	private static Object convert(Number n, PrimitiveType type) {
+		Class<?> c = type.getKlass().getBackingClass();
+		if (c == int.class)
+			return n.intValue();
+		if (c == long.class)
+			return n.longValue();
+		if (c == float.class)
+			return n.floatValue();
+		if (c == double.class)
+			return n.doubleValue();
+		//Narrowing conversions to subword types go through int.
+		int x = n.intValue();
+		if (c == byte.class)
+			return (int)(byte)x;
+		if (c == char.class)
+			return (int)(char)x;
+		if (c == short.class)
+			return (int)(short)x;
+		if (c == boolean.class && (x == 0 || x == 1) && n instanceof Integer)
+			return x;
+		return OVERDEFINED;
+	}
+
+	/**
+	 * Evaluates a branch on the given lattice values, returning null if the
+	 * outcome isn't known.
+	 */
+	private static Boolean compare(BranchInst.Sense sense, Object a, Object b) {
+		if (a == OVERDEFINED || b == OVERDEFINED)
+			return null;
+		if (a instanceof Integer && b instanceof Integer) {
+			int x = (Integer)a, y = (Integer)b;
+			switch (sense) {
+				case EQ: return x == y;
+				case NE: return x != y;
+				case LT: return x < y;
+				case GT: return x > y;
+				case LE: return x <= y;
+				case GE: return x >= y;
+				default: throw new AssertionError(sense);
+			}
+		}
+		//Reference constants are interned, so equality is identity.
+		boolean isNumber = a instanceof Number || b instanceof Number;
+		if (!isNumber && (sense == BranchInst.Sense.EQ || sense == BranchInst.Sense.NE))
+			return a.equals(b) == (sense == BranchInst.Sense.EQ);
+		return null;
+	}
+
+	/**
+	 * Returns a Constant of the given type with the given lattice value, or
+	 * null if there is no such constant.
+	 */
+	private Constant<?> materialize(Object v, Type type) {
+		ConstantFactory constants = method.getParent().getParent().constants();
+		if (v == NULL)
+			return type instanceof PrimitiveType ? null : constants.getNullConstant();
+		if (v instanceof String)
+			return constants.getConstant((String)v);
+		if (v instanceof Class)
+			return constants.getConstant((Class<?>)v);
+		if (!(type instanceof PrimitiveType))
+			return null;
+		Class<?> c = ((PrimitiveType)type).getKlass().getBackingClass();
+		if (v instanceof Integer) {
+			int x = (Integer)v;
+			if (c == int.class)
+				return constants.getConstant(x);
+			if (c == boolean.class)
+				return constants.getConstant(x != 0);
+			if (c == byte.class)
+				return constants.getConstant((byte)x);
+			if (c == char.class)
+				return constants.getConstant((char)x);
+			if (c == short.class)
+				return constants.getConstant((short)x);
+		} else if (v instanceof Long && c == long.class)
+			return constants.getConstant((long)(Long)v);
+		else if (v instanceof Float && c == float.class)
+			return constants.getConstant((float)(Float)v);
+		else if (v instanceof Double && c == double.class)
+			return constants.getConstant((double)(Double)v);
+		return null;
+	}
+
+	private boolean rewrite() {
+		boolean changed = false;
+		//Replace constant-valued instructions.
+		for (BasicBlock block : method.basicBlocks()) {
+			if (!executableEdges.containsKey(block))
+				continue;
+			for (Instruction i : ImmutableList.copyOf(block.instructions())) {
+				Object v = lattice.get(i);
+				if (v == null || v == OVERDEFINED)
+					continue;
+				Constant<?> c = materialize(v, i.getType());
+				if (c == null)
+					continue;
+				i.replaceInstWithValue(c);
+				changed = true;
+			}
+		}
+
+		//Turn branches and switches with only one executable successor into
+		//jumps.
+		for (Map.Entry<BasicBlock, Set<BasicBlock>> entry : executableEdges.entrySet()) {
+			TerminatorInst terminator = entry.getKey().getTerminator();
+			if (!(terminator instanceof BranchInst || terminator instanceof SwitchInst))
+				continue;
+			BasicBlock target = null;
+			int targets = 0;
+			for (BasicBlock s : terminator.successors())
+				if (executableEdges.containsKey(s) && executableEdges.get(s).contains(entry.getKey()) && s != target) {
+					target = s;
+					++targets;
+				}
+			if (targets != 1)
+				continue;
+			terminator.replaceInstWithInst(new JumpInst(target));
+			changed = true;
+		}
+
+		//Remove phi entries for non-executable edges.  If that leaves one
+		//entry, the block now has only one predecessor.
+		for (Map.Entry<BasicBlock, Set<BasicBlock>> entry : executableEdges.entrySet())
+			for (Instruction i : ImmutableList.copyOf(entry.getKey().instructions())) {
+				if (!(i instanceof PhiInst))
+					continue;
+				PhiInst phi = (PhiInst)i;
+				for (BasicBlock b : phi.predecessors().toList())
+					if (!entry.getValue().contains(b)) {
+						phi.remove(b);
+						changed = true;
+					}
+				if (phi.getNumOperands() == 2) {
+					phi.replaceInstWithValue(phi.getOperand(1));
+					changed = true;
+				}
+			}
+
+		//Remove unreachable blocks.
+		for (BasicBlock block : ImmutableList.copyOf(method.basicBlocks()))
+			if (!executableEdges.containsKey(block)) {
+				block.eraseFromParent();
+				changed = true;
+			}
+		return changed;
+	}
+
+	private static <T> Set<T> newIdentitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+	}
+}
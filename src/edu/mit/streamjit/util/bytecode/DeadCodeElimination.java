@@ -21,24 +21,45 @@
  */
 package edu.mit.streamjit.util.bytecode;
 
+import static com.google.common.base.Preconditions.*;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.primitives.Primitives;
 import com.google.common.reflect.Invokable;
+import edu.mit.streamjit.util.bytecode.insts.ArrayLengthInst;
+import edu.mit.streamjit.util.bytecode.insts.ArrayLoadInst;
+import edu.mit.streamjit.util.bytecode.insts.ArrayStoreInst;
 import edu.mit.streamjit.util.bytecode.insts.BinaryInst;
+import edu.mit.streamjit.util.bytecode.insts.BranchInst;
 import edu.mit.streamjit.util.bytecode.insts.CallInst;
 import edu.mit.streamjit.util.bytecode.insts.CastInst;
+import edu.mit.streamjit.util.bytecode.insts.InstanceofInst;
 import edu.mit.streamjit.util.bytecode.insts.Instruction;
+import edu.mit.streamjit.util.bytecode.insts.JumpInst;
 import edu.mit.streamjit.util.bytecode.insts.LoadInst;
+import edu.mit.streamjit.util.bytecode.insts.NewArrayInst;
 import edu.mit.streamjit.util.bytecode.insts.PhiInst;
+import edu.mit.streamjit.util.bytecode.insts.ReturnInst;
 import edu.mit.streamjit.util.bytecode.insts.StoreInst;
+import edu.mit.streamjit.util.bytecode.types.ArrayType;
 import edu.mit.streamjit.util.bytecode.types.PrimitiveType;
+import edu.mit.streamjit.util.bytecode.types.RegularType;
+import edu.mit.streamjit.util.bytecode.types.TypeFactory;
+import java.io.PrintWriter;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 
@@ -51,11 +72,15 @@ public final class DeadCodeElimination {
 	private DeadCodeElimination() {}
 
 	public static boolean eliminateDeadCode(Method method) {
-		boolean changed = false, makingProgress;
+		boolean changed = removeUnreachableBlocks(method);
+		changed |= aggressivelyEliminateDeadCode(method);
+		boolean makingProgress;
 		do {
 			makingProgress = false;
 			for (BasicBlock block : method.basicBlocks())
 				changed |= makingProgress |= eliminateDeadCode(block);
+			//The per-block pass only finds stores overwritten in the block.
+			changed |= makingProgress |= removeDeadStores(method);
 		} while (makingProgress);
 		return changed;
 	}
@@ -74,6 +99,119 @@ public final class DeadCodeElimination {
 		return changed;
 	}
 
+	/**
+	 * Removes blocks unreachable from the entry block, along with their
+	 * entries in the phis of reachable blocks.
+	 * @param method the method to remove unreachable blocks from
+	 * @return true iff changes were made
+	 */
+	public static boolean removeUnreachableBlocks(Method method) {
+		if (method.basicBlocks().isEmpty())
+			return false;
+		Set<BasicBlock> reachable = Collections.newSetFromMap(new IdentityHashMap<BasicBlock, Boolean>());
+		Deque<BasicBlock> worklist = new ArrayDeque<>();
+		reachable.add(method.basicBlocks().get(0));
+		worklist.add(method.basicBlocks().get(0));
+		while (!worklist.isEmpty())
+			for (BasicBlock s : worklist.pop().successors())
+				if (reachable.add(s))
+					worklist.add(s);
+		if (reachable.size() == method.basicBlocks().size())
+			return false;
+
+		for (BasicBlock block : reachable)
+			for (Instruction i : ImmutableList.copyOf(block.instructions())) {
+				if (!(i instanceof PhiInst))
+					continue;
+				PhiInst phi = (PhiInst)i;
+				for (BasicBlock b : phi.predecessors().toList())
+					if (!reachable.contains(b))
+						phi.remove(b);
+				if (phi.getNumOperands() == 2)
+					phi.replaceInstWithValue(phi.getOperand(1));
+			}
+		for (BasicBlock block : ImmutableList.copyOf(method.basicBlocks()))
+			if (!reachable.contains(block))
+				block.eraseFromParent();
+		return true;
+	}
+
+	/**
+	 * Removes instructions that don't contribute to the method's effects by
+	 * mark-and-sweep: instructions that may have side effects or throw
+	 * (stores, most calls, terminators, divisions by possibly-zero values,
+	 * and so on) are live, as are the operands of live instructions, and
+	 * everything else is removed.  Unlike the per-block heuristics, this
+	 * removes cycles of phis and arithmetic that only feed each other.
+	 * @param method the method to remove dead code from
+	 * @return true iff changes were made
+	 */
+	public static boolean aggressivelyEliminateDeadCode(Method method) {
+		Set<Instruction> live = Collections.newSetFromMap(new IdentityHashMap<Instruction, Boolean>());
+		Deque<Instruction> worklist = new ArrayDeque<>();
+		for (BasicBlock block : method.basicBlocks())
+			for (Instruction i : block.instructions())
+				if (mayHaveEffects(i) && live.add(i))
+					worklist.add(i);
+		while (!worklist.isEmpty())
+			for (Value v : worklist.pop().operands())
+				if (v instanceof Instruction && live.add((Instruction)v))
+					worklist.add((Instruction)v);
+
+		List<Instruction> dead = new ArrayList<>();
+		for (BasicBlock block : method.basicBlocks())
+			for (Instruction i : block.instructions())
+				if (!live.contains(i))
+					dead.add(i);
+		//Dead instructions may use each other, so erasing them in any order
+		//is fine; they all drop their operands.
+		for (Instruction i : dead)
+			i.eraseFromParent();
+		return !dead.isEmpty();
+	}
+
+	/**
+	 * Returns true if the given instruction may have side effects or throw,
+	 * and so must be kept even if its result is unused.
+	 */
+	private static boolean mayHaveEffects(Instruction i) {
+		if (i instanceof PhiInst || i instanceof InstanceofInst)
+			return false;
+		if (i instanceof BinaryInst) {
+			BinaryInst bi = (BinaryInst)i;
+			//Division and remainder can throw ArithmeticException.
+			return (bi.getOperation().equals(BinaryInst.Operation.DIV) ||
+					bi.getOperation().equals(BinaryInst.Operation.REM)) &&
+					bi.getType().isIntegral() &&
+					!knownNotZero(bi.getOperand(1));
+		}
+		if (i instanceof CastInst)
+			//checkcast may throw; primitive conversions don't.
+			return !(i.getType() instanceof PrimitiveType) && !i.getOperand(0).getType().isSubtypeOf(i.getType());
+		if (i instanceof LoadInst) {
+			LoadInst li = (LoadInst)i;
+			if (li.getLocation() instanceof LocalVariable)
+				return false;
+			Field f = (Field)li.getLocation();
+			return f.modifiers().contains(Modifier.VOLATILE) ||
+					(f.isStatic() ? !isInitialized(f.getParent(), li) : !knownNotNull(li.getInstance(), li));
+		}
+		if (i instanceof ArrayLoadInst)
+			return !inBoundsOfNewArray(((ArrayLoadInst)i).getArray(), ((ArrayLoadInst)i).getIndex());
+		if (i instanceof ArrayLengthInst)
+			return !knownNotNull(i.getOperand(0), i);
+		if (i instanceof NewArrayInst) {
+			for (Value d : i.operands())
+				if (intConstant(d) == null || intConstant(d) < 0)
+					return true;
+			return false;
+		}
+		if (i instanceof CallInst)
+			return !KNOWN_SIDE_EFFECT_FREE.contains(((CallInst)i).getMethod().getBackingInvokable());
+		//Stores, terminators, and anything else.
+		return true;
+	}
+
 	public static boolean eliminateUnusedSideEffectFreeInsts(Method method) {
 		boolean changed = false, makingProgress;
 		do {
@@ -116,8 +254,6 @@ public final class DeadCodeElimination {
 					changed = makingProgress = true;
 				}
 				//TODO: NewArrayInst with known nonnegative size(s)
-				//TODO: StoreInst of a local variable with no following loads
-				//(conservative approximation: no loads at all)
 			}
 		} while (makingProgress);
 		return changed;
@@ -133,7 +269,7 @@ public final class DeadCodeElimination {
 			assert c instanceof Number : c;
 			Number n = (Number)c;
 			//Any primitive Number to double is a widening conversion.
-			return n.doubleValue() == 0;
+			return n.doubleValue() != 0;
 		}
 		return false;
 	}
@@ -230,61 +366,263 @@ public final class DeadCodeElimination {
 		return changed;
 	}
 
+	/**
+	 * Removes stores to local variables that are never loaded afterward, and
+	 * stores to fields and array elements that are overwritten later in the
+	 * same block before they can be read.
+	 *
+	 * Local variable liveness is computed once for the whole method with
+	 * bitsets, so this takes time linear in the size of the method (times the
+	 * number of local variables over the word size).
+	 * @param method the method to remove dead stores in
+	 * @return true iff changes were made
+	 */
 	public static boolean removeDeadStores(Method method) {
-		boolean changed = false, makingProgress;
-		do {
-			makingProgress = false;
-			for (BasicBlock block : method.basicBlocks())
-				changed |= makingProgress |= removeDeadStores(block);
-		} while (makingProgress);
+		Map<LocalVariable, Integer> index = indexLocalVariables(method.basicBlocks());
+		Map<BasicBlock, BitSet> liveOut = liveOut(method, index);
+		boolean changed = false;
+		for (BasicBlock block : method.basicBlocks())
+			changed |= removeDeadStores(block, liveOut.get(block), index);
 		return changed;
 	}
 
 	/**
-	 * Removes stores to local variables with no following loads.
+	 * Removes stores to local variables, fields and array elements that are
+	 * overwritten later in the given block before they can be read.  Without
+	 * looking at other blocks, local variables are assumed live at the end of
+	 * the block; {@link #removeDeadStores(Method)} does better.
 	 * @param block the block to remove dead stores in
 	 * @return true iff changes were made
 	 */
 	public static boolean removeDeadStores(BasicBlock block) {
-		boolean changed = false, makingProgress;
-		do {
-			makingProgress = false;
-			next_instruction: for (Instruction i : ImmutableList.copyOf(block.instructions())) {
-				if (!(i instanceof StoreInst)) continue;
-				StoreInst store = (StoreInst)i;
-				if (!(store.getLocation() instanceof LocalVariable)) continue;
-				ImmutableSet<Instruction> followers = followingInstructions(store);
-				for (Instruction f : followers)
-					if (f instanceof LoadInst && ((LoadInst)f).getLocation().equals(store.getLocation()))
-						continue next_instruction;
-				store.eraseFromParent();
-				changed = makingProgress = true;
+		Map<LocalVariable, Integer> index = indexLocalVariables(Collections.singleton(block));
+		BitSet live = new BitSet();
+		live.set(0, index.size());
+		return removeDeadStores(block, live, index);
+	}
+
+	/**
+	 * Numbers the local variables accessed in the given blocks.  (Methods
+	 * mirroring live Class objects don't have a list of local variables.)
+	 */
+	private static Map<LocalVariable, Integer> indexLocalVariables(Iterable<BasicBlock> blocks) {
+		Map<LocalVariable, Integer> index = new IdentityHashMap<>();
+		for (BasicBlock block : blocks)
+			for (Instruction i : block.instructions())
+				if ((i instanceof LoadInst || i instanceof StoreInst) &&
+						i.getOperand(0) instanceof LocalVariable && !index.containsKey((LocalVariable)i.getOperand(0)))
+					index.put((LocalVariable)i.getOperand(0), index.size());
+		return index;
+	}
+
+	/**
+	 * Computes the local variables live out of each block by the usual
+	 * backward dataflow iteration.
+	 */
+	private static Map<BasicBlock, BitSet> liveOut(Method method, Map<LocalVariable, Integer> index) {
+		Map<BasicBlock, BitSet> gen = new IdentityHashMap<>(), kill = new IdentityHashMap<>();
+		Map<BasicBlock, BitSet> liveIn = new IdentityHashMap<>(), liveOut = new IdentityHashMap<>();
+		for (BasicBlock block : method.basicBlocks()) {
+			BitSet g = new BitSet(), k = new BitSet();
+			for (Instruction i : block.instructions())
+				if (i instanceof LoadInst && ((LoadInst)i).getLocation() instanceof LocalVariable) {
+					int v = index.get((LocalVariable)((LoadInst)i).getLocation());
+					if (!k.get(v))
+						g.set(v);
+				} else if (i instanceof StoreInst && ((StoreInst)i).getLocation() instanceof LocalVariable)
+					k.set(index.get((LocalVariable)((StoreInst)i).getLocation()));
+			gen.put(block, g);
+			kill.put(block, k);
+			liveIn.put(block, (BitSet)g.clone());
+			liveOut.put(block, new BitSet());
+		}
+
+		//Visiting blocks in reverse order converges quickly for the forward
+		//layout the resolver produces.
+		Deque<BasicBlock> worklist = new ArrayDeque<>(Lists.reverse(method.basicBlocks()));
+		Set<BasicBlock> queued = Collections.newSetFromMap(new IdentityHashMap<BasicBlock, Boolean>());
+		queued.addAll(worklist);
+		while (!worklist.isEmpty()) {
+			BasicBlock block = worklist.pop();
+			queued.remove(block);
+			BitSet out = liveOut.get(block);
+			for (BasicBlock s : block.successors())
+				out.or(liveIn.get(s));
+			BitSet in = (BitSet)out.clone();
+			in.andNot(kill.get(block));
+			in.or(gen.get(block));
+			if (!in.equals(liveIn.get(block))) {
+				liveIn.put(block, in);
+				for (BasicBlock p : block.predecessors())
+					if (queued.add(p))
+						worklist.add(p);
 			}
-		} while (makingProgress);
+		}
+		return liveOut;
+	}
+
+	/**
+	 * Removes dead stores in the given block, walking backward from the end
+	 * of the block.
+	 * @param block the block to remove dead stores in
+	 * @param live the local variables live at the end of the block (modified)
+	 * @param index the local variable numbering
+	 * @return true iff changes were made
+	 */
+	private static boolean removeDeadStores(BasicBlock block, BitSet live, Map<LocalVariable, Integer> index) {
+		boolean changed = false;
+		//Memory locations stored to later in the block with no possible read,
+		//and no possible exception that would expose an earlier store, since.
+		Set<List<Object>> overwritten = new HashSet<>();
+		for (Instruction i : Lists.reverse(ImmutableList.copyOf(block.instructions()))) {
+			if (i instanceof LoadInst && ((LoadInst)i).getLocation() instanceof LocalVariable) {
+				live.set(index.get((LocalVariable)((LoadInst)i).getLocation()));
+				continue;
+			}
+			if (i instanceof StoreInst && ((StoreInst)i).getLocation() instanceof LocalVariable) {
+				int v = index.get((LocalVariable)((StoreInst)i).getLocation());
+				if (live.get(v)) {
+					live.clear(v);
+					continue;
+				}
+				i.eraseFromParent();
+				changed = true;
+				continue;
+			}
+
+			List<Object> location = overwritableLocation(i);
+			if (location != null && overwritten.contains(location)) {
+				i.eraseFromParent();
+				changed = true;
+				continue;
+			}
+			if (!overwritten.isEmpty() && location == null)
+				clobber(i, overwritten);
+			if (location != null)
+				overwritten.add(location);
+		}
 		return changed;
 	}
 
 	/**
-	 * Returns all instructions that could follow the given instruction in an
-	 * execution.  The set may include start itself (if start is in a loop, for
-	 * example).
-	 * @param start the starting point
-	 * @return a set containing all instructions that follow start
+	 * If the given instruction is a store that can't throw, returns the
+	 * location it stores to, else null.  Fields are identified by the field
+	 * and instance (for instance fields), array elements by the component
+	 * type, array and index.  Only stores to known-non-null instances, static
+	 * fields of already-initialized classes, and constant in-bounds elements
+	 * of new primitive arrays qualify, so that removing one doesn't remove an
+	 * exception.
 	 */
-	private static ImmutableSet<Instruction> followingInstructions(Instruction start) {
-		ImmutableSet.Builder<Instruction> followers = ImmutableSet.builder();
-		BasicBlock startBlock = start.getParent();
-		int startIndex = startBlock.instructions().indexOf(start);
-		followers.addAll(startBlock.instructions().subList(startIndex+1, startBlock.instructions().size()));
-
-		List<BasicBlock> worklist = Lists.newArrayList(startBlock.successors());
-		for (int i = 0; i < worklist.size(); ++i) {
-			followers.addAll(worklist.get(i).instructions());
-			for (BasicBlock s : worklist.get(i).successors())
-				if (!worklist.contains(s))
-					worklist.add(s);
+	private static List<Object> overwritableLocation(Instruction i) {
+		if (i instanceof StoreInst && ((StoreInst)i).getLocation() instanceof Field) {
+			StoreInst si = (StoreInst)i;
+			Field f = (Field)si.getLocation();
+			if (f.modifiers().contains(Modifier.VOLATILE))
+				return null;
+			if (f.isStatic())
+				return isInitialized(f.getParent(), si) ? Arrays.<Object>asList(f) : null;
+			return knownNotNull(si.getInstance(), si) ? Arrays.<Object>asList(f, si.getInstance()) : null;
+		} else if (i instanceof ArrayStoreInst) {
+			ArrayStoreInst asi = (ArrayStoreInst)i;
+			if (!inBoundsOfNewArray(asi.getArray(), asi.getIndex()))
+				return null;
+			RegularType component = ((ArrayType)asi.getArray().getType()).getComponentType();
+			//Reference arrays can throw ArrayStoreException.
+			if (!(component instanceof PrimitiveType))
+				return null;
+			return Arrays.<Object>asList(component, asi.getArray(), asi.getIndex());
 		}
-		return followers.build();
+		return null;
+	}
+
+	/**
+	 * Removes the overwritten locations the given instruction may read, or all
+	 * of them if it may throw or run arbitrary code.
+	 */
+	private static void clobber(Instruction i, Set<List<Object>> overwritten) {
+		if (i instanceof LoadInst) {
+			LoadInst li = (LoadInst)i;
+			Field f = (Field)li.getLocation();
+			if (f.modifiers().contains(Modifier.VOLATILE) ||
+					(f.isStatic() ? !isInitialized(f.getParent(), li) : !knownNotNull(li.getInstance(), li)))
+				overwritten.clear();
+			else
+				for (Iterator<List<Object>> it = overwritten.iterator(); it.hasNext();)
+					if (it.next().get(0).equals(f))
+						it.remove();
+		} else if (i instanceof ArrayLoadInst) {
+			ArrayLoadInst ali = (ArrayLoadInst)i;
+			if (!inBoundsOfNewArray(ali.getArray(), ali.getIndex()))
+				overwritten.clear();
+			else
+				for (Iterator<List<Object>> it = overwritten.iterator(); it.hasNext();)
+					if (it.next().get(0).equals(((ArrayType)ali.getArray().getType()).getComponentType()))
+						it.remove();
+		} else if (i instanceof ArrayLengthInst) {
+			if (!knownNotNull(i.getOperand(0), i))
+				overwritten.clear();
+		} else if (i instanceof BinaryInst) {
+			BinaryInst bi = (BinaryInst)i;
+			if ((bi.getOperation().equals(BinaryInst.Operation.DIV) ||
+					bi.getOperation().equals(BinaryInst.Operation.REM)) &&
+					bi.getType().isIntegral() &&
+					!knownNotZero(bi.getOperand(1)))
+				overwritten.clear();
+		} else if (i instanceof CastInst) {
+			//checkcast may throw; primitive conversions don't.
+			if (!(i.getType() instanceof PrimitiveType))
+				overwritten.clear();
+		} else if (i instanceof NewArrayInst) {
+			for (Value d : i.operands())
+				if (intConstant(d) == null || intConstant(d) < 0)
+					overwritten.clear();
+		} else if (!(i instanceof InstanceofInst || i instanceof PhiInst))
+			//Calls, stores we can't track, and anything else.
+			overwritten.clear();
+	}
+
+	/**
+	 * Returns true if the given value is known not to be null: the receiver,
+	 * an uninitialized object, a newly-constructed object or a new array.
+	 */
+	private static boolean knownNotNull(Value v, Instruction user) {
+		if (v instanceof UninitializedValue || v instanceof NewArrayInst)
+			return true;
+		if (v instanceof CallInst && ((CallInst)v).getMethod().isConstructor())
+			return true;
+		Method method = user.getParent().getParent();
+		return method.hasReceiver() && v == method.arguments().get(0);
+	}
+
+	/**
+	 * Returns true if the given class is known to be initialized when the
+	 * given instruction executes: the class of the method, or a superclass.
+	 */
+	private static boolean isInitialized(Klass klass, Instruction user) {
+		for (Klass k = user.getParent().getParent().getParent(); k != null; k = k.getSuperclass())
+			if (k == klass)
+				return true;
+		return false;
+	}
+
+	private static boolean inBoundsOfNewArray(Value array, Value index) {
+		if (!(array instanceof NewArrayInst) || ((NewArrayInst)array).getNumOperands() != 1)
+			return false;
+		Integer length = intConstant(((NewArrayInst)array).getOperand(0)), i = intConstant(index);
+		return length != null && i != null && 0 <= i && i < length;
+	}
+
+	private static Integer intConstant(Value v) {
+		if (!(v instanceof Constant))
+			return null;
+		Object c = ((Constant<?>)v).getConstant();
+		if (c instanceof Boolean)
+			return (Boolean)c ? 1 : 0;
+		if (c instanceof Character)
+			return (int)(Character)c;
+		if (c instanceof Integer || c instanceof Short || c instanceof Byte)
+			return ((Number)c).intValue();
+		return null;
 	}
 
 	public static boolean removeUnusedKnownSideEffectFreeCalls(Method method) {
@@ -379,4 +717,50 @@ public final class DeadCodeElimination {
 
 		return builder.build();
 	}
+
+	public static void main(String[] args) throws ReflectiveOperationException {
+		//static int f(int n): a loop counting to n, plus a phi/multiply cycle
+		//that only feeds itself, plus an unreachable block feeding the phi
+		//at the exit.
+		Module m = new Module();
+		TypeFactory types = m.types();
+		ConstantFactory constants = m.constants();
+		Klass k = new Klass("dce.Test", m.getKlass(Object.class), Collections.<Klass>emptyList(), EnumSet.of(Modifier.PUBLIC), m);
+		Method f = new Method("f", types.getMethodType(int.class, int.class), EnumSet.of(Modifier.PUBLIC, Modifier.STATIC), k);
+		Argument n = f.arguments().get(0);
+		BasicBlock entry = new BasicBlock(f), loop = new BasicBlock(f), exit = new BasicBlock(f), unreachable = new BasicBlock(f);
+		entry.instructions().add(new JumpInst(loop));
+
+		PhiInst i = new PhiInst(types.getPrimitiveType(int.class)), dead = new PhiInst(types.getPrimitiveType(int.class));
+		BinaryInst next = new BinaryInst(i, BinaryInst.Operation.ADD, constants.getConstant(1));
+		BinaryInst product = new BinaryInst(dead, BinaryInst.Operation.MUL, next);
+		i.put(entry, constants.getConstant(0));
+		i.put(loop, next);
+		dead.put(entry, constants.getConstant(1));
+		dead.put(loop, product);
+		loop.instructions().addAll(Arrays.asList(i, dead, next, product,
+				new BranchInst(next, BranchInst.Sense.LT, n, loop, exit)));
+
+		BinaryInst scaled = new BinaryInst(n, BinaryInst.Operation.MUL, constants.getConstant(7));
+		unreachable.instructions().add(scaled);
+		unreachable.instructions().add(new JumpInst(exit));
+		PhiInst result = new PhiInst(types.getPrimitiveType(int.class));
+		result.put(loop, next);
+		result.put(unreachable, scaled);
+		exit.instructions().add(result);
+		exit.instructions().add(new ReturnInst(types.getPrimitiveType(int.class), result));
+		f.dump(new PrintWriter(System.out, true));
+
+		checkState(removeUnreachableBlocks(f), "no unreachable blocks removed");
+		checkState(unreachable.getParent() == null && result.getParent() == null, "unreachable block or its phi survived");
+		checkState(aggressivelyEliminateDeadCode(f), "no dead code removed");
+		checkState(dead.getParent() == null && product.getParent() == null, "dead cycle survived");
+		checkState(i.getParent() == loop && next.getParent() == loop, "live cycle removed");
+		f.dump(new PrintWriter(System.out, true));
+
+		Class<?> c = new ModuleClassLoader(m).loadClass(k.getName());
+		Object value = c.getMethod("f", int.class).invoke(null, 10);
+		checkState(value.equals(10), "f(10) returned %s", value);
+		System.out.println("f(10) = "+value);
+	}
 }
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import edu.mit.streamjit.util.bytecode.insts.BranchInst;
+import edu.mit.streamjit.util.bytecode.insts.CallInst;
+import edu.mit.streamjit.util.bytecode.insts.CastInst;
+import edu.mit.streamjit.util.bytecode.insts.Instruction;
+import edu.mit.streamjit.util.bytecode.insts.JumpInst;
+import edu.mit.streamjit.util.bytecode.insts.PhiInst;
+import edu.mit.streamjit.util.bytecode.insts.TerminatorInst;
+import edu.mit.streamjit.util.bytecode.types.ReferenceType;
+import edu.mit.streamjit.util.bytecode.types.RegularType;
+import edu.mit.streamjit.util.bytecode.types.Type;
+import edu.mit.streamjit.util.bytecode.types.TypeFactory;
+import edu.mit.streamjit.util.bytecode.types.VoidType;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rebinds virtual and interface calls to the method they must dispatch to,
+ * marking them {@link CallInst#isDirect() direct} so the {@link Inliner} can
+ * inline them.
+ *
+ * The receiver's exact class is known when it comes from a constructor call,
+ * a non-null constant, or a value (or cast) of a final class; phis merging
+ * values of the same exact class have that class too.  Calls on such
+ * receivers are rebound unconditionally.
+ *
+ * Otherwise, if the module's classes include exactly one concrete subtype of
+ * the receiver's static type, the call is guarded instead: a getClass()
+ * comparison selects between a direct call to that class's implementation and
+ * the original call.  The guard keeps this correct when classes the module
+ * doesn't know about show up at runtime.
+ * @author agent <agent@local>
+ * @since 10/19/2026
+ */
+public final class Devirtualizer {
+	private static final Object OVERDEFINED = new Object();
+	private final Method method;
+	private final Module module;
+	/**
+	 * Exact classes of values, computed optimistically for phis.
+	 */
+	private final Map<Value, Klass> exactKlasses = new IdentityHashMap<>();
+	private Devirtualizer(Method method) {
+		this.method = method;
+		this.module = method.getParent().getParent();
+	}
+
+	/**
+	 * Devirtualizes calls in the given method.
+	 * @param method the method to optimize
+	 * @return true iff changes were made
+	 */
+	public static boolean devirtualize(Method method) {
+		checkArgument(method.isMutable(), "%s not mutable", method);
+		return new Devirtualizer(method).run();
+	}
+
+	private boolean run() {
+		computeExactKlasses();
+		boolean changed = false;
+		for (BasicBlock block : ImmutableList.copyOf(method.basicBlocks()))
+			for (Instruction i : ImmutableList.copyOf(block.instructions()))
+				if (i instanceof CallInst && isVirtual((CallInst)i))
+					changed |= devirtualize((CallInst)i);
+		return changed;
+	}
+
+	private boolean isVirtual(CallInst call) {
+		Method m = call.getMethod();
+		return !call.isDirect() && !m.isConstructor() && !m.isSignaturePolymorphic() &&
+				!m.modifiers().contains(Modifier.STATIC) && m.getAccess() != Access.PRIVATE &&
+				!Inliner.isSuperCall(method.getParent(), m);
+	}
+
+	private boolean devirtualize(CallInst call) {
+		Value receiver = call.getArgument(0);
+		//Receivers created by earlier rebinding aren't in the map yet.
+		Klass exact = exactKlasses.containsKey(receiver) ? exactKlasses.get(receiver) : exactKlass(receiver);
+		if (exact != null) {
+			Method target = dispatch(call.getMethod(), exact);
+			if (target == null)
+				return false;
+			if (target == call.getMethod()) {
+				call.setDirect(true);
+				return true;
+			}
+			call.replaceInstWithInst(rebind(call, target, call.getParent(), call.getParent().instructions().indexOf(call)));
+			return true;
+		}
+
+		Type receiverType = receiver.getType();
+		if (!(receiverType instanceof ReferenceType))
+			return false;
+		if (isGuardFallback(call))
+			return false;
+		Klass only = onlyConcreteSubtype((ReferenceType)receiverType);
+		if (only == null || only.getBackingClass() == null || !Inliner.isAccessible(method.getParent(), only))
+			return false;
+		Method target = dispatch(call.getMethod(), only);
+		if (target == null)
+			return false;
+		guard(call, only, target);
+		return true;
+	}
+
+	/**
+	 * Returns the method a call to the given method on an instance of exactly
+	 * the given class dispatches to, or null if we can't call it directly from
+	 * this method.
+	 */
+	private Method dispatch(Method m, Klass klass) {
+		TypeFactory types = module.types();
+		Method target = klass.getMethodByVirtual(m.getName(),
+				m.getType().dropFirstArgument().prependArgument(types.getReferenceType(klass)));
+		if (target == null || target.isSignaturePolymorphic() || target.modifiers().contains(Modifier.ABSTRACT) ||
+				target.modifiers().contains(Modifier.STATIC) || target.getAccess() == Access.PRIVATE ||
+				!target.getType().getReturnType().equals(m.getType().getReturnType()))
+			return null;
+		//The lookup ignores access when matching overrides, but
+		//package-private methods only override within their package.
+		if (target != m && (target.getAccess() == Access.PACKAGE_PRIVATE || m.getAccess() == Access.PACKAGE_PRIVATE) &&
+				!Inliner.samePackage(m.getParent(), target.getParent()))
+			return null;
+		if (target != m && (!Inliner.isAccessible(method.getParent(), target.getParent(), target.getAccess()) ||
+				Inliner.isSuperCall(method.getParent(), target)))
+			return null;
+		return target;
+	}
+
+	/**
+	 * Creates a direct call to the given target with the given call's
+	 * arguments, casting the receiver if necessary.  The cast (if any) is
+	 * inserted at the given index in the given block.
+	 */
+	private CallInst rebind(CallInst call, Method target, BasicBlock block, int index) {
+		Value[] arguments = new Value[call.getNumOperands()-1];
+		for (int i = 0; i < arguments.length; ++i)
+			arguments[i] = call.getArgument(i);
+		RegularType receiverType = target.getType().getParameterTypes().get(0);
+		if (!arguments[0].getType().isSubtypeOf(receiverType)) {
+			CastInst cast = new CastInst(receiverType, arguments[0]);
+			block.instructions().add(index, cast);
+			arguments[0] = cast;
+		}
+		CallInst direct = new CallInst(target, arguments);
+		direct.setDirect(true);
+		return direct;
+	}
+
+	/**
+	 * Splits the call's block to test whether the receiver's class is the
+	 * given class, calling the given target directly if so and making the
+	 * original call otherwise.
+	 */
+	private void guard(CallInst call, Klass klass, Method target) {
+		BasicBlock block = call.getParent();
+		BasicBlock continuation = new BasicBlock(module);
+		continuation.setFrequency(block.getFrequency());
+		method.basicBlocks().add(method.basicBlocks().indexOf(block)+1, continuation);
+		List<Instruction> insts = block.instructions();
+		for (Instruction i : ImmutableList.copyOf(insts.subList(insts.indexOf(call)+1, insts.size())))
+			continuation.instructions().add(i.removeFromParent());
+		for (Use u : block.uses())
+			if (u.getUser() instanceof PhiInst)
+				u.setOperand(continuation);
+		call.removeFromParent();
+
+		BasicBlock fast = new BasicBlock(module), slow = new BasicBlock(module);
+		method.basicBlocks().addAll(method.basicBlocks().indexOf(continuation), ImmutableList.of(fast, slow));
+		Klass object = module.getKlass(Object.class);
+		Method getClass = object.getMethod("getClass", module.types().getMethodType(Class.class, Object.class));
+		CallInst receiverClass = new CallInst(getClass, call.getArgument(0));
+		block.instructions().add(receiverClass);
+		block.instructions().add(new BranchInst(receiverClass, BranchInst.Sense.EQ,
+				module.constants().getConstant(klass.getBackingClass()), fast, slow));
+
+		CallInst direct = rebind(call, target, fast, 0);
+		fast.instructions().add(direct);
+		fast.instructions().add(new JumpInst(continuation));
+		slow.instructions().add(call);
+		slow.instructions().add(new JumpInst(continuation));
+		if (!(call.getType() instanceof VoidType) && !call.uses().isEmpty()) {
+			PhiInst phi = new PhiInst(call.getType());
+			call.replaceAllUsesWith(phi);
+			phi.put(fast, direct);
+			phi.put(slow, call);
+			continuation.instructions().add(0, phi);
+		}
+	}
+
+	/**
+	 * Returns true if the given call is the fallback path of a guard, so we
+	 * don't guard it again.
+	 */
+	private static boolean isGuardFallback(CallInst call) {
+		Iterator<BasicBlock> predecessors = call.getParent().predecessors().iterator();
+		if (!predecessors.hasNext())
+			return false;
+		BasicBlock predecessor = predecessors.next();
+		if (predecessors.hasNext())
+			return false;
+		TerminatorInst terminator = predecessor.getTerminator();
+		if (!(terminator instanceof BranchInst) || terminator.getOperand(3) != call.getParent())
+			return false;
+		Value test = terminator.getOperand(0);
+		return test instanceof CallInst && ((CallInst)test).getMethod().getName().equals("getClass") &&
+				((CallInst)test).getArgument(0) == call.getArgument(0);
+	}
+
+	private Klass onlyConcreteSubtype(ReferenceType type) {
+		Klass only = null;
+		for (Klass k : ImmutableList.copyOf(module.klasses())) {
+			if (k.isArray() || k.modifiers().contains(Modifier.ABSTRACT) || k.modifiers().contains(Modifier.INTERFACE) ||
+					!module.types().getReferenceType(k).isSubtypeOf(type))
+				continue;
+			if (only != null)
+				return null;
+			only = k;
+		}
+		return only;
+	}
+
+	private void computeExactKlasses() {
+		Set<PhiInst> phis = Collections.newSetFromMap(new IdentityHashMap<PhiInst, Boolean>());
+		for (BasicBlock block : method.basicBlocks())
+			for (Instruction i : block.instructions()) {
+				if (i instanceof PhiInst && i.getType() instanceof ReferenceType)
+					phis.add((PhiInst)i);
+				for (Value v : i.operands())
+					if (!exactKlasses.containsKey(v)) {
+						Klass k = exactKlass(v);
+						if (k != null)
+							exactKlasses.put(v, k);
+					}
+			}
+
+		//Optimistically assume phis have an exact class until we see incoming
+		//values of different (or unknown) classes.  Null incoming values
+		//don't constrain the class.
+		Map<PhiInst, Object> states = new IdentityHashMap<>();
+		boolean makingProgress;
+		do {
+			makingProgress = false;
+			for (PhiInst phi : phis) {
+				if (states.get(phi) == OVERDEFINED)
+					continue;
+				Object meet = null;
+				for (Value v : phi.incomingValues()) {
+					if (isNull(v))
+						continue;
+					Object state;
+					if (phis.contains(v)) {
+						state = states.get(v);
+						if (state == null)
+							continue;
+					} else {
+						state = exactKlasses.get(v);
+						if (state == null)
+							state = OVERDEFINED;
+					}
+					meet = meet == null || meet == state ? state : OVERDEFINED;
+				}
+				if (meet != null && meet != states.get(phi)) {
+					states.put(phi, meet);
+					makingProgress = true;
+				}
+			}
+		} while (makingProgress);
+		for (Map.Entry<PhiInst, Object> entry : states.entrySet())
+			if (entry.getValue() instanceof Klass)
+				exactKlasses.put(entry.getKey(), (Klass)entry.getValue());
+	}
+
+	private Klass exactKlass(Value v) {
+		if (v instanceof CallInst && ((CallInst)v).getMethod().isConstructor()) {
+			//Our own superclass or this(...) constructor call produces this,
+			//whose class we don't know.
+			Klass k = ((CallInst)v).getMethod().getParent();
+			if (method.isConstructor() && (k == method.getParent() || k == method.getParent().getSuperclass()))
+				return null;
+			return k;
+		}
+		if (v instanceof Constant && !isNull(v) && v.getType() instanceof ReferenceType)
+			return module.getKlass(((Constant<?>)v).getConstant().getClass());
+		if (v instanceof CastInst && exactKlasses.containsKey(((CastInst)v).getOperand(0)))
+			return exactKlasses.get(((CastInst)v).getOperand(0));
+		if (v instanceof PhiInst || !(v.getType() instanceof ReferenceType))
+			return null;
+		Klass k = ((ReferenceType)v.getType()).getKlass();
+		if (!k.isArray() && k.modifiers().contains(Modifier.FINAL))
+			return k;
+		return null;
+	}
+
+	private static boolean isNull(Value v) {
+		return v instanceof Constant && ((Constant<?>)v).getConstant() == null;
+	}
+}
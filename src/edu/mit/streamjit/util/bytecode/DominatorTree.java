@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The dominator tree of a method's reachable blocks, computed with the
+ * iterative algorithm of Cooper, Harvey and Kennedy, "A Simple, Fast
+ * Dominance Algorithm" (2001).  Blocks unreachable from the entry block
+ * aren't in the tree.
+ *
+ * The tree is a snapshot; it isn't updated when the method's control flow
+ * graph changes.
+ * @author agent <agent@local>
+ * @since 10/19/2026
+ */
+public final class DominatorTree {
+	private final Method method;
+	/**
+	 * The reachable blocks in reverse postorder of a depth-first search of
+	 * the control flow graph.
+	 */
+	private final ImmutableList<BasicBlock> reversePostorder;
+	/**
+	 * The reachable blocks in preorder of the dominator tree, so each block's
+	 * dominator subtree is a contiguous range starting at the block.
+	 */
+	private final ImmutableList<BasicBlock> preorder;
+	private final Map<BasicBlock, Integer> preorderIndex = new IdentityHashMap<>();
+	/**
+	 * Indexed by preorder index.
+	 */
+	private final int[] subtreeSize;
+	private final Map<BasicBlock, BasicBlock> idom = new IdentityHashMap<>();
+	private final Map<BasicBlock, List<BasicBlock>> children = new IdentityHashMap<>();
+
+	public DominatorTree(Method method) {
+		checkNotNull(method);
+		checkArgument(method.isResolved() && !method.basicBlocks().isEmpty(), "no blocks: %s", method);
+		this.method = method;
+		this.reversePostorder = reversePostorder(method.basicBlocks().get(0));
+
+		Map<BasicBlock, Integer> rpoIndex = new IdentityHashMap<>();
+		for (int i = 0; i < reversePostorder.size(); ++i)
+			rpoIndex.put(reversePostorder.get(i), i);
+		List<List<Integer>> predecessors = new ArrayList<>(reversePostorder.size());
+		for (BasicBlock b : reversePostorder) {
+			List<Integer> preds = new ArrayList<>();
+			for (BasicBlock p : b.predecessors()) {
+				Integer pi = rpoIndex.get(p);
+				if (pi != null)
+					preds.add(pi);
+			}
+			predecessors.add(preds);
+		}
+
+		int[] doms = new int[reversePostorder.size()];
+		Arrays.fill(doms, -1);
+		doms[0] = 0;
+		boolean changed;
+		do {
+			changed = false;
+			for (int b = 1; b < doms.length; ++b) {
+				int newIdom = -1;
+				for (int p : predecessors.get(b))
+					if (doms[p] != -1)
+						newIdom = newIdom == -1 ? p : intersect(doms, p, newIdom);
+				if (doms[b] != newIdom) {
+					doms[b] = newIdom;
+					changed = true;
+				}
+			}
+		} while (changed);
+
+		for (BasicBlock b : reversePostorder)
+			children.put(b, new ArrayList<BasicBlock>());
+		for (int b = 1; b < doms.length; ++b) {
+			BasicBlock block = reversePostorder.get(b), dominator = reversePostorder.get(doms[b]);
+			idom.put(block, dominator);
+			children.get(dominator).add(block);
+		}
+
+		ImmutableList.Builder<BasicBlock> preorderBuilder = ImmutableList.builder();
+		this.subtreeSize = new int[reversePostorder.size()];
+		Deque<BasicBlock> stack = new ArrayDeque<>();
+		stack.push(reversePostorder.get(0));
+		int index = 0;
+		while (!stack.isEmpty()) {
+			BasicBlock b = stack.pop();
+			preorderIndex.put(b, index++);
+			preorderBuilder.add(b);
+			List<BasicBlock> kids = children.get(b);
+			for (int i = kids.size()-1; i >= 0; --i)
+				stack.push(kids.get(i));
+		}
+		this.preorder = preorderBuilder.build();
+		for (int i = preorder.size()-1; i >= 0; --i) {
+			BasicBlock b = preorder.get(i);
+			subtreeSize[i] = 1;
+			for (BasicBlock c : children.get(b))
+				subtreeSize[i] += subtreeSize[preorderIndex.get(c)];
+		}
+	}
+
+	private static int intersect(int[] doms, int a, int b) {
+		//Reverse postorder numbers decrease toward the root.
+		while (a != b) {
+			while (a > b)
+				a = doms[a];
+			while (b > a)
+				b = doms[b];
+		}
+		return a;
+	}
+
+	private static ImmutableList<BasicBlock> reversePostorder(BasicBlock entry) {
+		List<BasicBlock> postorder = new ArrayList<>();
+		Map<BasicBlock, Boolean> visited = new IdentityHashMap<>();
+		Deque<BasicBlock> blocks = new ArrayDeque<>();
+		Deque<Iterator<BasicBlock>> successors = new ArrayDeque<>();
+		visited.put(entry, true);
+		blocks.push(entry);
+		successors.push(entry.successors().iterator());
+		while (!blocks.isEmpty()) {
+			if (successors.peek().hasNext()) {
+				BasicBlock s = successors.peek().next();
+				if (visited.put(s, true) == null) {
+					blocks.push(s);
+					successors.push(s.successors().iterator());
+				}
+			} else {
+				postorder.add(blocks.pop());
+				successors.pop();
+			}
+		}
+		return ImmutableList.copyOf(postorder).reverse();
+	}
+
+	public Method getMethod() {
+		return method;
+	}
+
+	/**
+	 * Returns true iff the given block is reachable from the method's entry
+	 * block (and thus in this tree).
+	 * @param block a block
+	 * @return true iff the block is reachable
+	 */
+	public boolean isReachable(BasicBlock block) {
+		return preorderIndex.containsKey(block);
+	}
+
+	/**
+	 * Returns the given block's immediate dominator, or null if the block is
+	 * the entry block or is unreachable.
+	 * @param block a block
+	 * @return the block's immediate dominator, or null
+	 */
+	public BasicBlock getImmediateDominator(BasicBlock block) {
+		return idom.get(block);
+	}
+
+	/**
+	 * Returns the blocks immediately dominated by the given block.
+	 * @param block a reachable block
+	 * @return the block's children in the tree
+	 */
+	public ImmutableList<BasicBlock> getChildren(BasicBlock block) {
+		checkArgument(isReachable(block), "unreachable: %s", block);
+		return ImmutableList.copyOf(children.get(block));
+	}
+
+	/**
+	 * Returns true iff a dominates b; that is, every path from the entry
+	 * block to b passes through a.  Every reachable block dominates itself.
+	 * Unreachable blocks neither dominate nor are dominated.
+	 * @param a a block
+	 * @param b a block
+	 * @return true iff a dominates b
+	 */
+	public boolean dominates(BasicBlock a, BasicBlock b) {
+		Integer ai = preorderIndex.get(a), bi = preorderIndex.get(b);
+		if (ai == null || bi == null)
+			return false;
+		return ai <= bi && bi < ai + subtreeSize[ai];
+	}
+
+	/**
+	 * Returns true iff a strictly dominates b (dominates it and isn't it).
+	 * @param a a block
+	 * @param b a block
+	 * @return true iff a strictly dominates b
+	 */
+	public boolean strictlyDominates(BasicBlock a, BasicBlock b) {
+		return a != b && dominates(a, b);
+	}
+
+	/**
+	 * Returns the blocks dominated by the given block (including itself), in
+	 * preorder of the dominator tree.
+	 * @param block a reachable block
+	 * @return the blocks the given block dominates
+	 */
+	public ImmutableList<BasicBlock> dominated(BasicBlock block) {
+		checkArgument(isReachable(block), "unreachable: %s", block);
+		int i = preorderIndex.get(block);
+		return preorder.subList(i, i + subtreeSize[i]);
+	}
+
+	/**
+	 * Returns the reachable blocks in preorder of the dominator tree; each
+	 * block appears before every block it dominates.
+	 * @return the reachable blocks in dominator tree preorder
+	 */
+	public ImmutableList<BasicBlock> preorder() {
+		return preorder;
+	}
+
+	/**
+	 * Returns the reachable blocks in reverse postorder of a depth-first
+	 * search of the control flow graph; each block appears before its
+	 * successors, except along back edges.
+	 * @return the reachable blocks in reverse postorder
+	 */
+	public ImmutableList<BasicBlock> reversePostorder() {
+		return reversePostorder;
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import edu.mit.streamjit.util.bytecode.insts.Instruction;
+import edu.mit.streamjit.util.bytecode.insts.SwitchInst;
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Describes the bytecode emitted for a method: its code length, maxLocals and
+ * maxStack, how many constant pool entries it references, the
+ * {@link Threshold}s its code length crosses, and how its switches were
+ * lowered.  Obtain reports with {@link KlassUnresolver#report(Klass)} or
+ * {@link KlassUnresolver#report(Module)}.
+ *
+ * HotSpot decides whether to inline or compile a method by its bytecode size,
+ * so a generated method that grows past a threshold may run much slower than
+ * a slightly smaller one.
+ * @author agent <agent@local>
+ * @since 10/18/2026
+ */
+public final class EmissionReport {
+	/**
+	 * HotSpot's code length limits (with their product defaults).  A method
+	 * crosses a threshold if its code length is strictly greater than the
+	 * limit.
+	 */
+	public static enum Threshold {
+		/**
+		 * -XX:MaxInlineSize: methods larger than this are only inlined at hot
+		 * call sites.
+		 */
+		MAX_INLINE_SIZE(35),
+		/**
+		 * -XX:FreqInlineSize: methods larger than this are never inlined,
+		 * even at hot call sites.
+		 */
+		FREQ_INLINE_SIZE(325),
+		/**
+		 * HugeMethodLimit: methods larger than this are not compiled at all
+		 * (unless -XX:-DontCompileHugeMethods), so they always interpret.
+		 */
+		HUGE_METHOD_LIMIT(8000),
+		/**
+		 * The JVM's limit on code length; larger methods fail verification.
+		 */
+		MAX_CODE_LENGTH(65535);
+		private final int limit;
+		private Threshold(int limit) {
+			this.limit = limit;
+		}
+		public int getLimit() {
+			return limit;
+		}
+	}
+
+	private final String owner, name, descriptor;
+	private final int codeLength, maxLocals, maxStack, constantPoolEntries;
+	private final ImmutableList<MethodUnresolver.SwitchStrategy> switchStrategies;
+	private EmissionReport(String owner, String name, String descriptor, int codeLength, int maxLocals, int maxStack, int constantPoolEntries, ImmutableList<MethodUnresolver.SwitchStrategy> switchStrategies) {
+		this.owner = owner;
+		this.name = name;
+		this.descriptor = descriptor;
+		this.codeLength = codeLength;
+		this.maxLocals = maxLocals;
+		this.maxStack = maxStack;
+		this.constantPoolEntries = constantPoolEntries;
+		this.switchStrategies = switchStrategies;
+	}
+
+	/**
+	 * A ClassVisitor that passes one method through to another visitor,
+	 * recording a report for it.
+	 */
+	static final class Recorder extends ClassVisitor {
+		private final Method method;
+		/**
+		 * Collects the method's constant pool references, so we can count
+		 * them.  (ClassWriter doesn't expose its constant pool size, but
+		 * the count is at a fixed offset in the class file.)
+		 */
+		private final ClassWriter pool = new ClassWriter(0);
+		private String name, descriptor;
+		private final Label end = new Label();
+		private boolean hasCode = false;
+		private int maxLocals, maxStack;
+		Recorder(Method method, ClassVisitor cv) {
+			super(Opcodes.ASM5, cv);
+			this.method = method;
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+			this.name = name;
+			this.descriptor = desc;
+			pool.newUTF8(name);
+			pool.newUTF8(desc);
+			return new MethodVisitor(Opcodes.ASM5, super.visitMethod(access, name, desc, signature, exceptions)) {
+				@Override
+				public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+					pool.newField(owner, name, desc);
+					super.visitFieldInsn(opcode, owner, name, desc);
+				}
+				@Override
+				public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+					pool.newMethod(owner, name, desc, itf);
+					super.visitMethodInsn(opcode, owner, name, desc, itf);
+				}
+				@Override
+				public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+					pool.newInvokeDynamic(name, desc, bsm, bsmArgs);
+					super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+				}
+				@Override
+				public void visitTypeInsn(int opcode, String type) {
+					pool.newClass(type);
+					super.visitTypeInsn(opcode, type);
+				}
+				@Override
+				public void visitMultiANewArrayInsn(String desc, int dims) {
+					pool.newClass(desc);
+					super.visitMultiANewArrayInsn(desc, dims);
+				}
+				@Override
+				public void visitLdcInsn(Object cst) {
+					pool.newConst(cst);
+					super.visitLdcInsn(cst);
+				}
+				@Override
+				public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+					if (type != null)
+						pool.newClass(type);
+					super.visitTryCatchBlock(start, end, handler, type);
+				}
+				@Override
+				public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+					for (int i = 0; i < nLocal; ++i)
+						if (local[i] instanceof String)
+							pool.newClass((String)local[i]);
+					for (int i = 0; i < nStack; ++i)
+						if (stack[i] instanceof String)
+							pool.newClass((String)stack[i]);
+					super.visitFrame(type, nLocal, local, nStack, stack);
+				}
+				@Override
+				public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
+					pool.newUTF8(name);
+					pool.newUTF8(desc);
+					if (signature != null)
+						pool.newUTF8(signature);
+					super.visitLocalVariable(name, desc, signature, start, end, index);
+				}
+				@Override
+				public void visitMaxs(int maxStack, int maxLocals) {
+					//Marks the end of the code, so its offset is the code
+					//length once written.
+					super.visitLabel(end);
+					hasCode = true;
+					Recorder.this.maxStack = maxStack;
+					Recorder.this.maxLocals = maxLocals;
+					super.visitMaxs(maxStack, maxLocals);
+				}
+			};
+		}
+
+		/**
+		 * Returns the report for the method, which must have been written.
+		 */
+		EmissionReport report() {
+			checkState(name != null, "%s not written", method);
+			ImmutableList.Builder<MethodUnresolver.SwitchStrategy> strategies = ImmutableList.builder();
+			if (method.isResolved())
+				for (BasicBlock b : method.basicBlocks())
+					for (Instruction i : b.instructions())
+						if (i instanceof SwitchInst)
+							strategies.add(MethodUnresolver.switchStrategy((SwitchInst)i));
+			//The constant pool count (one more than the number of entries)
+			//follows the magic number and version.
+			byte[] bytes = pool.toByteArray();
+			int constants = (((bytes[8] & 0xFF) << 8) | (bytes[9] & 0xFF)) - 1;
+			return new EmissionReport(method.getParent().getName(), name, descriptor,
+					hasCode ? end.getOffset() : 0, maxLocals, maxStack, constants, strategies.build());
+		}
+	}
+
+	/**
+	 * Returns the name of the class declaring the method.
+	 * @return the owner's name
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescriptor() {
+		return descriptor;
+	}
+
+	/**
+	 * Returns the length of the method's bytecode, in bytes.  (Methods too
+	 * large for short branch offsets may grow slightly when written.)
+	 * @return the code length
+	 */
+	public int getCodeLength() {
+		return codeLength;
+	}
+
+	public int getMaxLocals() {
+		return maxLocals;
+	}
+
+	public int getMaxStack() {
+		return maxStack;
+	}
+
+	/**
+	 * Returns the number of constant pool entries the method refers to
+	 * (counting longs and doubles twice, as the class file does), including
+	 * its name and descriptor.  Entries may be shared with other methods in the class, so the class's
+	 * constant pool may be smaller than the sum of its methods' counts.
+	 * @return the number of constant pool entries
+	 */
+	public int getConstantPoolEntries() {
+		return constantPoolEntries;
+	}
+
+	/**
+	 * Returns how each of the method's switches was lowered, in block order.
+	 * @return the method's switch strategies
+	 */
+	public ImmutableList<MethodUnresolver.SwitchStrategy> getSwitchStrategies() {
+		return switchStrategies;
+	}
+
+	/**
+	 * Returns the thresholds this method's code length crosses.
+	 * @return the crossed thresholds
+	 */
+	public ImmutableSet<Threshold> thresholdsCrossed() {
+		EnumSet<Threshold> crossed = EnumSet.noneOf(Threshold.class);
+		for (Threshold t : Threshold.values())
+			if (crosses(t))
+				crossed.add(t);
+		return Sets.immutableEnumSet(crossed);
+	}
+
+	public boolean crosses(Threshold threshold) {
+		return codeLength > threshold.getLimit();
+	}
+
+	/**
+	 * Returns the methods in the given reports crossing the given threshold,
+	 * in iteration order.
+	 * @param reports reports, such as from {@link KlassUnresolver#report(Module)}
+	 * @param threshold the threshold
+	 * @return the methods crossing the threshold
+	 */
+	public static ImmutableList<Method> crossing(Map<Method, EmissionReport> reports, Threshold threshold) {
+		checkNotNull(threshold);
+		ImmutableList.Builder<Method> builder = ImmutableList.builder();
+		for (Map.Entry<Method, EmissionReport> e : reports.entrySet())
+			if (e.getValue().crosses(threshold))
+				builder.add(e.getKey());
+		return builder.build();
+	}
+
+	/**
+	 * Prints the given reports, one per line, followed by totals and the
+	 * number of methods crossing each threshold.
+	 * @param reports the reports to print
+	 * @param writer the writer to print to
+	 */
+	public static void dump(Iterable<EmissionReport> reports, PrintWriter writer) {
+		int methods = 0, codeLength = 0;
+		Map<Threshold, Integer> crossings = new EnumMap<>(Threshold.class);
+		for (Threshold t : Threshold.values())
+			crossings.put(t, 0);
+		for (EmissionReport r : reports) {
+			writer.println(r);
+			++methods;
+			codeLength += r.getCodeLength();
+			for (Threshold t : r.thresholdsCrossed())
+				crossings.put(t, crossings.get(t) + 1);
+		}
+		writer.format("%d methods, %d bytes of code%n", methods, codeLength);
+		for (Map.Entry<Threshold, Integer> e : crossings.entrySet())
+			writer.format("  %d over %s (%d)%n", e.getValue(), e.getKey(), e.getKey().getLimit());
+		writer.flush();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(owner).append('.').append(name).append(descriptor)
+				.append(": code ").append(codeLength)
+				.append(", locals ").append(maxLocals)
+				.append(", stack ").append(maxStack)
+				.append(", constants ").append(constantPoolEntries);
+		if (!switchStrategies.isEmpty())
+			sb.append(", switches ").append(switchStrategies);
+		ImmutableSet<Threshold> crossed = thresholdsCrossed();
+		if (!crossed.isEmpty())
+			sb.append(", over ").append(crossed);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import edu.mit.streamjit.util.bytecode.insts.ArrayLengthInst;
+import edu.mit.streamjit.util.bytecode.insts.BinaryInst;
+import edu.mit.streamjit.util.bytecode.insts.CastInst;
+import edu.mit.streamjit.util.bytecode.insts.InstanceofInst;
+import edu.mit.streamjit.util.bytecode.insts.Instruction;
+import edu.mit.streamjit.util.bytecode.insts.LoadInst;
+import edu.mit.streamjit.util.bytecode.insts.PhiInst;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Eliminates redundant pure computations by dominator-scoped global value
+ * numbering.
+ *
+ * Walking the dominator tree, each pure instruction is hashed by its opcode,
+ * its operation or type, and its operands; if an equivalent instruction
+ * dominates it, its uses are replaced and it is erased.  Because the earlier
+ * instruction dominates the later one, instructions that may throw (integral
+ * division, arraylength, checkcast) can be eliminated too: if the earlier one
+ * throws, the later one is never reached.
+ *
+ * BinaryInst, CastInst, InstanceofInst and ArrayLengthInst are numbered, as
+ * are phis in the same block with the same incoming values.  Commutative
+ * operations match with their operands in either order.  A LoadInst is only
+ * numbered if it loads a final field outside of a constructor or static
+ * initializer, where the field can't change; other loads are left alone.
+ * @author agent <agent@local>
+ * @since 10/19/2026
+ */
+public final class GlobalValueNumbering {
+	private GlobalValueNumbering() {}
+
+	private static final EnumSet<BinaryInst.Operation> COMMUTATIVE = EnumSet.of(
+			BinaryInst.Operation.ADD, BinaryInst.Operation.MUL,
+			BinaryInst.Operation.AND, BinaryInst.Operation.OR, BinaryInst.Operation.XOR);
+
+	/**
+	 * Eliminates redundant computations in the given method.
+	 * @param method the method to optimize
+	 * @return true iff changes were made
+	 */
+	public static boolean eliminateCommonSubexpressions(Method method) {
+		checkArgument(method.isMutable(), "%s not mutable", method);
+		if (method.basicBlocks().isEmpty())
+			return false;
+		boolean finalFieldsStable = !method.isConstructor() && !method.getName().equals("<clinit>");
+		DominatorTree domTree = new DominatorTree(method);
+		Map<Key, Instruction> table = new HashMap<>();
+		boolean changed = false;
+
+		//Iterative preorder walk, so deep dominator trees don't overflow the
+		//stack.  Each frame remembers the keys its block added, which go out of
+		//scope when the walk leaves the block's subtree.
+		Deque<Frame> stack = new ArrayDeque<>();
+		stack.push(new Frame(method.basicBlocks().get(0), domTree));
+		while (!stack.isEmpty()) {
+			Frame frame = stack.peek();
+			if (!frame.visited) {
+				frame.visited = true;
+				for (Instruction i : ImmutableList.copyOf(frame.block.instructions())) {
+					Key key = key(i, finalFieldsStable);
+					if (key == null)
+						continue;
+					Instruction existing = table.get(key);
+					if (existing != null) {
+						i.replaceInstWithValue(existing);
+						changed = true;
+					} else {
+						table.put(key, i);
+						frame.added.add(key);
+					}
+				}
+			}
+			if (frame.children.hasNext())
+				stack.push(new Frame(frame.children.next(), domTree));
+			else {
+				for (Key k : frame.added)
+					table.remove(k);
+				stack.pop();
+			}
+		}
+		return changed;
+	}
+
+	private static final class Frame {
+		private final BasicBlock block;
+		private final Iterator<BasicBlock> children;
+		private final List<Key> added = new ArrayList<>();
+		private boolean visited = false;
+		private Frame(BasicBlock block, DominatorTree domTree) {
+			this.block = block;
+			this.children = domTree.getChildren(block).iterator();
+		}
+	}
+
+	/**
+	 * Returns the value-numbering key for the given instruction, or null if
+	 * the instruction can't be numbered.
+	 */
+	private static Key key(Instruction i, boolean finalFieldsStable) {
+		if (i instanceof BinaryInst) {
+			BinaryInst bi = (BinaryInst)i;
+			return new Key(COMMUTATIVE.contains(bi.getOperation()),
+					BinaryInst.class, bi.getOperation(), bi.getType(), bi.getOperand(0), bi.getOperand(1));
+		} else if (i instanceof CastInst)
+			return new Key(false, CastInst.class, i.getType(), i.getOperand(0));
+		else if (i instanceof InstanceofInst)
+			return new Key(false, InstanceofInst.class, ((InstanceofInst)i).getTestType(), i.getOperand(0));
+		else if (i instanceof ArrayLengthInst)
+			return new Key(false, ArrayLengthInst.class, i.getOperand(0));
+		else if (i instanceof LoadInst) {
+			LoadInst li = (LoadInst)i;
+			if (!finalFieldsStable || !(li.getLocation() instanceof Field) ||
+					!((Field)li.getLocation()).modifiers().contains(Modifier.FINAL))
+				return null;
+			if (((Field)li.getLocation()).isStatic())
+				return new Key(false, LoadInst.class, li.getLocation());
+			return new Key(false, LoadInst.class, li.getLocation(), li.getInstance());
+		} else if (i instanceof PhiInst) {
+			PhiInst phi = (PhiInst)i;
+			ImmutableMap.Builder<BasicBlock, Value> incoming = ImmutableMap.builder();
+			Iterator<BasicBlock> blocks = phi.predecessors().iterator();
+			Iterator<Value> values = phi.incomingValues().iterator();
+			while (blocks.hasNext())
+				incoming.put(blocks.next(), values.next());
+			return new Key(false, PhiInst.class, phi.getType(), phi.getParent(), incoming.build());
+		}
+		return null;
+	}
+
+	/**
+	 * A value-numbering key: a list of components compared with equals(), the
+	 * last two of which are unordered if the key is commutative.  (Values
+	 * don't override equals(), so operands compare by identity.)
+	 */
+	private static final class Key {
+		private final boolean commutative;
+		private final Object[] components;
+		private Key(boolean commutative, Object... components) {
+			this.commutative = commutative;
+			this.components = components;
+		}
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			if (commutative != other.commutative || components.length != other.components.length)
+				return false;
+			if (Arrays.equals(components, other.components))
+				return true;
+			if (!commutative)
+				return false;
+			int n = components.length;
+			for (int i = 0; i < n-2; ++i)
+				if (!Objects.equals(components[i], other.components[i]))
+					return false;
+			return Objects.equals(components[n-2], other.components[n-1]) &&
+					Objects.equals(components[n-1], other.components[n-2]);
+		}
+		@Override
+		public int hashCode() {
+			if (!commutative)
+				return Arrays.hashCode(components);
+			int n = components.length;
+			int hash = Arrays.hashCode(Arrays.copyOf(components, n-2));
+			//Symmetric in the operands.
+			return 31*hash + Objects.hashCode(components[n-2]) + Objects.hashCode(components[n-1]);
+		}
+	}
+}
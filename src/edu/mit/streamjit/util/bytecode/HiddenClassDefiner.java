@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import edu.mit.streamjit.util.bytecode.types.ArrayType;
+import edu.mit.streamjit.util.bytecode.types.MethodType;
+import edu.mit.streamjit.util.bytecode.types.ReturnType;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Defines classes from Klasses as hidden classes (or, on JVMs predating
+ * hidden classes, as VM-anonymous classes) rather than through a
+ * ModuleClassLoader.
+ *
+ * A class defined by a ModuleClassLoader keeps the loader, and thus the
+ * loader's Module, reachable until every class in the loader is unreachable.
+ * A hidden class is defined by its bytes alone, so it doesn't retain the
+ * Klass or Module it was built from, and it can be unloaded as soon as it
+ * becomes unreachable, independently of other classes.
+ *
+ * Hidden classes are defined in the runtime package and class loader of a
+ * host lookup class, so the Klass must be in the host's package, and it can
+ * only refer to classes visible from the host's class loader (in particular,
+ * not to other Klasses in the Module unless they've been loaded elsewhere).
+ * Other classes can't refer to a hidden class by name; use the returned Class
+ * object (e.g., via method handles or an interface the class implements).
+ * Nor can the hidden class itself name its own type in a descriptor: its
+ * fields can't have its type, and its methods can't take or return it (other
+ * than the implicit receiver), even as an array element type.  References to
+ * the class in code (field accesses, casts and so on) are fine.
+ * @author agent <agent@local>
+ * @since 10/18/2026
+ */
+public final class HiddenClassDefiner {
+	private HiddenClassDefiner() {}
+
+	/**
+	 * Lookup.defineHiddenClass(byte[], boolean, ClassOption...), or null if
+	 * not available.
+	 */
+	private static final java.lang.reflect.Method DEFINE_HIDDEN_CLASS;
+	/**
+	 * An empty ClassOption[], passed to defineHiddenClass so the class is
+	 * neither a nestmate nor strongly reachable from its loader.
+	 */
+	private static final Object NO_CLASS_OPTIONS;
+	/**
+	 * Unsafe.defineAnonymousClass(Class, byte[], Object[]), or null if not
+	 * available.
+	 */
+	private static final java.lang.reflect.Method DEFINE_ANONYMOUS_CLASS;
+	private static final Object UNSAFE;
+	static {
+		java.lang.reflect.Method defineHiddenClass = null;
+		Object noClassOptions = null;
+		try {
+			Class<?> classOption = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			noClassOptions = Array.newInstance(classOption, 0);
+			defineHiddenClass = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+					byte[].class, boolean.class, noClassOptions.getClass());
+		} catch (ClassNotFoundException | NoSuchMethodException ex) {
+			//fall back to Unsafe
+		}
+		DEFINE_HIDDEN_CLASS = defineHiddenClass;
+		NO_CLASS_OPTIONS = noClassOptions;
+
+		java.lang.reflect.Method defineAnonymousClass = null;
+		Object unsafe = null;
+		if (DEFINE_HIDDEN_CLASS == null)
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				java.lang.reflect.Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				unsafe = theUnsafe.get(null);
+				defineAnonymousClass = unsafeClass.getMethod("defineAnonymousClass",
+						Class.class, byte[].class, Object[].class);
+			} catch (ReflectiveOperationException | RuntimeException ex) {
+				unsafe = null;
+				defineAnonymousClass = null;
+			}
+		DEFINE_ANONYMOUS_CLASS = defineAnonymousClass;
+		UNSAFE = unsafe;
+	}
+
+	/**
+	 * Returns true if this JVM supports defining hidden (or VM-anonymous)
+	 * classes.
+	 * @return true iff hidden classes are supported
+	 */
+	public static boolean isSupported() {
+		return DEFINE_HIDDEN_CLASS != null || DEFINE_ANONYMOUS_CLASS != null;
+	}
+
+	/**
+	 * Unresolves the given Klass and defines it as a hidden class in the
+	 * given host lookup's package.  Huge methods aren't split (the JIT won't
+	 * compile them, and methods over 64KB of code can't be defined).  The
+	 * Klass isn't retained, so if nothing else refers to its Module, the
+	 * Module may be collected as soon as this method returns.
+	 * @param klass the klass to define
+	 * @param host a lookup with private access to a class in the klass's
+	 * package
+	 * @return the defined class
+	 * @throws IllegalArgumentException if the klass isn't in the host's
+	 * package, or if a field or method descriptor names the klass itself
+	 */
+	public static Class<?> define(Klass klass, MethodHandles.Lookup host) {
+		checkNotNull(klass);
+		checkNotNull(host);
+		checkArgument(packageOf(klass.getName()).equals(packageOf(host.lookupClass().getName())),
+				"%s not in package of host %s", klass.getName(), host.lookupClass().getName());
+		checkNoSelfReferences(klass);
+		//Don't split: split helpers of instance methods take the instance as a
+		//parameter typed with the class's own name, which a hidden class can't
+		//resolve.
+		return define(KlassUnresolver.unresolve(klass), host);
+	}
+
+	/**
+	 * Defines the given class bytes as a hidden class in the given host
+	 * lookup's package.
+	 * @param bytes the class file bytes
+	 * @param host a lookup with private access to a class in the bytes'
+	 * package
+	 * @return the defined class
+	 */
+	public static Class<?> define(byte[] bytes, MethodHandles.Lookup host) {
+		checkNotNull(bytes);
+		checkNotNull(host);
+		if (!isSupported())
+			throw new UnsupportedOperationException("hidden classes not supported on this JVM");
+		try {
+			if (DEFINE_HIDDEN_CLASS != null)
+				return ((MethodHandles.Lookup)DEFINE_HIDDEN_CLASS.invoke(host, bytes, true, NO_CLASS_OPTIONS)).lookupClass();
+			return (Class<?>)DEFINE_ANONYMOUS_CLASS.invoke(UNSAFE, host.lookupClass(), bytes, null);
+		} catch (InvocationTargetException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new RuntimeException(cause);
+		} catch (IllegalAccessException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Checks that no field or method descriptor of the given Klass names the
+	 * Klass, as a hidden class can't resolve its own name.  (Defining such a
+	 * class "succeeds", then throws NoClassDefFoundError when the descriptor
+	 * is first resolved.)
+	 */
+	private static void checkNoSelfReferences(Klass klass) {
+		for (Field f : klass.fields())
+			checkArgument(!names(f.getType().getFieldType(), klass),
+					"hidden class %s can't have field %s of its own type", klass.getName(), f.getName());
+		for (Method m : klass.methods()) {
+			MethodType type = m.getType();
+			if (m.hasReceiver())
+				type = type.dropFirstArgument();
+			List<ReturnType> types = new ArrayList<ReturnType>(type.getParameterTypes());
+			//A constructor's return type is the class, but its descriptor
+			//returns void.
+			if (!m.isConstructor())
+				types.add(type.getReturnType());
+			for (ReturnType t : types)
+				checkArgument(!names(t, klass),
+						"hidden class %s can't have method %s taking or returning its own type", klass.getName(), m.getName());
+		}
+	}
+
+	private static boolean names(ReturnType type, Klass klass) {
+		if (type instanceof ArrayType)
+			type = ((ArrayType)type).getElementType();
+		return type.getKlass() == klass;
+	}
+
+	private static String packageOf(String className) {
+		int lastDot = className.lastIndexOf('.');
+		return lastDot == -1 ? "" : className.substring(0, lastDot);
+	}
+}
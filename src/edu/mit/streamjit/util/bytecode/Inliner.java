@@ -0,0 +1,470 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import edu.mit.streamjit.util.bytecode.insts.CallInst;
+import edu.mit.streamjit.util.bytecode.insts.CastInst;
+import edu.mit.streamjit.util.bytecode.insts.InstanceofInst;
+import edu.mit.streamjit.util.bytecode.insts.Instruction;
+import edu.mit.streamjit.util.bytecode.insts.JumpInst;
+import edu.mit.streamjit.util.bytecode.insts.LoadInst;
+import edu.mit.streamjit.util.bytecode.insts.NewArrayInst;
+import edu.mit.streamjit.util.bytecode.insts.PhiInst;
+import edu.mit.streamjit.util.bytecode.insts.ReturnInst;
+import edu.mit.streamjit.util.bytecode.insts.StoreInst;
+import edu.mit.streamjit.util.bytecode.types.ReferenceType;
+import edu.mit.streamjit.util.bytecode.types.Type;
+import edu.mit.streamjit.util.bytecode.types.VoidType;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inlines calls to methods whose target is known statically (static, private
+ * and final methods, methods of final classes, and calls marked direct by
+ * {@link Devirtualizer}) by splicing a clone of the callee's body into the
+ * caller.
+ *
+ * The call's block is split at the call; the callee's arguments are replaced
+ * by the call's arguments, and its returns become jumps to the continuation
+ * block, where a phi merges the returned values.  If the callee has a
+ * receiver that isn't known to be non-null, a call to getClass() is inserted
+ * to preserve the NullPointerException.
+ *
+ * Calls are only inlined when the callee's body can be moved without changing
+ * its meaning: constructors, synchronized or strictfp (into non-strictfp)
+ * methods, methods with exception handlers (which the IR doesn't represent),
+ * methods that never return, and methods referring to classes or members the
+ * caller can't access are never inlined.  Which of the remaining calls are
+ * inlined is decided by a CostModel.
+ * @author agent <agent@local>
+ * @since 10/19/2026
+ */
+public final class Inliner {
+	/**
+	 * Decides which calls to inline.  The default implementation compares the
+	 * callee's size in IR instructions, less a bonus for each constant
+	 * argument (which later constant propagation can exploit), against a
+	 * threshold, and limits the caller's size and the inlining depth.
+	 * Subclasses can override shouldInline() to use other criteria.
+	 */
+	public static class CostModel {
+		public static final CostModel DEFAULT = new CostModel(60, 10, 4000, 6);
+		private final int threshold, constantArgumentBonus, maxCallerSize, maxDepth;
+		/**
+		 * Creates a new CostModel.
+		 * @param threshold the maximum cost of an inlined callee
+		 * @param constantArgumentBonus the cost reduction for each constant
+		 * argument
+		 * @param maxCallerSize the size, in IR instructions, beyond which a
+		 * caller won't grow
+		 * @param maxDepth the maximum depth of nested inlining (calls in the
+		 * original method have depth 0)
+		 */
+		public CostModel(int threshold, int constantArgumentBonus, int maxCallerSize, int maxDepth) {
+			checkArgument(maxCallerSize >= 0 && maxDepth >= 0);
+			this.threshold = threshold;
+			this.constantArgumentBonus = constantArgumentBonus;
+			this.maxCallerSize = maxCallerSize;
+			this.maxDepth = maxDepth;
+		}
+
+		/**
+		 * Returns the cost of inlining the given call: the size of the callee
+		 * less the constant argument bonus and the size of the call itself.
+		 * @param call the call
+		 * @param calleeSize the callee's size in IR instructions
+		 * @return the cost of inlining the call
+		 */
+		public int cost(CallInst call, int calleeSize) {
+			int constantArguments = 0;
+			for (Value v : call.arguments())
+				if (v instanceof Constant)
+					++constantArguments;
+			return calleeSize - constantArguments * constantArgumentBonus - call.getNumOperands();
+		}
+
+		/**
+		 * Returns true if the given call should be inlined.
+		 * @param call the call
+		 * @param calleeSize the callee's size in IR instructions
+		 * @param callerSize the caller's current size in IR instructions
+		 * @param depth the number of inlined calls the call is nested in
+		 * @return true iff the call should be inlined
+		 */
+		public boolean shouldInline(CallInst call, int calleeSize, int callerSize, int depth) {
+			return depth <= maxDepth && callerSize + calleeSize <= maxCallerSize &&
+					cost(call, calleeSize) <= threshold;
+		}
+	}
+
+	private final Method method;
+	private final CostModel costModel;
+	/**
+	 * Callee sizes, or -1 for callees that can't be inlined.
+	 */
+	private final Map<Method, Integer> calleeSizes = new IdentityHashMap<>();
+	private Inliner(Method method, CostModel costModel) {
+		this.method = method;
+		this.costModel = costModel;
+	}
+
+	/**
+	 * Inlines calls in the given method according to the default cost model.
+	 * @param method the method to inline calls into
+	 * @return true iff changes were made
+	 */
+	public static boolean inlineCalls(Method method) {
+		return inlineCalls(method, CostModel.DEFAULT);
+	}
+
+	/**
+	 * Inlines calls in the given method according to the given cost model.
+	 * Calls in inlined code are considered in turn, but a method is never
+	 * inlined into its own body.
+	 * @param method the method to inline calls into
+	 * @param costModel the cost model
+	 * @return true iff changes were made
+	 */
+	public static boolean inlineCalls(Method method, CostModel costModel) {
+		checkArgument(method.isMutable(), "%s not mutable", method);
+		checkNotNull(costModel);
+		return new Inliner(method, costModel).run();
+	}
+
+	/**
+	 * Returns true if the given call can be inlined.  Resolves the callee if
+	 * necessary.
+	 * @param call a call in a mutable method
+	 * @return true iff the call can be inlined
+	 */
+	public static boolean canInline(CallInst call) {
+		checkArgument(call.getParent() != null && call.getParent().getParent() != null, "%s not in a method", call);
+		return new Inliner(call.getParent().getParent(), CostModel.DEFAULT).size(call) >= 0;
+	}
+
+	/**
+	 * Inlines the given call, regardless of its cost.
+	 * @param call a call for which canInline() returns true
+	 * @return the calls in the inlined code
+	 */
+	public static ImmutableList<CallInst> inline(CallInst call) {
+		checkArgument(canInline(call), "can't inline %s", call);
+		return inlineUnchecked(call);
+	}
+
+	private boolean run() {
+		//Inline history: the methods each call was inlined through, to stop
+		//recursive expansion.
+		Map<CallInst, List<Method>> history = new IdentityHashMap<>();
+		Deque<CallInst> worklist = new ArrayDeque<>();
+		int callerSize = 0;
+		for (BasicBlock block : method.basicBlocks())
+			for (Instruction i : block.instructions()) {
+				++callerSize;
+				if (i instanceof CallInst) {
+					worklist.addLast((CallInst)i);
+					history.put((CallInst)i, ImmutableList.<Method>of());
+				}
+			}
+
+		boolean changed = false;
+		while (!worklist.isEmpty()) {
+			CallInst call = worklist.removeFirst();
+			List<Method> chain = history.remove(call);
+			Method callee = call.getMethod();
+			if (callee == method || chain.contains(callee))
+				continue;
+			int calleeSize = size(call);
+			if (calleeSize < 0 || !costModel.shouldInline(call, calleeSize, callerSize, chain.size()))
+				continue;
+			List<Method> newChain = ImmutableList.<Method>builder().addAll(chain).add(callee).build();
+			for (CallInst c : inlineUnchecked(call)) {
+				worklist.addLast(c);
+				history.put(c, newChain);
+			}
+			callerSize += calleeSize;
+			changed = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * Returns the callee's size in IR instructions, or -1 if the call can't be
+	 * inlined.
+	 */
+	private int size(CallInst call) {
+		Method callee = call.getMethod();
+		if (!isStaticallyBound(call))
+			return -1;
+		if (!canInlineInto(callee, method))
+			return -1;
+		Integer size = calleeSizes.get(callee);
+		if (size == null) {
+			size = computeSize(callee);
+			calleeSizes.put(callee, size);
+		}
+		return size;
+	}
+
+	private static boolean isStaticallyBound(CallInst call) {
+		Method callee = call.getMethod();
+		if (callee.isConstructor() || callee.isSignaturePolymorphic() || !callee.isResolvable())
+			return false;
+		if (callee.modifiers().contains(Modifier.SYNCHRONIZED))
+			return false;
+		return call.isDirect() ||
+				callee.modifiers().contains(Modifier.STATIC) ||
+				callee.getAccess() == Access.PRIVATE ||
+				callee.modifiers().contains(Modifier.FINAL) ||
+				callee.getParent().modifiers().contains(Modifier.FINAL);
+	}
+
+	private static boolean canInlineInto(Method callee, Method caller) {
+		//A strictfp callee's floating-point semantics would be lost.
+		if (callee.modifiers().contains(Modifier.STRICT) && !caller.modifiers().contains(Modifier.STRICT))
+			return false;
+		try {
+			//The resolver skips exception handlers, so the resolved body
+			//wouldn't behave like the callee.
+			if (!callee.isMutable() && !MethodNodeBuilder.buildMethodNode(callee).tryCatchBlocks.isEmpty())
+				return false;
+			//A failed resolution leaves the callee unresolved, so this is
+			//safe to retry at each call site.
+			callee.resolve();
+		} catch (IOException | NoSuchMethodException | RuntimeException | AssertionError ex) {
+			//Neither ASM nor the resolver handles all bytecode (and the
+			//resolver asserts on some of it), so anything we can't read or
+			//resolve isn't inlined.
+			return false;
+		}
+		if (callee.basicBlocks().isEmpty())
+			return false;
+		//When the first instruction is a loop header, the resolver loses the
+		//header's phis (there's no entry edge to hang the arguments on), so
+		//the body doesn't stand on its own.
+		if (!Iterables.isEmpty(callee.basicBlocks().get(0).predecessors()))
+			return false;
+
+		Klass from = caller.getParent();
+		boolean returns = false;
+		for (BasicBlock block : callee.basicBlocks())
+			for (Instruction i : block.instructions()) {
+				if (i instanceof ReturnInst)
+					returns = true;
+				for (Value v : i.operands())
+					if (v instanceof UninitializedValue)
+						return false;
+					else if (v instanceof Constant && ((Constant<?>)v).getConstant() instanceof Class &&
+							!isAccessible(from, from.getParent().getKlass((Class<?>)((Constant<?>)v).getConstant())))
+						return false;
+				if (i instanceof CallInst) {
+					Method m = ((CallInst)i).getMethod();
+					if (!isAccessible(from, m.getParent(), m.getAccess()))
+						return false;
+					//Calls to overridden superclass methods are emitted as
+					//invokespecial based on the class containing the call.
+					if (!m.modifiers().contains(Modifier.STATIC) &&
+							isSuperCall(callee.getParent(), m) != isSuperCall(from, m))
+						return false;
+				} else if (i instanceof LoadInst || i instanceof StoreInst) {
+					Value location = i instanceof LoadInst ? ((LoadInst)i).getLocation() : ((StoreInst)i).getLocation();
+					if (location instanceof Field &&
+							!isAccessible(from, ((Field)location).getParent(), ((Field)location).getAccess()))
+						return false;
+				} else if (i instanceof CastInst || i instanceof NewArrayInst) {
+					if (!isAccessible(from, i.getType()))
+						return false;
+				} else if (i instanceof InstanceofInst)
+					if (!isAccessible(from, ((InstanceofInst)i).getTestType()))
+						return false;
+			}
+		return returns;
+	}
+
+	private static int computeSize(Method callee) {
+		int size = 0;
+		for (BasicBlock block : callee.basicBlocks())
+			size += block.instructions().size();
+		return size;
+	}
+
+	static boolean isSuperCall(Klass from, Method m) {
+		return !m.isConstructor() && m.getAccess() != Access.PRIVATE &&
+				Iterables.contains(from.superclasses(), m.getParent()) &&
+				from.getMethodByVirtual(m.getName(), m.getType()) != m;
+	}
+
+	static boolean isAccessible(Klass from, Type type) {
+		if (!(type instanceof ReferenceType))
+			return true;
+		return isAccessible(from, ((ReferenceType)type).getKlass());
+	}
+
+	static boolean isAccessible(Klass from, Klass klass) {
+		if (klass.isArray())
+			klass = klass.getElementKlass();
+		if (klass.getBackingClass() != null && klass.getBackingClass().isPrimitive())
+			return true;
+		return klass == from || klass.modifiers().contains(Modifier.PUBLIC) || samePackage(from, klass);
+	}
+
+	static boolean isAccessible(Klass from, Klass owner, Access access) {
+		if (!isAccessible(from, owner))
+			return false;
+		switch (access) {
+			case PUBLIC:
+				return true;
+			case PRIVATE:
+				return owner == from;
+			default:
+				//Conservatively ignore protected access through subclassing.
+				return owner == from || samePackage(from, owner);
+		}
+	}
+
+	/**
+	 * Returns true if the given classes are in the same runtime package (same
+	 * package name and class loader).  Mutable classes are all loaded by the
+	 * same ModuleClassLoader.
+	 */
+	static boolean samePackage(Klass a, Klass b) {
+		if (!packageOf(a.getName()).equals(packageOf(b.getName())))
+			return false;
+		if (a.isMutable() || b.isMutable())
+			return a.isMutable() && b.isMutable();
+		return a.getBackingClass().getClassLoader() == b.getBackingClass().getClassLoader();
+	}
+
+	private static String packageOf(String className) {
+		int lastDot = className.lastIndexOf('.');
+		return lastDot == -1 ? "" : className.substring(0, lastDot);
+	}
+
+	private static ImmutableList<CallInst> inlineUnchecked(CallInst call) {
+		Method callee = call.getMethod();
+		BasicBlock block = call.getParent();
+		Method caller = block.getParent();
+		Module module = caller.getParent().getParent();
+
+		//Split the block at the call, retargeting our successors' phis.
+		BasicBlock continuation = new BasicBlock(module);
+		continuation.setFrequency(block.getFrequency());
+		caller.basicBlocks().add(caller.basicBlocks().indexOf(block)+1, continuation);
+		List<Instruction> insts = block.instructions();
+		for (Instruction i : ImmutableList.copyOf(insts.subList(insts.indexOf(call), insts.size())))
+			continuation.instructions().add(i.removeFromParent());
+		for (Use u : block.uses())
+			if (u.getUser() instanceof PhiInst)
+				u.setOperand(continuation);
+
+		Map<Value, Value> vmap = new IdentityHashMap<>();
+		for (int i = 0; i < callee.arguments().size(); ++i) {
+			Argument param = callee.arguments().get(i);
+			Value arg = call.getArgument(i);
+			//Sub-int values can be passed to other sub-int parameter types.
+			if (!arg.getType().isSubtypeOf(param.getType())) {
+				CastInst cast = new CastInst(param.getType(), arg);
+				block.instructions().add(cast);
+				arg = cast;
+			}
+			vmap.put(param, arg);
+		}
+		if (callee.hasReceiver() && !knownNonNull(call.getArgument(0), caller)) {
+			Klass object = module.getKlass(Object.class);
+			Method getClass = object.getMethod("getClass", module.types().getMethodType(Class.class, Object.class));
+			block.instructions().add(new CallInst(getClass, call.getArgument(0)));
+		}
+		if (callee.isMutable())
+			for (LocalVariable v : callee.localVariables())
+				vmap.put(v, new LocalVariable(v.getType().getFieldType(), v.getName(), caller));
+
+		//Clone the body between the block and the continuation.
+		double frequencyScale = block.getFrequency() / callee.basicBlocks().get(0).getFrequency();
+		if (Double.isInfinite(frequencyScale))
+			frequencyScale = Double.NaN;
+		List<BasicBlock> body = new ArrayList<>();
+		for (BasicBlock b : callee.basicBlocks()) {
+			BasicBlock clone = Cloning.cloneBasicBlock(b, vmap);
+			clone.setFrequency(b.getFrequency() * frequencyScale);
+			vmap.put(b, clone);
+			body.add(clone);
+		}
+		caller.basicBlocks().addAll(caller.basicBlocks().indexOf(continuation), body);
+		ImmutableList.Builder<CallInst> calls = ImmutableList.builder();
+		List<BasicBlock> returningBlocks = new ArrayList<>();
+		List<Value> returnedValues = new ArrayList<>();
+		for (BasicBlock b : body)
+			for (Instruction i : ImmutableList.copyOf(b.instructions())) {
+				for (int j = 0; j < i.getNumOperands(); ++j)
+					if (vmap.containsKey(i.getOperand(j)))
+						i.setOperand(j, vmap.get(i.getOperand(j)));
+				if (i instanceof CallInst)
+					calls.add((CallInst)i);
+				else if (i instanceof ReturnInst) {
+					returningBlocks.add(b);
+					if (i.getNumOperands() > 0)
+						returnedValues.add(i.getOperand(0));
+					i.eraseFromParent();
+					b.instructions().add(new JumpInst(continuation));
+				}
+			}
+		block.instructions().add(new JumpInst(body.get(0)));
+
+		if (!(call.getType() instanceof VoidType)) {
+			Value result;
+			if (returnedValues.size() == 1)
+				result = returnedValues.get(0);
+			else {
+				PhiInst phi = new PhiInst(call.getType());
+				for (int i = 0; i < returningBlocks.size(); ++i)
+					phi.put(returningBlocks.get(i), returnedValues.get(i));
+				continuation.instructions().add(0, phi);
+				result = phi;
+			}
+			call.replaceAllUsesWith(result);
+		}
+		call.eraseFromParent();
+		return calls.build();
+	}
+
+	/**
+	 * Returns true if the given value is known not to be null: the caller's
+	 * receiver, a newly-created object, or a non-null constant.
+	 */
+	private static boolean knownNonNull(Value v, Method caller) {
+		if (caller.hasReceiver() && !caller.isConstructor() && v == caller.arguments().get(0))
+			return true;
+		if (v instanceof CallInst && ((CallInst)v).getMethod().isConstructor())
+			return true;
+		if (v instanceof NewArrayInst)
+			return true;
+		return v instanceof Constant && ((Constant<?>)v).getConstant() != null;
+	}
+}
@@ -0,0 +1,542 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import edu.mit.streamjit.util.bytecode.insts.ArrayLengthInst;
+import edu.mit.streamjit.util.bytecode.insts.BinaryInst;
+import edu.mit.streamjit.util.bytecode.insts.BranchInst;
+import edu.mit.streamjit.util.bytecode.insts.CastInst;
+import edu.mit.streamjit.util.bytecode.insts.Instruction;
+import edu.mit.streamjit.util.bytecode.types.PrimitiveType;
+import edu.mit.streamjit.util.bytecode.types.Type;
+import edu.mit.streamjit.util.bytecode.types.TypeFactory;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Simplifies arithmetic, casts and comparisons with local algebraic rewrites.
+ * Each instruction is examined once, then again only when an instruction it
+ * uses is rewritten, so the pass is cheap enough to run after inlining and
+ * constant propagation have exposed new opportunities.
+ *
+ * Integral rewrites include identities (x+0, x*1, x&-1, x|0, x^0, shifts by
+ * 0), annihilators (x*0, x&0, x|-1), self-operations (x-x, x^x, x&x, x|x),
+ * double negation, strength reduction of multiplication by a power of two to
+ * a shift and of division and remainder by a power of two to a shift and mask
+ * when the dividend is known non-negative, and reassociation of chained
+ * constant operands.  Floating-point rewrites are limited to those exact for
+ * all inputs, including -0.0 and NaN.  Casts that can't change their operand
+ * are removed, and cast chains are shortened.  Branches comparing a CMP result
+ * against 1 or -1 are rewritten to compare against 0.
+ *
+ * Negation is represented as multiplication by -1 (that's how the resolver
+ * translates INEG and friends).
+ * @author agent <agent@local>
+ * @since 10/19/2026
+ */
+public final class InstCombine {
+	/**
+	 * How far isNonNegative() looks through operands.
+	 */
+	private static final int MAX_NON_NEGATIVE_DEPTH = 4;
+	private final TypeFactory types;
+	private final ConstantFactory constants;
+	private final Deque<Instruction> worklist = new ArrayDeque<>();
+	private final Set<Instruction> queued = Collections.newSetFromMap(new IdentityHashMap<Instruction, Boolean>());
+	private InstCombine(Method method) {
+		this.types = method.getParent().getParent().types();
+		this.constants = method.getParent().getParent().constants();
+		for (BasicBlock block : method.basicBlocks())
+			for (Instruction i : block.instructions())
+				enqueue(i);
+	}
+
+	/**
+	 * Simplifies instructions in the given method.
+	 * @param method the method to optimize
+	 * @return true iff changes were made
+	 */
+	public static boolean combineInstructions(Method method) {
+		checkArgument(method.isMutable(), "%s not mutable", method);
+		return new InstCombine(method).run();
+	}
+
+	private void enqueue(Instruction i) {
+		if (queued.add(i))
+			worklist.addLast(i);
+	}
+
+	private boolean run() {
+		boolean changed = false;
+		while (!worklist.isEmpty()) {
+			Instruction i = worklist.removeFirst();
+			queued.remove(i);
+			if (i.getParent() == null)
+				continue;
+			Value replacement;
+			if (i instanceof BinaryInst)
+				replacement = simplify((BinaryInst)i);
+			else if (i instanceof CastInst)
+				replacement = simplify((CastInst)i);
+			else if (i instanceof BranchInst)
+				replacement = simplify((BranchInst)i);
+			else
+				replacement = null;
+			if (replacement == null)
+				continue;
+			changed = true;
+			for (User u : i.users())
+				if (u instanceof Instruction)
+					enqueue((Instruction)u);
+			if (replacement instanceof Instruction) {
+				Instruction newInst = (Instruction)replacement;
+				if (newInst.getParent() == null)
+					i.getParent().instructions().add(i.getParent().instructions().indexOf(i), newInst);
+				enqueue(newInst);
+			}
+			List<Value> operands = ImmutableList.copyOf(i.operands());
+			i.replaceInstWithValue(replacement);
+			for (Value v : operands)
+				eraseIfTriviallyDead(v);
+		}
+		return changed;
+	}
+
+	/**
+	 * Erases the given value if it's an unused instruction without side
+	 * effects, then its operands if they become unused.  Rewrites often leave
+	 * the instructions they looked through behind.
+	 */
+	private static void eraseIfTriviallyDead(Value value) {
+		Deque<Value> dead = new ArrayDeque<>();
+		dead.add(value);
+		while (!dead.isEmpty()) {
+			Value v = dead.pop();
+			if (!(v instanceof Instruction) || ((Instruction)v).getParent() == null || !v.uses().isEmpty())
+				continue;
+			boolean sideEffectFree;
+			if (v instanceof BinaryInst) {
+				BinaryInst bi = (BinaryInst)v;
+				sideEffectFree = !bi.getType().isIntegral() ||
+						(bi.getOperation() != BinaryInst.Operation.DIV && bi.getOperation() != BinaryInst.Operation.REM) ||
+						!isZero(bi.getOperand(1)) && integerConstant(bi.getOperand(1)) != null;
+			} else
+				sideEffectFree = v instanceof CastInst && v.getType() instanceof PrimitiveType;
+			if (!sideEffectFree)
+				continue;
+			List<Value> operands = ImmutableList.copyOf(((Instruction)v).operands());
+			((Instruction)v).eraseFromParent();
+			dead.addAll(operands);
+		}
+	}
+
+	private Value simplify(BinaryInst i) {
+		BinaryInst.Operation op = i.getOperation();
+		PrimitiveType type = i.getType();
+		Value a = i.getOperand(0), b = i.getOperand(1);
+		if (op == BinaryInst.Operation.CMP || op == BinaryInst.Operation.CMPG) {
+			//Only long comparisons are reflexive (NaN != NaN).
+			if (a == b && a.getType().equals(type(long.class)))
+				return constant(type, 0);
+			return null;
+		}
+		if (!type.isIntegral())
+			return simplifyFloatingPoint(i, op, a, b);
+
+		boolean isLong = type.equals(type(long.class));
+		Long ca = integerConstant(a), cb = integerConstant(b);
+		if (ca != null && cb != null) {
+			Long folded = fold(op, ca, cb, isLong);
+			return folded != null ? constant(type, folded) : null;
+		}
+		//Look for constants on the right of commutative operations.
+		if (ca != null && isCommutative(op)) {
+			Value t = a;
+			a = b;
+			b = t;
+			cb = ca;
+			ca = null;
+		}
+		int bits = isLong ? 64 : 32;
+		switch (op) {
+			case ADD:
+				if (cb != null && cb == 0)
+					return identity(i, a);
+				if (cb != null && isOp(a, BinaryInst.Operation.ADD) && integerConstant(operand(a, 1)) != null)
+					return new BinaryInst(operand(a, 0), op, constant(type, integerConstant(operand(a, 1)) + cb));
+				//x + -y => x - y
+				if (isNegation(b))
+					return new BinaryInst(a, BinaryInst.Operation.SUB, operand(b, 0));
+				if (isNegation(a))
+					return new BinaryInst(b, BinaryInst.Operation.SUB, operand(a, 0));
+				return null;
+			case SUB:
+				if (cb != null && cb == 0)
+					return identity(i, a);
+				if (a == b)
+					return constant(type, 0);
+				//x - c => x + -c, to expose reassociation
+				if (cb != null)
+					return new BinaryInst(a, BinaryInst.Operation.ADD, constant(type, -cb));
+				if (isNegation(b))
+					return new BinaryInst(a, BinaryInst.Operation.ADD, operand(b, 0));
+				//0 - (0 - x) => x
+				if (ca != null && ca == 0 && isOp(b, BinaryInst.Operation.SUB) && isZero(operand(b, 0)))
+					return identity(i, operand(b, 1));
+				return null;
+			case MUL:
+				if (cb == null)
+					return null;
+				if (cb == 0)
+					return constant(type, 0);
+				if (cb == 1)
+					return identity(i, a);
+				//-(-x) => x
+				if (cb == -1 && isNegation(a))
+					return identity(i, operand(a, 0));
+				if (cb > 1 && Long.bitCount(cb) == 1)
+					return new BinaryInst(a, BinaryInst.Operation.SHL, constants.getConstant(Long.numberOfTrailingZeros(cb)));
+				if (isOp(a, BinaryInst.Operation.MUL) && integerConstant(operand(a, 1)) != null)
+					return new BinaryInst(operand(a, 0), op, constant(type, integerConstant(operand(a, 1)) * cb));
+				return null;
+			case DIV:
+				if (cb == null)
+					return null;
+				if (cb == 1)
+					return identity(i, a);
+				//MIN_VALUE / -1 == MIN_VALUE * -1 (both overflow to MIN_VALUE)
+				if (cb == -1)
+					return new BinaryInst(a, BinaryInst.Operation.MUL, constant(type, -1));
+				if (cb > 1 && Long.bitCount(cb) == 1 && isNonNegative(a, 0))
+					return new BinaryInst(a, BinaryInst.Operation.SHR, constants.getConstant(Long.numberOfTrailingZeros(cb)));
+				return null;
+			case REM:
+				if (cb == null)
+					return null;
+				if (cb == 1 || cb == -1)
+					return constant(type, 0);
+				if (cb > 1 && Long.bitCount(cb) == 1 && isNonNegative(a, 0))
+					return new BinaryInst(a, BinaryInst.Operation.AND, constant(type, cb - 1));
+				return null;
+			case AND:
+				if (a == b)
+					return identity(i, a);
+				if (cb == null)
+					return null;
+				if (cb == 0)
+					return constant(type, 0);
+				if (cb == -1)
+					return identity(i, a);
+				if (isOp(a, op) && integerConstant(operand(a, 1)) != null)
+					return new BinaryInst(operand(a, 0), op, constant(type, integerConstant(operand(a, 1)) & cb));
+				return null;
+			case OR:
+				if (a == b)
+					return identity(i, a);
+				if (cb == null)
+					return null;
+				if (cb == 0)
+					return identity(i, a);
+				if (cb == -1)
+					return constant(type, -1);
+				if (isOp(a, op) && integerConstant(operand(a, 1)) != null)
+					return new BinaryInst(operand(a, 0), op, constant(type, integerConstant(operand(a, 1)) | cb));
+				return null;
+			case XOR:
+				if (a == b)
+					return constant(type, 0);
+				if (cb == null)
+					return null;
+				if (cb == 0)
+					return identity(i, a);
+				if (isOp(a, op) && integerConstant(operand(a, 1)) != null)
+					return new BinaryInst(operand(a, 0), op, constant(type, integerConstant(operand(a, 1)) ^ cb));
+				return null;
+			case SHL:
+			case SHR:
+			case USHR:
+				if (cb == null)
+					return null;
+				//The JVM masks shift distances.
+				long distance = cb & (bits - 1);
+				if (distance == 0)
+					return identity(i, a);
+				if (distance != cb)
+					return new BinaryInst(a, op, constants.getConstant((int)distance));
+				if (isOp(a, op) && integerConstant(operand(a, 1)) != null) {
+					long inner = integerConstant(operand(a, 1)) & (bits - 1);
+					if (inner + distance < bits)
+						return new BinaryInst(operand(a, 0), op, constants.getConstant((int)(inner + distance)));
+				}
+				return null;
+			default:
+				return null;
+		}
+	}
+
+	private Value simplifyFloatingPoint(BinaryInst i, BinaryInst.Operation op, Value a, Value b) {
+		if (op == BinaryInst.Operation.MUL && (isFloatingConstant(a, 1) || isFloatingConstant(a, -1))) {
+			Value t = a;
+			a = b;
+			b = t;
+		}
+		switch (op) {
+			case ADD:
+				//x + -0.0 == x, but -0.0 + 0.0 == 0.0.
+				return isFloatingConstant(b, -0.0) ? identity(i, a) : null;
+			case SUB:
+				return isFloatingConstant(b, 0.0) ? identity(i, a) : null;
+			case MUL:
+				if (isFloatingConstant(b, 1))
+					return identity(i, a);
+				if (isFloatingConstant(b, -1) && isNegation(a))
+					return identity(i, operand(a, 0));
+				return null;
+			case DIV:
+				return isFloatingConstant(b, 1) ? identity(i, a) : null;
+			default:
+				return null;
+		}
+	}
+
+	private Value simplify(CastInst i) {
+		Value source = i.getOperand(0);
+		Type to = i.getType();
+		if (source.getType().isSubtypeOf(to))
+			return identity(i, source);
+		if (!(source instanceof CastInst))
+			return null;
+		Value original = ((CastInst)source).getOperand(0);
+		Type middle = source.getType();
+		if (!(to instanceof PrimitiveType) || !(original.getType() instanceof PrimitiveType))
+			return null;
+		//Converting to a wider type and back loses nothing.
+		if (original.getType().isSubtypeOf(to) && isLosslessWidening(original.getType(), middle))
+			return identity(i, original);
+		//Narrowing to fewer bits after narrowing only keeps bits both keep.
+		int outer = integralBits(to), inner = integralBits(middle);
+		if (outer > 0 && inner > 0 && outer <= inner && integralBits(original.getType()) > 0)
+			return new CastInst(to, original);
+		return null;
+	}
+
+	private Value simplify(BranchInst i) {
+		Value a = i.getOperand(0), b = i.getOperand(1);
+		if (!isOp(a, BinaryInst.Operation.CMP) && !isOp(a, BinaryInst.Operation.CMPG))
+			return null;
+		Long cb = integerConstant(b);
+		if (cb == null)
+			return null;
+		//CMP produces -1, 0 or 1; compare against 0 instead (which the
+		//peephole optimizer turns into IFxx).
+		BranchInst.Sense sense = null;
+		if (cb == 1)
+			switch (i.getSense()) {
+				case EQ: case GE: sense = BranchInst.Sense.GT; break;
+				case NE: case LT: sense = BranchInst.Sense.LE; break;
+				default: break;
+			}
+		else if (cb == -1)
+			switch (i.getSense()) {
+				case EQ: case LE: sense = BranchInst.Sense.LT; break;
+				case NE: case GT: sense = BranchInst.Sense.GE; break;
+				default: break;
+			}
+		if (sense == null)
+			return null;
+		return new BranchInst(a, sense, constants.getConstant(0),
+				(BasicBlock)i.getOperand(2), (BasicBlock)i.getOperand(3));
+	}
+
+	/**
+	 * Returns the given value as the replacement for the given instruction if
+	 * its type allows, or null.
+	 */
+	private static Value identity(Instruction i, Value v) {
+		return v.getType().isSubtypeOf(i.getType()) ? v : null;
+	}
+
+	private boolean isNonNegative(Value v, int depth) {
+		if (depth > MAX_NON_NEGATIVE_DEPTH)
+			return false;
+		Long c = integerConstant(v);
+		if (c != null)
+			return c >= 0;
+		Type type = v.getType();
+		if (type.equals(type(char.class)) || type.equals(type(boolean.class)))
+			return true;
+		if (v instanceof ArrayLengthInst)
+			return true;
+		if (!(v instanceof BinaryInst))
+			return false;
+		BinaryInst bi = (BinaryInst)v;
+		Value a = bi.getOperand(0), b = bi.getOperand(1);
+		Long cb = integerConstant(b);
+		int bits = bi.getType().equals(type(long.class)) ? 64 : 32;
+		switch (bi.getOperation()) {
+			case AND:
+				return isNonNegative(a, depth+1) || isNonNegative(b, depth+1);
+			case USHR:
+				return cb != null && (cb & (bits - 1)) != 0;
+			case SHR:
+			case REM:
+				return isNonNegative(a, depth+1);
+			case DIV:
+				return isNonNegative(a, depth+1) && cb != null && cb > 0;
+			default:
+				return false;
+		}
+	}
+
+	private static boolean isLosslessWidening(Type from, Type to) {
+		TypeFactory types = from.getTypeFactory();
+		PrimitiveType intType = types.getPrimitiveType(int.class);
+		if (to.equals(types.getPrimitiveType(long.class)))
+			return from.isSubtypeOf(intType);
+		if (to.equals(types.getPrimitiveType(double.class)))
+			return from.isSubtypeOf(intType) || from.equals(types.getPrimitiveType(float.class));
+		return false;
+	}
+
+	/**
+	 * Returns the number of bits in the given integral type (not counting
+	 * boolean), or 0 for other types.
+	 */
+	private static int integralBits(Type type) {
+		if (!(type instanceof PrimitiveType))
+			return 0;
+		Class<?> c = ((PrimitiveType)type).getKlass().getBackingClass();
+		if (c == byte.class)
+			return 8;
+		if (c == short.class || c == char.class)
+			return 16;
+		if (c == int.class)
+			return 32;
+		if (c == long.class)
+			return 64;
+		return 0;
+	}
+
+	private static boolean isCommutative(BinaryInst.Operation op) {
+		return op == BinaryInst.Operation.ADD || op == BinaryInst.Operation.MUL ||
+				op == BinaryInst.Operation.AND || op == BinaryInst.Operation.OR ||
+				op == BinaryInst.Operation.XOR;
+	}
+
+	private static boolean isOp(Value v, BinaryInst.Operation op) {
+		return v instanceof BinaryInst && ((BinaryInst)v).getOperation() == op;
+	}
+
+	private static Value operand(Value v, int i) {
+		return ((BinaryInst)v).getOperand(i);
+	}
+
+	/**
+	 * Returns true if the given value is a multiplication by -1 (of either
+	 * integral or floating-point type).
+	 */
+	private static boolean isNegation(Value v) {
+		if (!isOp(v, BinaryInst.Operation.MUL))
+			return false;
+		Value c = operand(v, 1);
+		Long x = integerConstant(c);
+		return (x != null && x == -1) || isFloatingConstant(c, -1);
+	}
+
+	private static boolean isZero(Value v) {
+		Long x = integerConstant(v);
+		return x != null && x == 0;
+	}
+
+	/**
+	 * Returns the value of the given integral constant, or null if the value
+	 * isn't an integral constant.
+	 */
+	private static Long integerConstant(Value v) {
+		if (!(v instanceof Constant))
+			return null;
+		Object c = ((Constant<?>)v).getConstant();
+		if (c instanceof Boolean)
+			return (Boolean)c ? 1L : 0L;
+		if (c instanceof Character)
+			return (long)(Character)c;
+		if (c instanceof Byte || c instanceof Short || c instanceof Integer || c instanceof Long)
+			return ((Number)c).longValue();
+		return null;
+	}
+
+	/**
+	 * Returns true if the given value is a float or double constant with
+	 * exactly the given value (distinguishing 0.0 and -0.0).
+	 */
+	private static boolean isFloatingConstant(Value v, double x) {
+		if (!(v instanceof Constant))
+			return false;
+		Object c = ((Constant<?>)v).getConstant();
+		if (c instanceof Float || c instanceof Double)
+			return Double.doubleToRawLongBits(((Number)c).doubleValue()) == Double.doubleToRawLongBits(x);
+		return false;
+	}
+
+	private static Long fold(BinaryInst.Operation op, long x, long y, boolean isLong) {
+		long r;
+		switch (op) {
+			case ADD: r = x + y; break;
+			case SUB: r = x - y; break;
+			case MUL: r = x * y; break;
+			case DIV:
+				if (y == 0)
+					return null;
+				r = isLong ? x / y : (int)x / (int)y;
+				break;
+			case REM:
+				if (y == 0)
+					return null;
+				r = isLong ? x % y : (int)x % (int)y;
+				break;
+			case SHL: r = isLong ? x << y : (int)x << y; break;
+			case SHR: r = isLong ? x >> y : (int)x >> y; break;
+			case USHR: r = isLong ? x >>> y : (int)x >>> y; break;
+			case AND: r = x & y; break;
+			case OR: r = x | y; break;
+			case XOR: r = x ^ y; break;
+			default: return null;
+		}
+		return isLong ? r : (long)(int)r;
+	}
+
+	private Constant<?> constant(PrimitiveType type, long value) {
+		if (type.equals(type(long.class)))
+			return constants.getConstant(value);
+		return constants.getConstant((int)value);
+	}
+
+	private PrimitiveType type(Class<?> c) {
+		return types.getPrimitiveType(c);
+	}
+}
@@ -68,13 +68,15 @@ public final class Klass implements Accessible, Parented<Module> {
 	private final Klass superclass;
 	private final List<Klass> interfaces;
 	/**
-	 * For Klasses with a backing Class, lazily initialized on first use.
+	 * For Klasses with a backing Class, lazily initialized on first use (while
+	 * holding the module's lock).
 	 */
-	private List<Field> fields;
+	private volatile List<Field> fields;
 	/**
-	 * For Klasses with a backing Class, lazily initialized on first use.
+	 * For Klasses with a backing Class, lazily initialized on first use (while
+	 * holding the module's lock).
 	 */
-	private List<Method> methods;
+	private volatile List<Method> methods;
 	/**
 	 * If this Klass represents a live Class, it's here.  Null otherwise.
 	 */
@@ -232,12 +234,18 @@ public final class Klass implements Accessible, Parented<Module> {
 	}
 	public List<Field> fields() {
 		if (fields == null)
-			lazyInitFields();
+			synchronized (getParent()) {
+				if (fields == null)
+					lazyInitFields();
+			}
 		return fields;
 	}
 	public List<Method> methods() {
 		if (methods == null)
-			lazyInitMethods();
+			synchronized (getParent()) {
+				if (methods == null)
+					lazyInitMethods();
+			}
 		return methods;
 	}
 
@@ -22,63 +22,166 @@
 package edu.mit.streamjit.util.bytecode;
 
 import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
 import java.io.PrintWriter;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.FieldNode;
 
 /**
- * Builds a .class file (as a byte[]) from a Klass.
+ * Builds a .class file (as a byte[]) from a Klass.  The class is written
+ * directly to a ClassWriter, one method at a time, without building a
+ * ClassNode.  With {@link MethodUnresolver.Option#SPLIT_HUGE_METHODS}, huge
+ * methods of mutable klasses are split first, adding helper methods to the
+ * Klass.
  * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
  * @since 4/17/2013
  */
 public final class KlassUnresolver {
 	public static byte[] unresolve(Klass k) {
+		return unresolve(k, MethodUnresolver.DEFAULT_OPTIONS);
+	}
+
+	/**
+	 * Builds a .class file from the given Klass, unresolving its methods with
+	 * the given options.
+	 * @param k the klass to unresolve
+	 * @param options the options to unresolve methods with
+	 * @return the class file bytes
+	 */
+	public static byte[] unresolve(Klass k, Set<MethodUnresolver.Option> options) {
 		checkNotNull(k);
+		checkNotNull(options);
 		//TODO: permit this for testing
 		//checkArgument(k.isMutable());
-		return new KlassUnresolver(k).unresolve();
+		return new KlassUnresolver(k, options, false).unresolve();
+	}
+
+	/**
+	 * Unresolves the given Klass, returning an emission report for each of
+	 * its methods rather than the class bytes.  Huge methods aren't split, so
+	 * the Klass isn't modified and huge methods are reported as they are.
+	 * @param k the klass to report on
+	 * @return a map of the klass's methods to their reports, in method order
+	 */
+	public static ImmutableMap<Method, EmissionReport> report(Klass k) {
+		checkNotNull(k);
+		KlassUnresolver unresolver = new KlassUnresolver(k, withoutSplitting(MethodUnresolver.DEFAULT_OPTIONS), true);
+		unresolver.emit();
+		return ImmutableMap.copyOf(unresolver.reports);
+	}
+
+	/**
+	 * Unresolves each mutable Klass in the given module, returning an
+	 * emission report for each of their methods.
+	 * @param module the module to report on
+	 * @return a map of methods to their reports, in klass and method order
+	 */
+	public static ImmutableMap<Method, EmissionReport> report(Module module) {
+		ImmutableMap.Builder<Method, EmissionReport> builder = ImmutableMap.builder();
+		for (Klass k : module.klasses())
+			if (k.isMutable())
+				builder.putAll(report(k));
+		return builder.build();
+	}
+
+	/**
+	 * Splits the huge methods of the given mutable Klass, as unresolving with
+	 * {@link MethodUnresolver.Option#SPLIT_HUGE_METHODS} would.  Splitting
+	 * adds helper methods to the Klass and uses to the values the helpers
+	 * refer to, so callers unresolving Klasses of one Module concurrently
+	 * should split first, one Klass at a time, then unresolve
+	 * {@link #withoutSplitting(Set) without splitting}.
+	 * @param k the klass whose methods to split
+	 * @param options the options the klass will be unresolved with
+	 */
+	static void splitHugeMethods(Klass k, Set<MethodUnresolver.Option> options) {
+		if (k.isMutable())
+			for (Method m : ImmutableList.copyOf(k.methods()))
+				if (m.isResolved())
+					MethodSplitter.split(m, MethodSplitter.DEFAULT_BUDGET, options);
+	}
+
+	/**
+	 * Returns the given options without
+	 * {@link MethodUnresolver.Option#SPLIT_HUGE_METHODS}.
+	 * @param options the options
+	 * @return the options without splitting
+	 */
+	static Set<MethodUnresolver.Option> withoutSplitting(Set<MethodUnresolver.Option> options) {
+		return Sets.immutableEnumSet(Sets.difference(options, EnumSet.of(MethodUnresolver.Option.SPLIT_HUGE_METHODS)));
+	}
+
+	/**
+	 * Returns the given options plus
+	 * {@link MethodUnresolver.Option#SPLIT_HUGE_METHODS}.
+	 * @param options the options
+	 * @return the options with splitting
+	 */
+	static Set<MethodUnresolver.Option> withSplitting(Set<MethodUnresolver.Option> options) {
+		return Sets.immutableEnumSet(Sets.union(options, EnumSet.of(MethodUnresolver.Option.SPLIT_HUGE_METHODS)));
 	}
 
 	private final Klass klass;
-	private final ClassNode classNode;
-	private KlassUnresolver(Klass k) {
+	private final Set<MethodUnresolver.Option> options;
+	/**
+	 * Emission reports, filled in by emit() if reporting.
+	 */
+	private final Map<Method, EmissionReport> reports;
+	private KlassUnresolver(Klass k, Set<MethodUnresolver.Option> options, boolean reporting) {
 		this.klass = k;
-		this.classNode = new ClassNode(Opcodes.ASM4);
+		this.options = options;
+		this.reports = reporting ? new LinkedHashMap<Method, EmissionReport>() : null;
 	}
 
 	private byte[] unresolve() {
-		this.classNode.version = Opcodes.V1_7;
-		this.classNode.access = Modifier.toBits(klass.modifiers());
-		this.classNode.name = internalName(klass);
-		assert klass.getSuperclass() != null || Object.class.equals(klass.getBackingClass()) : klass;
-		this.classNode.superName = internalName(klass.getSuperclass());
-		for (Klass k : klass.interfaces())
-			this.classNode.interfaces.add(internalName(k));
-
-		for (Field f : klass.fields()) {
-			FieldNode fn = new FieldNode(Opcodes.ASM4,
-					Modifier.toBits(f.modifiers()),
-					f.getName(),
-					f.getType().getFieldType().getDescriptor(),
-					null, null);
-			this.classNode.fields.add(fn);
-		}
-
-		for (Method m : klass.methods())
-			this.classNode.methods.add(MethodUnresolver.unresolve(m));
+		return emit().toByteArray();
+	}
 
-		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+	/**
+	 * Writes the class to a ClassWriter, building emission reports if
+	 * requested.
+	 */
+	private ClassWriter emit() {
+		ClassWriter cw = new ClassWriter(0);
 		ClassVisitor cv = cw;
 //		boolean assertionsEnabled = false;
 //		assert assertionsEnabled = true; //intentional side effect
 //		if (assertionsEnabled)
 //			cv = new CheckClassAdapter(cv, true);
-		classNode.accept(cv);
-		return cw.toByteArray();
+		assert klass.getSuperclass() != null || Object.class.equals(klass.getBackingClass()) : klass;
+		String[] interfaces = new String[klass.interfaces().size()];
+		for (int i = 0; i < interfaces.length; ++i)
+			interfaces[i] = internalName(klass.interfaces().get(i));
+		cv.visit(Opcodes.V1_7, Modifier.toBits(klass.modifiers()), internalName(klass),
+				null, internalName(klass.getSuperclass()), interfaces);
+
+		for (Field f : klass.fields())
+			cv.visitField(Modifier.toBits(f.modifiers()),
+					f.getName(),
+					f.getType().getFieldType().getDescriptor(),
+					null, null).visitEnd();
+
+		if (options.contains(MethodUnresolver.Option.SPLIT_HUGE_METHODS))
+			splitHugeMethods(klass, options);
+		for (Method m : klass.methods()) {
+			if (reports == null) {
+				MethodUnresolver.unresolve(m, options, cv);
+				continue;
+			}
+			EmissionReport.Recorder recorder = new EmissionReport.Recorder(m, cv);
+			MethodUnresolver.unresolve(m, options, recorder);
+			reports.put(m, recorder.report());
+		}
+		cv.visitEnd();
+		return cw;
 	}
 
 	private String internalName(Klass k) {
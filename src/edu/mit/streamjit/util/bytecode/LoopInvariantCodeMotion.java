@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import edu.mit.streamjit.util.bytecode.insts.ArrayLengthInst;
+import edu.mit.streamjit.util.bytecode.insts.ArrayLoadInst;
+import edu.mit.streamjit.util.bytecode.insts.ArrayStoreInst;
+import edu.mit.streamjit.util.bytecode.insts.BinaryInst;
+import edu.mit.streamjit.util.bytecode.insts.BranchInst;
+import edu.mit.streamjit.util.bytecode.insts.CallInst;
+import edu.mit.streamjit.util.bytecode.insts.CastInst;
+import edu.mit.streamjit.util.bytecode.insts.InstanceofInst;
+import edu.mit.streamjit.util.bytecode.insts.Instruction;
+import edu.mit.streamjit.util.bytecode.insts.JumpInst;
+import edu.mit.streamjit.util.bytecode.insts.LoadInst;
+import edu.mit.streamjit.util.bytecode.insts.NewArrayInst;
+import edu.mit.streamjit.util.bytecode.insts.PhiInst;
+import edu.mit.streamjit.util.bytecode.insts.StoreInst;
+import edu.mit.streamjit.util.bytecode.insts.SwitchInst;
+import edu.mit.streamjit.util.bytecode.types.ArrayType;
+import edu.mit.streamjit.util.bytecode.types.PrimitiveType;
+import edu.mit.streamjit.util.bytecode.types.ReferenceType;
+import edu.mit.streamjit.util.bytecode.types.Type;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hoists loop-invariant instructions into loop preheaders, creating
+ * preheaders where needed.  Loops are processed innermost first, so an
+ * instruction invariant in several nested loops moves out of all of them.
+ *
+ * Pure instructions that can't throw (arithmetic other than integral division
+ * by a possibly-zero divisor, primitive casts, instanceof) are hoisted
+ * whenever their operands are defined outside the loop.  Instructions that
+ * may throw (division, arraylength, checkcast, field and array loads) are only
+ * hoisted if they're guaranteed to run in the loop's first iteration before
+ * anything with a visible effect; hoisting them then just moves the same
+ * exception a little earlier.  (The IR has no exception edges to guard them
+ * with otherwise.)
+ *
+ * Loads also require that nothing in the loop writes the loaded memory.
+ * Fields are distinct locations, so a load of a non-volatile field is
+ * invariant if the loop doesn't store that field, call any method or access a
+ * volatile field; array loads are invariant if the loop makes no calls and
+ * stores to no arrays of a compatible component type.  Final fields can't
+ * change outside constructors and static initializers.
+ * @author agent <agent@local>
+ * @since 10/19/2026
+ */
+public final class LoopInvariantCodeMotion {
+	private final Method method;
+	private final boolean finalFieldsStable;
+	private NaturalLoops loops;
+	private LoopInvariantCodeMotion(Method method) {
+		this.method = method;
+		this.finalFieldsStable = !method.isConstructor() && !method.getName().equals("<clinit>");
+	}
+
+	/**
+	 * Hoists loop-invariant instructions out of loops in the given method.
+	 * @param method the method to optimize
+	 * @return true iff changes were made
+	 */
+	public static boolean hoistLoopInvariants(Method method) {
+		checkArgument(method.isMutable(), "%s not mutable", method);
+		if (method.basicBlocks().isEmpty())
+			return false;
+		return new LoopInvariantCodeMotion(method).run();
+	}
+
+	private boolean run() {
+		boolean changed = false;
+		loops = new NaturalLoops(method);
+		for (NaturalLoops.Loop loop : loops.loops())
+			if (loop.getPreheader() == null)
+				changed |= insertPreheader(loop);
+		if (changed)
+			loops = new NaturalLoops(method);
+		for (NaturalLoops.Loop loop : loops.innermostFirst()) {
+			BasicBlock preheader = loop.getPreheader();
+			if (preheader != null)
+				changed |= hoist(loop, preheader);
+		}
+		return changed;
+	}
+
+	/**
+	 * Inserts a block between the loop header and its predecessors outside
+	 * the loop, moving the header's phi entries for those predecessors into
+	 * it.
+	 * @return true iff a preheader was inserted
+	 */
+	private boolean insertPreheader(NaturalLoops.Loop loop) {
+		BasicBlock header = loop.getHeader();
+		List<BasicBlock> outside = new ArrayList<>();
+		for (BasicBlock p : header.predecessors())
+			if (!loop.contains(p))
+				outside.add(p);
+		boolean isEntry = header == method.basicBlocks().get(0);
+		//The method entry is an implicit predecessor of the entry block, so
+		//it can't have phis.
+		if (isEntry && header.instructions().get(0) instanceof PhiInst)
+			return false;
+
+		BasicBlock preheader = new BasicBlock(method.getParent().getParent());
+		double frequency = 0;
+		for (BasicBlock p : outside)
+			frequency += p.getFrequency();
+		preheader.setFrequency(isEntry ? header.getFrequency() : frequency);
+		method.basicBlocks().add(isEntry ? 0 : method.basicBlocks().indexOf(header), preheader);
+		for (Instruction i : ImmutableList.copyOf(header.instructions())) {
+			if (!(i instanceof PhiInst))
+				break;
+			PhiInst phi = (PhiInst)i;
+			Value incoming = null;
+			PhiInst merge = null;
+			for (BasicBlock p : outside) {
+				Value v = phi.remove(p);
+				if (incoming == null)
+					incoming = v;
+				else if (incoming != v && merge == null) {
+					merge = new PhiInst(phi.getType());
+					for (BasicBlock q : outside.subList(0, outside.indexOf(p)))
+						merge.put(q, incoming);
+				}
+				if (merge != null)
+					merge.put(p, v);
+			}
+			if (merge != null) {
+				preheader.instructions().add(merge);
+				incoming = merge;
+			}
+			phi.put(preheader, incoming);
+		}
+		for (BasicBlock p : outside)
+			p.getTerminator().replaceUsesOfWith(header, preheader);
+		preheader.instructions().add(new JumpInst(header));
+		return true;
+	}
+
+	private boolean hoist(NaturalLoops.Loop loop, BasicBlock preheader) {
+		//Summarize the loop's memory effects.
+		boolean callsOrVolatiles = false;
+		Set<Value> storedLocations = newIdentitySet();
+		List<Type> storedComponentTypes = new ArrayList<>();
+		boolean storesUnknownArrays = false;
+		for (BasicBlock b : loop.blocks())
+			for (Instruction i : b.instructions())
+				if (i instanceof CallInst)
+					callsOrVolatiles = true;
+				else if (i instanceof StoreInst) {
+					Value location = ((StoreInst)i).getLocation();
+					storedLocations.add(location);
+					callsOrVolatiles |= isVolatile(location);
+				} else if (i instanceof LoadInst)
+					callsOrVolatiles |= isVolatile(((LoadInst)i).getLocation());
+				else if (i instanceof ArrayStoreInst) {
+					Type arrayType = ((ArrayStoreInst)i).getArray().getType();
+					if (arrayType instanceof ArrayType)
+						storedComponentTypes.add(((ArrayType)arrayType).getComponentType());
+					else
+						storesUnknownArrays = true;
+				}
+
+		boolean changed = removeTrivialPhis(loop);
+		for (BasicBlock b : loop.blocks())
+			for (Instruction i : ImmutableList.copyOf(b.instructions())) {
+				if (!isInvariant(i, loop))
+					continue;
+				boolean hoistable;
+				if (i instanceof LoadInst) {
+					Value location = ((LoadInst)i).getLocation();
+					boolean memoryInvariant = isStableFinal(location) ||
+							(!storedLocations.contains(location) &&
+							(location instanceof LocalVariable || (!callsOrVolatiles && !isVolatile(location))));
+					hoistable = memoryInvariant && (!mayThrow(i) || isFirstEffect(i, loop));
+				} else if (i instanceof ArrayLoadInst) {
+					boolean memoryInvariant = !callsOrVolatiles && !storesUnknownArrays &&
+							!mayAlias(i.getType(), storedComponentTypes);
+					hoistable = memoryInvariant && isFirstEffect(i, loop);
+				} else if (isPure(i))
+					hoistable = !mayThrow(i) || isFirstEffect(i, loop);
+				else
+					hoistable = false;
+				if (!hoistable)
+					continue;
+				i.removeFromParent();
+				preheader.instructions().add(preheader.instructions().size()-1, i);
+				changed = true;
+			}
+		return changed;
+	}
+
+	/**
+	 * Replaces phis in the loop whose incoming values are all either the phi
+	 * itself or one other value with that value.  The bytecode resolver
+	 * creates such phis for every local live across a loop header, and they
+	 * would otherwise make the local look variant.
+	 */
+	private static boolean removeTrivialPhis(NaturalLoops.Loop loop) {
+		boolean changed = false, progress;
+		do {
+			progress = false;
+			for (BasicBlock b : loop.blocks())
+				for (Instruction i : ImmutableList.copyOf(b.instructions())) {
+					if (!(i instanceof PhiInst))
+						break;
+					Value same = null;
+					for (Value v : ((PhiInst)i).incomingValues())
+						if (v != i && v != same) {
+							if (same != null) {
+								same = i;
+								break;
+							}
+							same = v;
+						}
+					if (same == null || same == i)
+						continue;
+					i.replaceInstWithValue(same);
+					progress = changed = true;
+				}
+		} while (progress);
+		return changed;
+	}
+
+	private static boolean isInvariant(Instruction i, NaturalLoops.Loop loop) {
+		if (i instanceof PhiInst)
+			return false;
+		for (Value v : i.operands())
+			if (v instanceof Instruction && loop.contains(((Instruction)v).getParent()))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns true if the given instruction computes a value from its
+	 * operands alone, though it may throw.
+	 */
+	private static boolean isPure(Instruction i) {
+		return i instanceof BinaryInst || i instanceof CastInst ||
+				i instanceof InstanceofInst || i instanceof ArrayLengthInst;
+	}
+
+	private boolean mayThrow(Instruction i) {
+		if (i instanceof BinaryInst) {
+			BinaryInst bi = (BinaryInst)i;
+			if (!bi.getType().isIntegral())
+				return false;
+			if (bi.getOperation() != BinaryInst.Operation.DIV && bi.getOperation() != BinaryInst.Operation.REM)
+				return false;
+			Value divisor = bi.getOperand(1);
+			return !(divisor instanceof Constant && ((Number)normalize((Constant<?>)divisor)).longValue() != 0);
+		} else if (i instanceof CastInst) {
+			Type from = i.getOperand(0).getType(), to = i.getType();
+			return !(from instanceof PrimitiveType && to instanceof PrimitiveType) && !from.isSubtypeOf(to);
+		} else if (i instanceof InstanceofInst)
+			return false;
+		else if (i instanceof ArrayLengthInst)
+			return !isKnownNonNull(i.getOperand(0));
+		else if (i instanceof LoadInst) {
+			Value location = ((LoadInst)i).getLocation();
+			if (location instanceof LocalVariable)
+				return false;
+			Field f = (Field)location;
+			//Static fields of our own class are already initialized.
+			if (f.isStatic())
+				return f.getParent() != method.getParent();
+			return !isKnownNonNull(((LoadInst)i).getInstance());
+		}
+		return true;
+	}
+
+	private static Object normalize(Constant<?> c) {
+		Object v = c.getConstant();
+		if (v instanceof Boolean)
+			return (Boolean)v ? 1 : 0;
+		if (v instanceof Character)
+			return (int)(Character)v;
+		return v;
+	}
+
+	private boolean isKnownNonNull(Value v) {
+		if (method.hasReceiver() && !method.isConstructor() && v == method.arguments().get(0))
+			return true;
+		if (v instanceof NewArrayInst)
+			return true;
+		if (v instanceof CallInst && ((CallInst)v).getMethod().isConstructor())
+			return true;
+		return v instanceof Constant && ((Constant<?>)v).getConstant() != null;
+	}
+
+	private static boolean isVolatile(Value location) {
+		return location instanceof Field && ((Field)location).modifiers().contains(Modifier.VOLATILE);
+	}
+
+	private boolean isStableFinal(Value location) {
+		return finalFieldsStable && location instanceof Field &&
+				((Field)location).modifiers().contains(Modifier.FINAL);
+	}
+
+	/**
+	 * Returns true if a load of the given type might read an element stored
+	 * with one of the given component types.  Primitive component types alias
+	 * only themselves; reference types may alias any reference type.
+	 */
+	private static boolean mayAlias(Type loaded, List<Type> stored) {
+		for (Type t : stored)
+			if (t.equals(loaded) || (t instanceof ReferenceType && !(loaded instanceof PrimitiveType)))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Returns true if the given instruction runs whenever the loop is entered,
+	 * before anything in the loop with a visible effect.  Its block must
+	 * dominate the loop's exits and latches, and every instruction that can
+	 * run before it in an iteration must be quiet.
+	 */
+	private boolean isFirstEffect(Instruction inst, NaturalLoops.Loop loop) {
+		BasicBlock block = inst.getParent();
+		DominatorTree domTree = loops.getDominatorTree();
+		for (BasicBlock b : loop.getLatches())
+			if (!domTree.dominates(block, b))
+				return false;
+		for (BasicBlock b : loop.exitBlocks())
+			if (!domTree.dominates(block, b))
+				return false;
+
+		for (Instruction i : block.instructions()) {
+			if (i == inst)
+				break;
+			if (!isQuiet(i))
+				return false;
+		}
+		if (block == loop.getHeader())
+			return true;
+		//Blocks reaching ours without going around the loop.  A nested loop
+		//among them might not terminate.
+		Set<BasicBlock> visited = newIdentitySet();
+		Deque<BasicBlock> worklist = new ArrayDeque<>();
+		for (BasicBlock p : block.predecessors())
+			worklist.add(p);
+		while (!worklist.isEmpty()) {
+			BasicBlock b = worklist.removeFirst();
+			if (!visited.add(b))
+				continue;
+			if (loops.getLoopFor(b) != loop)
+				return false;
+			for (Instruction i : b.instructions())
+				if (!isQuiet(i))
+					return false;
+			if (b != loop.getHeader())
+				for (BasicBlock p : b.predecessors())
+					worklist.add(p);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the given instruction has no effect visible after an
+	 * exception leaves the method.
+	 */
+	private boolean isQuiet(Instruction i) {
+		if (i instanceof PhiInst || i instanceof JumpInst || i instanceof BranchInst || i instanceof SwitchInst)
+			return true;
+		//Local variables die with the frame.
+		if (i instanceof LoadInst && ((LoadInst)i).getLocation() instanceof LocalVariable)
+			return true;
+		if (i instanceof StoreInst && ((StoreInst)i).getLocation() instanceof LocalVariable)
+			return true;
+		return isPure(i) && !mayThrow(i);
+	}
+
+	private static <T> Set<T> newIdentitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+	}
+}
@@ -163,7 +163,18 @@ public class Method extends Value implements Accessible, Parented<Klass> {
 
 		this.arguments = buildArguments();
 		this.basicBlocks = new ParentedList<>(this, BasicBlock.class);
-		MethodResolver.resolve(this);
+		try {
+			MethodResolver.resolve(this);
+		} catch (RuntimeException | Error ex) {
+			//Don't leave a half-built body behind for isResolved() to report.
+			//Erasing the blocks drops their uses of other methods, fields and
+			//constants.
+			for (BasicBlock block : ImmutableList.copyOf(basicBlocks))
+				block.eraseFromParent();
+			this.basicBlocks = null;
+			this.arguments = null;
+			throw ex;
+		}
 	}
 
 	@Override
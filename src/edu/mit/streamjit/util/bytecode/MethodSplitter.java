@@ -0,0 +1,720 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import edu.mit.streamjit.util.bytecode.insts.ArrayLoadInst;
+import edu.mit.streamjit.util.bytecode.insts.ArrayStoreInst;
+import edu.mit.streamjit.util.bytecode.insts.CallInst;
+import edu.mit.streamjit.util.bytecode.insts.CastInst;
+import edu.mit.streamjit.util.bytecode.insts.Instruction;
+import edu.mit.streamjit.util.bytecode.insts.JumpInst;
+import edu.mit.streamjit.util.bytecode.insts.LoadInst;
+import edu.mit.streamjit.util.bytecode.insts.NewArrayInst;
+import edu.mit.streamjit.util.bytecode.insts.PhiInst;
+import edu.mit.streamjit.util.bytecode.insts.ReturnInst;
+import edu.mit.streamjit.util.bytecode.insts.StoreInst;
+import edu.mit.streamjit.util.bytecode.insts.SwitchInst;
+import edu.mit.streamjit.util.bytecode.insts.TerminatorInst;
+import edu.mit.streamjit.util.bytecode.types.ArrayType;
+import edu.mit.streamjit.util.bytecode.types.PrimitiveType;
+import edu.mit.streamjit.util.bytecode.types.RegularType;
+import edu.mit.streamjit.util.bytecode.types.ReturnType;
+import edu.mit.streamjit.util.bytecode.types.TypeFactory;
+import edu.mit.streamjit.util.bytecode.types.VoidType;
+import edu.mit.streamjit.util.bytecode.types.WrapperType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * Splits methods whose bytecode would exceed a size budget by outlining
+ * regions of their blocks into private static helper methods of the same
+ * class.  HotSpot doesn't JIT-compile methods larger than 8000 bytes (see
+ * {@link EmissionReport.Threshold#HUGE_METHOD_LIMIT}), and the class file
+ * format limits methods to 64KB.
+ *
+ * A region is entered only at its entry block h and leaves only to a single
+ * exit block x, or only by returning or throwing (a tail region, whose
+ * helper returns the method's result).  Regions are the blocks dominated by
+ * h, less those dominated by x if h dominates x.  Values defined outside the
+ * region and used inside it (including h's phis, which stay behind) become
+ * the helper's arguments; values defined inside and used after it, and the
+ * values x's phis receive from it, are returned, boxed in an Object[] if
+ * there's more than one.  LocalVariables used only in the region move to the
+ * helper; regions sharing a LocalVariable with the rest of the method aren't
+ * outlined.  Blocks too large for any region are first split in two.
+ *
+ * Constructors aren't split, as their uninitialized this can't be passed to
+ * a helper.
+ * @author agent <agent@local>
+ * @since 10/19/2026
+ */
+public final class MethodSplitter {
+	/**
+	 * The budget used by KlassUnresolver: the largest method HotSpot will
+	 * JIT-compile by default.
+	 */
+	public static final int DEFAULT_BUDGET = EmissionReport.Threshold.HUGE_METHOD_LIMIT.getLimit();
+	/**
+	 * Regions smaller than this many (estimated) bytes aren't worth a call.
+	 */
+	private static final int MIN_REGION_BYTES = 64;
+	/**
+	 * The number of best-ranked regions considered each time we outline.
+	 */
+	private static final int MAX_CANDIDATES = 64;
+	/**
+	 * Once we have a multiple-output region to fall back on, the number of
+	 * further candidates we analyze looking for a single-output region.
+	 */
+	private static final int MAX_FALLBACK_SEARCH = 8;
+	/**
+	 * The JVM's limit on argument slots of a static method.
+	 */
+	private static final int MAX_ARGUMENT_SLOTS = 255;
+	private final Method method;
+	private final int codeLength, budget;
+	/**
+	 * The estimated size of the region outlined, in bytes.
+	 */
+	private int outlinedBytes;
+	private DominatorTree domTree;
+	/**
+	 * Estimated bytes per unit (see units(BasicBlock)) in this method.
+	 */
+	private final double bytesPerUnit;
+	/**
+	 * Indexed by dominator tree preorder index: the units and number of
+	 * return instructions in the blocks preceding that index.
+	 */
+	private int[] unitsBefore, returnsBefore;
+	private final Map<BasicBlock, Integer> preorderIndex = new IdentityHashMap<>();
+	/**
+	 * The edges leaving each block's dominator subtree.
+	 */
+	private final Map<BasicBlock, List<BasicBlock[]>> exitEdges = new IdentityHashMap<>();
+	/**
+	 * Blocks that are targets of back edges (from blocks they dominate).
+	 */
+	private final Set<BasicBlock> loopHeaders = Collections.newSetFromMap(new IdentityHashMap<BasicBlock, Boolean>());
+	private MethodSplitter(Method method, int codeLength, int budget) {
+		this.method = method;
+		this.codeLength = codeLength;
+		this.budget = budget;
+		int units = 0;
+		for (BasicBlock b : method.basicBlocks())
+			units += units(b);
+		this.bytesPerUnit = (double)codeLength / Math.max(units, 1);
+	}
+
+	/**
+	 * Splits the given method, and any helpers split from it, until each is
+	 * no larger than the given budget or has no region we can outline.
+	 * @param method the method to split
+	 * @param budget the maximum code length, in bytes
+	 * @param options the options the method will be unresolved with
+	 * @return the helper methods created, which have been added to the
+	 * method's class
+	 */
+	public static ImmutableList<Method> split(Method method, int budget, Set<MethodUnresolver.Option> options) {
+		checkNotNull(method);
+		checkArgument(budget > 0, "bad budget %s", budget);
+		checkNotNull(options);
+		checkArgument(method.isMutable(), "splitting immutable method %s", method);
+		ImmutableList.Builder<Method> helpers = ImmutableList.builder();
+		//Outlining a region adds code (passing values in and out), so
+		//bound the number of helpers in case we never get under budget.
+		int helpersLeft = maxCodeLength(method) / MIN_REGION_BYTES;
+		Deque<Method> worklist = new ArrayDeque<>();
+		worklist.add(method);
+		while (!worklist.isEmpty() && helpersLeft > 0) {
+			Method m = worklist.remove();
+			if (!isSplittable(m) || maxCodeLength(m) <= budget)
+				continue;
+			//Emitting the method to measure it is expensive, so we outline
+			//until our estimate is under budget before measuring again.
+			int length = codeLength(m, options);
+			boolean measured = true;
+			while (helpersLeft > 0) {
+				MethodSplitter splitter = null;
+				Method helper = null;
+				if (length > budget) {
+					splitter = new MethodSplitter(m, length, budget);
+					helper = splitter.outline();
+				}
+				if (helper == null) {
+					if (measured)
+						break;
+					length = codeLength(m, options);
+					measured = true;
+					continue;
+				}
+				--helpersLeft;
+				helpers.add(helper);
+				worklist.add(helper);
+				length -= splitter.outlinedBytes;
+				measured = false;
+			}
+		}
+		return helpers.build();
+	}
+
+	private static boolean isSplittable(Method m) {
+		return m.isResolved() && !m.basicBlocks().isEmpty() && !m.isConstructor();
+	}
+
+	/**
+	 * Returns a generous upper bound on the given method's code length, so
+	 * we only emit methods that might be over budget to measure them.
+	 */
+	private static int maxCodeLength(Method m) {
+		int units = 0;
+		for (BasicBlock b : m.basicBlocks())
+			units += units(b);
+		return units;
+	}
+
+	/**
+	 * Returns the given method's code length when unresolved with the given
+	 * options, by writing it to a scratch ClassWriter.  The local variable
+	 * table doesn't affect the code, so we don't build it.
+	 */
+	private static int codeLength(Method m, Set<MethodUnresolver.Option> options) {
+		Set<MethodUnresolver.Option> measuring = EnumSet.noneOf(MethodUnresolver.Option.class);
+		measuring.addAll(options);
+		measuring.removeAll(EnumSet.of(MethodUnresolver.Option.LOCAL_VARIABLE_TABLE, MethodUnresolver.Option.COMPACT_LOCAL_VARIABLE_TABLE));
+		EmissionReport.Recorder recorder = new EmissionReport.Recorder(m, new ClassWriter(0));
+		MethodUnresolver.unresolve(m, measuring, recorder);
+		return recorder.report().getCodeLength();
+	}
+
+	/**
+	 * A block's size in units: an upper bound on the bytes needed for each
+	 * instruction's opcode, operand loads and result store, plus a jump.
+	 */
+	private static int units(BasicBlock b) {
+		int units = 8;
+		for (Instruction i : b.instructions())
+			units += units(i);
+		return units;
+	}
+
+	private static int units(Instruction i) {
+		int units = 8 + 4 * i.getNumOperands();
+		if (i instanceof SwitchInst)
+			units += 16 * ((SwitchInst)i).cases().size();
+		return units;
+	}
+
+	/**
+	 * Outlines one region of this method, returning the helper, or null if
+	 * no region can be outlined.
+	 */
+	private Method outline() {
+		splitLargeBlocks();
+		this.domTree = new DominatorTree(method);
+		ImmutableList<BasicBlock> preorder = domTree.preorder();
+		this.unitsBefore = new int[preorder.size()+1];
+		this.returnsBefore = new int[preorder.size()+1];
+		for (int i = 0; i < preorder.size(); ++i) {
+			BasicBlock b = preorder.get(i);
+			preorderIndex.put(b, i);
+			unitsBefore[i+1] = unitsBefore[i] + units(b);
+			returnsBefore[i+1] = returnsBefore[i] + (b.getTerminator() instanceof ReturnInst ? 1 : 0);
+		}
+		//Build the exit edge lists bottom-up: a block's subtree's exits are
+		//its own and its children's that also leave it.
+		for (BasicBlock b : preorder.reverse()) {
+			List<BasicBlock[]> edges = new ArrayList<>();
+			for (BasicBlock s : b.successors()) {
+				if (domTree.dominates(s, b))
+					loopHeaders.add(s);
+				if (!domTree.dominates(b, s))
+					edges.add(new BasicBlock[]{b, s});
+			}
+			for (BasicBlock c : domTree.getChildren(b))
+				for (BasicBlock[] e : exitEdges.get(c))
+					if (!domTree.dominates(b, e[1]))
+						edges.add(e);
+			exitEdges.put(b, edges);
+		}
+
+		Region fallback = null;
+		int searchLeft = MAX_FALLBACK_SEARCH;
+		for (Region r : candidates()) {
+			if (fallback != null && searchLeft-- == 0)
+				break;
+			if (!r.analyze())
+				continue;
+			if (r.outputs() <= 1)
+				return outline(r);
+			if (fallback == null)
+				fallback = r;
+		}
+		return fallback != null ? outline(fallback) : null;
+	}
+
+	private Method outline(Region r) {
+		outlinedBytes = (int)(r.units * bytesPerUnit);
+		return r.outline();
+	}
+
+	/**
+	 * Splits blocks too large to fit in a helper with room to spare, so
+	 * straight-line code can be divided among regions.
+	 */
+	private void splitLargeBlocks() {
+		int maxUnits = Math.max((int)(budget / 8 / bytesPerUnit), 64);
+		for (BasicBlock b : ImmutableList.copyOf(method.basicBlocks()))
+			while (units(b) > maxUnits) {
+				int units = 8;
+				Instruction cut = null;
+				for (Instruction i : b.instructions()) {
+					if (units >= maxUnits && !(i instanceof PhiInst) && !(i instanceof TerminatorInst)) {
+						cut = i;
+						break;
+					}
+					units += units(i);
+				}
+				if (cut == null)
+					break;
+				b = splitBlock(b, cut);
+			}
+	}
+
+	/**
+	 * Moves the given instruction and those following it in its block to a
+	 * new block, which the old block jumps to.
+	 * @return the new block
+	 */
+	private static BasicBlock splitBlock(BasicBlock block, Instruction first) {
+		Method method = block.getParent();
+		BasicBlock tail = new BasicBlock(method.getParent().getParent());
+		tail.setFrequency(block.getFrequency());
+		method.basicBlocks().add(method.basicBlocks().indexOf(block)+1, tail);
+		List<Instruction> insts = block.instructions();
+		for (Instruction i : ImmutableList.copyOf(insts.subList(insts.indexOf(first), insts.size()))) {
+			i.removeFromParent();
+			tail.instructions().add(i);
+		}
+		//Our successors' phis now receive their values from the tail.
+		for (Use u : block.uses())
+			if (u.getUser() instanceof PhiInst)
+				u.setOperand(tail);
+		block.instructions().add(new JumpInst(tail));
+		return tail;
+	}
+
+	/**
+	 * Returns the best-ranked regions with single entries and exits.
+	 */
+	private List<Region> candidates() {
+		final int limit = budget - budget / 8, needed = codeLength - budget + budget / 8;
+		//Prefer the smallest region that brings us under budget while fitting
+		//in a helper, then the largest that fits, then the smallest that
+		//doesn't (the helper will be split in turn).
+		Comparator<Region> ranking = new Comparator<Region>() {
+			@Override
+			public int compare(Region a, Region b) {
+				int tierA = tier(a), tierB = tier(b);
+				if (tierA != tierB)
+					return Integer.compare(tierA, tierB);
+				return tierA == 1 ? Integer.compare(b.units, a.units) : Integer.compare(a.units, b.units);
+			}
+			private int tier(Region r) {
+				double bytes = r.units * bytesPerUnit;
+				return bytes > limit ? 2 : bytes >= needed ? 0 : 1;
+			}
+		};
+		PriorityQueue<Region> best = new PriorityQueue<>(MAX_CANDIDATES+1, Collections.reverseOrder(ranking));
+		for (BasicBlock h : domTree.preorder()) {
+			if (h == method.basicBlocks().get(0) || isLoopHeader(h))
+				continue;
+			List<BasicBlock[]> hExits = exitEdges(h);
+			Set<BasicBlock> targets = Collections.newSetFromMap(new IdentityHashMap<BasicBlock, Boolean>());
+			for (BasicBlock[] e : hExits)
+				targets.add(e[1]);
+			if (targets.size() == 0 || (targets.size() == 1 && returns(h) == 0))
+				offer(best, ranking, new Region(h, Iterables.getOnlyElement(targets, null), subtreeUnits(h)));
+
+			for (BasicBlock x : domTree.dominated(h)) {
+				if (x == h || isLoopHeader(x) || returns(h) != returns(x))
+					continue;
+				int units = subtreeUnits(h) - subtreeUnits(x);
+				if (units * bytesPerUnit < MIN_REGION_BYTES)
+					continue;
+				boolean single = true;
+				//Every edge leaving h's subtree must leave from x's...
+				for (BasicBlock[] e : hExits)
+					single &= domTree.dominates(x, e[0]);
+				//...and no edge leaves x's subtree back into the region.
+				if (single)
+					for (BasicBlock[] e : exitEdges(x))
+						single &= !domTree.dominates(h, e[1]);
+				if (single)
+					offer(best, ranking, new Region(h, x, units));
+			}
+		}
+		List<Region> candidates = new ArrayList<>(best);
+		Collections.sort(candidates, ranking);
+		return candidates;
+	}
+
+	private void offer(PriorityQueue<Region> best, Comparator<Region> ranking, Region r) {
+		if (r.units * bytesPerUnit < MIN_REGION_BYTES)
+			return;
+		best.add(r);
+		if (best.size() > MAX_CANDIDATES)
+			best.remove();
+	}
+
+	private boolean isLoopHeader(BasicBlock b) {
+		return loopHeaders.contains(b);
+	}
+
+	private int subtreeUnits(BasicBlock b) {
+		int i = preorderIndex.get(b);
+		return unitsBefore[i + domTree.dominated(b).size()] - unitsBefore[i];
+	}
+
+	private int returns(BasicBlock b) {
+		int i = preorderIndex.get(b);
+		return returnsBefore[i + domTree.dominated(b).size()] - returnsBefore[i];
+	}
+
+	private List<BasicBlock[]> exitEdges(BasicBlock b) {
+		return exitEdges.get(b);
+	}
+
+	private final class Region {
+		private final BasicBlock entry, exit;
+		private final int units;
+		private final Set<BasicBlock> blocks = Collections.newSetFromMap(new IdentityHashMap<BasicBlock, Boolean>());
+		private final Set<Value> liveIns = new LinkedHashSet<>();
+		private final Set<Instruction> liveOuts = new LinkedHashSet<>();
+		private final List<PhiInst> exitPhis = new ArrayList<>();
+		private final Set<BasicBlock> exiting = new LinkedHashSet<>();
+		private final Set<LocalVariable> locals = new LinkedHashSet<>();
+		/**
+		 * @param entry the region's entry block
+		 * @param exit the region's exit block, or null for a tail region
+		 * @param units the region's size in units
+		 */
+		private Region(BasicBlock entry, BasicBlock exit, int units) {
+			this.entry = entry;
+			this.exit = exit;
+			this.units = units;
+		}
+
+		private int outputs() {
+			return liveOuts.size() + exitPhis.size();
+		}
+
+		private boolean isOutside(Value v) {
+			if (v instanceof Argument)
+				return true;
+			if (!(v instanceof Instruction))
+				return false;
+			BasicBlock b = ((Instruction)v).getParent();
+			return !blocks.contains(b) || (b == entry && v instanceof PhiInst);
+		}
+
+		/**
+		 * Computes the region's inputs and outputs, returning false if the
+		 * region can't be outlined.
+		 */
+		private boolean analyze() {
+			blocks.addAll(domTree.dominated(entry));
+			if (exit != null && domTree.dominates(entry, exit))
+				blocks.removeAll(domTree.dominated(exit));
+
+			for (BasicBlock b : blocks) {
+				if (b != entry)
+					for (BasicBlock p : b.predecessors())
+						if (!blocks.contains(p))
+							return false;
+				for (Instruction i : b.instructions()) {
+					//The entry's phis stay behind in the caller.
+					if (b == entry && i instanceof PhiInst)
+						continue;
+					if (i instanceof StoreInst && ((StoreInst)i).getLocation() instanceof Field &&
+							((Field)((StoreInst)i).getLocation()).modifiers().contains(Modifier.FINAL))
+						return false;
+					for (Value v : i.operands())
+						if (v instanceof UninitializedValue)
+							return false;
+						else if (v instanceof LocalVariable)
+							locals.add((LocalVariable)v);
+						else if (v instanceof BasicBlock && !blocks.contains(v) && v != exit)
+							return false;
+						else if (isOutside(v))
+							liveIns.add(v);
+					for (Use u : i.uses()) {
+						Instruction user = (Instruction)u.getUser();
+						BasicBlock ub = user.getParent();
+						if (blocks.contains(ub) && !(ub == entry && user instanceof PhiInst))
+							continue;
+						if (ub == exit && user instanceof PhiInst && blocks.contains(user.getOperand(u.getOperandIndex()-1)))
+							continue;
+						if (exit == null || ub == entry)
+							return false;
+						liveOuts.add(i);
+					}
+				}
+				if (exit != null && Iterables.contains(b.successors(), exit))
+					exiting.add(b);
+			}
+			if (exit != null && exiting.isEmpty())
+				return false;
+
+			for (LocalVariable v : locals)
+				for (User u : v.users().elementSet())
+					if (!blocks.contains(((Instruction)u).getParent()))
+						return false;
+			if (exit != null)
+				for (Instruction i : exit.instructions()) {
+					if (!(i instanceof PhiInst))
+						break;
+					for (BasicBlock e : exiting) {
+						Value v = ((PhiInst)i).get(e);
+						if (v instanceof UninitializedValue)
+							return false;
+						if (isOutside(v))
+							liveIns.add(v);
+					}
+					exitPhis.add((PhiInst)i);
+				}
+			//Values returned from the exit block must be available there.
+			for (Instruction v : liveOuts)
+				for (BasicBlock e : exiting)
+					if (!domTree.dominates(v.getParent(), e))
+						return false;
+
+			int slots = 0;
+			for (Value v : liveIns) {
+				if (!(v.getType() instanceof RegularType))
+					return false;
+				slots += v.getType().getCategory();
+			}
+			if (slots > MAX_ARGUMENT_SLOTS)
+				return false;
+			for (Instruction v : Iterables.concat(liveOuts, exitPhis))
+				if (!(v.getType() instanceof RegularType))
+					return false;
+			return true;
+		}
+
+		private Method outline() {
+			Module module = method.getParent().getParent();
+			TypeFactory types = module.types();
+			ArrayType objectArray = types.getArrayType(Object.class, 1);
+			List<Value> inputs = ImmutableList.copyOf(liveIns);
+			List<RegularType> inputTypes = new ArrayList<>(inputs.size());
+			for (Value v : inputs)
+				inputTypes.add((RegularType)v.getType());
+			List<RegularType> outputTypes = new ArrayList<>(outputs());
+			for (Instruction v : Iterables.concat(liveOuts, exitPhis))
+				outputTypes.add((RegularType)v.getType());
+			ReturnType returnType = exit == null ? method.getType().getReturnType() :
+					outputTypes.isEmpty() ? types.getVoidType() :
+					outputTypes.size() == 1 ? outputTypes.get(0) :
+					objectArray;
+			Set<Modifier> modifiers = EnumSet.of(Modifier.PRIVATE, Modifier.STATIC, Modifier.SYNTHETIC);
+			if (method.modifiers().contains(Modifier.STRICT))
+				modifiers.add(Modifier.STRICT);
+			Method helper = new Method(helperName(), types.getMethodType(returnType, inputTypes), modifiers, method.getParent());
+
+			//In the caller, replace the region with a block calling the
+			//helper, keeping the entry's phis.
+			BasicBlock call = new BasicBlock(module);
+			call.setFrequency(entry.getFrequency());
+			method.basicBlocks().add(method.basicBlocks().indexOf(entry), call);
+			for (Use u : entry.uses())
+				if (u.getUser() instanceof TerminatorInst && !blocks.contains(((Instruction)u.getUser()).getParent()))
+					u.setOperand(call);
+			for (Instruction i : ImmutableList.copyOf(entry.instructions())) {
+				if (!(i instanceof PhiInst))
+					break;
+				i.removeFromParent();
+				call.instructions().add(i);
+			}
+			CallInst callInst = new CallInst(helper, inputs.toArray(new Value[inputs.size()]));
+			call.instructions().add(callInst);
+			List<Value> results = new ArrayList<>(outputTypes.size());
+			if (outputTypes.size() == 1)
+				results.add(callInst);
+			else
+				for (int i = 0; i < outputTypes.size(); ++i) {
+					ArrayLoadInst element = new ArrayLoadInst(callInst, module.constants().getConstant(i));
+					call.instructions().add(element);
+					results.add(unbox(element, outputTypes.get(i), call));
+				}
+			if (exit == null)
+				call.instructions().add(returnType instanceof VoidType ?
+						new ReturnInst(returnType) : new ReturnInst(returnType, callInst));
+			else
+				call.instructions().add(new JumpInst(exit));
+
+			Iterator<Value> liveOutResults = results.iterator();
+			for (Instruction v : liveOuts) {
+				Value result = liveOutResults.next();
+				for (Use u : v.uses()) {
+					Instruction user = (Instruction)u.getUser();
+					BasicBlock ub = user.getParent();
+					if (blocks.contains(ub) || (ub == exit && user instanceof PhiInst && blocks.contains(user.getOperand(u.getOperandIndex()-1))))
+						continue;
+					u.setOperand(result);
+				}
+			}
+
+			//Move the region to the helper, entry first.
+			entry.removeFromParent();
+			helper.basicBlocks().add(entry);
+			for (BasicBlock b : ImmutableList.copyOf(method.basicBlocks()))
+				if (blocks.contains(b)) {
+					b.removeFromParent();
+					helper.basicBlocks().add(b);
+				}
+			for (LocalVariable v : locals) {
+				LocalVariable moved = new LocalVariable(v.getType().getFieldType(), v.getName(), helper);
+				for (User u : ImmutableList.copyOf(v.users().elementSet()))
+					if (u instanceof LoadInst)
+						((LoadInst)u).setLocation(moved);
+					else
+						((StoreInst)u).setLocation(moved);
+				method.localVariables().remove(v);
+			}
+
+			if (exit != null) {
+				BasicBlock helperExit = new BasicBlock(helper);
+				for (Use u : exit.uses())
+					if (u.getUser() instanceof TerminatorInst && blocks.contains(((Instruction)u.getUser()).getParent()))
+						u.setOperand(helperExit);
+				List<Value> returned = new ArrayList<Value>(liveOuts);
+				for (PhiInst p : exitPhis) {
+					if (exiting.size() == 1) {
+						returned.add(p.get(Iterables.getOnlyElement(exiting)));
+						continue;
+					}
+					PhiInst merge = new PhiInst(p.getType());
+					for (BasicBlock e : exiting)
+						merge.put(e, p.get(e));
+					helperExit.instructions().add(merge);
+					returned.add(merge);
+				}
+				if (returned.isEmpty())
+					helperExit.instructions().add(new ReturnInst(returnType));
+				else if (returned.size() == 1)
+					helperExit.instructions().add(new ReturnInst(returnType, returned.get(0)));
+				else {
+					NewArrayInst array = new NewArrayInst(objectArray, module.constants().getConstant(returned.size()));
+					helperExit.instructions().add(array);
+					for (int i = 0; i < returned.size(); ++i)
+						helperExit.instructions().add(new ArrayStoreInst(array,
+								module.constants().getConstant(i), box(returned.get(i), outputTypes.get(i), helperExit)));
+					helperExit.instructions().add(new ReturnInst(returnType, array));
+				}
+			}
+
+			for (int i = 0; i < inputs.size(); ++i)
+				for (Use u : inputs.get(i).uses()) {
+					BasicBlock ub = ((Instruction)u.getUser()).getParent();
+					if (ub != null && ub.getParent() == helper)
+						u.setOperand(helper.arguments().get(i));
+				}
+
+			//Finally, the exit's phis receive the region's values from the
+			//call block.
+			for (int i = 0; i < exitPhis.size(); ++i) {
+				PhiInst p = exitPhis.get(i);
+				PhiInst replacement = new PhiInst(p.getType());
+				Iterator<BasicBlock> preds = p.predecessors().iterator();
+				Iterator<Value> values = p.incomingValues().iterator();
+				while (preds.hasNext()) {
+					BasicBlock pred = preds.next();
+					Value value = values.next();
+					if (!blocks.contains(pred))
+						replacement.put(pred, value);
+				}
+				replacement.put(call, results.get(liveOuts.size() + i));
+				p.replaceInstWithInst(replacement);
+			}
+			return helper;
+		}
+
+		private String helperName() {
+			String base = method.getName().replace("<", "").replace(">", "") + "$split";
+			for (int i = 0; ; ++i)
+				if (Iterables.isEmpty(method.getParent().getMethods(base + i)))
+					return base + i;
+		}
+	}
+
+	/**
+	 * Boxes the given value if the given type (a supertype of the value's) is
+	 * primitive, adding any instructions needed to the given block.
+	 */
+	private static Value box(Value v, RegularType type, BasicBlock block) {
+		if (!(type instanceof PrimitiveType))
+			return v;
+		WrapperType wrapper = ((PrimitiveType)type).wrap();
+		Method valueOf = wrapper.getKlass().getMethod("valueOf", type.getTypeFactory().getMethodType(wrapper, type));
+		CallInst boxed = new CallInst(valueOf, v);
+		block.instructions().add(boxed);
+		return boxed;
+	}
+
+	/**
+	 * Casts the given Object to the given type, unboxing it if the type is
+	 * primitive, adding any instructions needed to the given block.
+	 */
+	private static Value unbox(Value v, RegularType type, BasicBlock block) {
+		if (!(type instanceof PrimitiveType)) {
+			if (v.getType().isSubtypeOf(type))
+				return v;
+			CastInst cast = new CastInst(type, v);
+			block.instructions().add(cast);
+			return cast;
+		}
+		WrapperType wrapper = ((PrimitiveType)type).wrap();
+		CastInst cast = new CastInst(wrapper, v);
+		block.instructions().add(cast);
+		Method value = wrapper.getKlass().getMethod(type.getKlass().getName()+"Value", type.getTypeFactory().getMethodType(type, wrapper));
+		CallInst unboxed = new CallInst(value, cast);
+		block.instructions().add(unboxed);
+		return unboxed;
+	}
+}
@@ -24,7 +24,12 @@ package edu.mit.streamjit.util.bytecode;
 import static com.google.common.base.Preconditions.*;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
 import edu.mit.streamjit.util.bytecode.insts.ArrayLengthInst;
 import edu.mit.streamjit.util.bytecode.insts.ArrayLoadInst;
 import edu.mit.streamjit.util.bytecode.insts.ArrayStoreInst;
@@ -55,18 +60,32 @@ import edu.mit.streamjit.util.bytecode.types.TypeFactory;
 import edu.mit.streamjit.util.bytecode.types.VoidType;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FrameNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.InsnNode;
 import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
 import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LdcInsnNode;
@@ -75,36 +94,300 @@ import org.objectweb.asm.tree.LookupSwitchInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
 import org.objectweb.asm.tree.TypeInsnNode;
 import org.objectweb.asm.tree.VarInsnNode;
 
 /**
  * Builds bytecode from methods.
+ *
+ * By default, methods are written straight to a MethodVisitor: each block is
+ * emitted to a short-lived instruction list, optimized with the block-local
+ * peephole patterns, and replayed to the visitor, with frames and maxStack
+ * computed along the way.  The {@link Option#TREE} option (and
+ * {@link #unresolve(Method)}) instead build a whole MethodNode, which permits
+ * peephole optimization across blocks and is convenient for debugging.
  * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
  * @since 4/17/2013
  */
 public final class MethodUnresolver {
+	/**
+	 * Options controlling bytecode emission.
+	 */
+	public static enum Option {
+		/**
+		 * Keep single-use values on the operand stack between their definition
+		 * and use (in the same block) instead of storing them to a register and
+		 * loading them back, and pop unused values rather than storing them.
+		 */
+		STACKIFY,
+		/**
+		 * Order blocks so likely successors fall through (see BlockLayout),
+		 * rather than emitting them in list order.
+		 */
+		LAYOUT,
+		/**
+		 * Emit a local variable table entry for every value in a register,
+		 * covering the blocks where it's live.
+		 */
+		LOCAL_VARIABLE_TABLE,
+		/**
+		 * Emit local variable table entries only for arguments and
+		 * LocalVariables.  (Ignored if {@link #LOCAL_VARIABLE_TABLE} is also
+		 * given.)  With neither option, no table is emitted, and value names
+		 * are never used.
+		 */
+		COMPACT_LOCAL_VARIABLE_TABLE,
+		/**
+		 * When writing to a ClassVisitor, build a MethodNode for the whole
+		 * method and optimize it before writing it, rather than writing each
+		 * block as it's emitted.
+		 */
+		TREE,
+		/**
+		 * Before writing a mutable klass, split methods whose code would be
+		 * larger than {@link MethodSplitter#DEFAULT_BUDGET} by outlining
+		 * regions into helper methods (see MethodSplitter).  This modifies
+		 * the Klass, so it isn't a default option; ModuleClassLoader and
+		 * ClassArchive turn it on.  Only honored by KlassUnresolver.
+		 */
+		SPLIT_HUGE_METHODS,
+	}
+	/**
+	 * How a SwitchInst is lowered to bytecode.
+	 */
+	public static enum SwitchStrategy {
+		/**
+		 * A single tableswitch, for dense case sets.  HotSpot compiles these
+		 * to a jump table.
+		 */
+		TABLE,
+		/**
+		 * A single lookupswitch, for sparse case sets.  HotSpot compiles these
+		 * to a binary search.
+		 */
+		LOOKUP,
+		/**
+		 * A chain of tableswitches covering dense clusters of cases, each
+		 * defaulting to the next, ending with a lookupswitch for the remaining
+		 * sparse cases (if any).
+		 */
+		HYBRID,
+	}
+	/**
+	 * The minimum number of cases in a dense cluster for a hybrid switch;
+	 * smaller clusters go in the lookupswitch.
+	 */
+	private static final int MIN_CLUSTER_SIZE = 4;
+	/**
+	 * The options used when none are specified.
+	 */
+	public static final ImmutableSet<Option> DEFAULT_OPTIONS = Sets.immutableEnumSet(Option.STACKIFY, Option.LAYOUT, Option.LOCAL_VARIABLE_TABLE);
+
 	public static MethodNode unresolve(Method m) {
+		return unresolve(m, DEFAULT_OPTIONS);
+	}
+
+	public static MethodNode unresolve(Method m, Set<Option> options) {
 		checkNotNull(m);
+		checkNotNull(options);
 		//Unresolving immutable methods (live Class methods) is only useful
 		//during testing.
 		//checkArgument(m.isMutable(), "unresolving immutable method %s", m);
 		if (!m.modifiers().contains(Modifier.ABSTRACT))
 			checkArgument(m.isResolved(), "unresolving unresolved method %s", m);
-		return new MethodUnresolver(m).unresolve();
+		return new MethodUnresolver(m, options).unresolve();
+	}
+
+	/**
+	 * Writes the given method to the given ClassVisitor with the default
+	 * options.
+	 * @param m the method to write
+	 * @param cv the visitor to write to
+	 */
+	public static void unresolve(Method m, ClassVisitor cv) {
+		unresolve(m, DEFAULT_OPTIONS, cv);
+	}
+
+	/**
+	 * Writes the given method to the given ClassVisitor with the given
+	 * options.  Unless the options include {@link Option#TREE}, no MethodNode
+	 * is built.
+	 * @param m the method to write
+	 * @param options the options to use
+	 * @param cv the visitor to write to
+	 */
+	public static void unresolve(Method m, Set<Option> options, ClassVisitor cv) {
+		checkNotNull(options);
+		checkNotNull(cv);
+		if (options.contains(Option.TREE)) {
+			unresolve(m, options).accept(cv);
+			return;
+		}
+		checkNotNull(m);
+		if (!m.modifiers().contains(Modifier.ABSTRACT))
+			checkArgument(m.isResolved(), "unresolving unresolved method %s", m);
+		new MethodUnresolver(m, options).unresolve(cv);
+	}
+
+	/**
+	 * Returns the strategy used to lower the given SwitchInst.
+	 * @param i a switch instruction
+	 * @return the strategy used to lower it
+	 */
+	public static SwitchStrategy switchStrategy(SwitchInst i) {
+		return switchStrategy(sortedKeys(i));
+	}
+
+	private static SwitchStrategy switchStrategy(int[] keys) {
+		if (keys.length > 0 && tableIsCheaper(keys[0], keys[keys.length-1], keys.length))
+			return SwitchStrategy.TABLE;
+		for (int[] cluster : clusters(keys))
+			if (cluster.length >= MIN_CLUSTER_SIZE)
+				return SwitchStrategy.HYBRID;
+		return SwitchStrategy.LOOKUP;
+	}
+
+	/**
+	 * Returns true if a tableswitch from lo to hi is cheaper than a
+	 * lookupswitch with the given number of cases, using javac's heuristic
+	 * (space cost plus three times time cost).
+	 */
+	private static boolean tableIsCheaper(int lo, int hi, int cases) {
+		long tableSpaceCost = 4 + ((long)hi - lo + 1), tableTimeCost = 3;
+		long lookupSpaceCost = 3 + 2 * (long)cases, lookupTimeCost = cases;
+		return tableSpaceCost + 3 * tableTimeCost <= lookupSpaceCost + 3 * lookupTimeCost;
+	}
+
+	/**
+	 * Greedily partitions the given sorted keys into maximal runs for which
+	 * a tableswitch is cheaper than a lookupswitch.  (Runs of one key are
+	 * trivially such runs.)
+	 */
+	private static List<int[]> clusters(int[] keys) {
+		List<int[]> clusters = new ArrayList<>();
+		for (int start = 0; start < keys.length;) {
+			int end = start+1;
+			for (int e = keys.length; e > start+1; --e)
+				if (tableIsCheaper(keys[start], keys[e-1], e-start)) {
+					end = e;
+					break;
+				}
+			clusters.add(Arrays.copyOfRange(keys, start, end));
+			start = end;
+		}
+		return clusters;
+	}
+
+	private static int[] sortedKeys(SwitchInst i) {
+		return Ints.toArray(caseTargets(i).keySet());
+	}
+
+	/**
+	 * Returns the given switch's cases mapped to their targets, in key order.
+	 */
+	@SuppressWarnings("unchecked")
+	private static SortedMap<Integer, BasicBlock> caseTargets(SwitchInst i) {
+		SortedMap<Integer, BasicBlock> targets = new TreeMap<>();
+		//Operands are value, default, then alternating cases and targets.
+		for (int k = 2; k < i.getNumOperands(); k += 2)
+			targets.put(((Constant<Integer>)i.getOperand(k)).getConstant(), (BasicBlock)i.getOperand(k+1));
+		return targets;
+	}
+
+	/**
+	 * Returns the number of bytes of bytecode saved in the given method by
+	 * keeping values on the operand stack (the {@link Option#STACKIFY}
+	 * option).
+	 * @param m the method to measure
+	 * @return the code length without stackification minus the code length
+	 * with it
+	 */
+	public static int stackificationSavings(Method m) {
+		Set<Option> without = EnumSet.noneOf(Option.class);
+		without.addAll(DEFAULT_OPTIONS);
+		without.remove(Option.STACKIFY);
+		Set<Option> with = EnumSet.copyOf(without);
+		with.add(Option.STACKIFY);
+		return codeLength(unresolve(m, without)) - codeLength(unresolve(m, with));
+	}
+
+	/**
+	 * Returns the length in bytes of the given method's code, as it would be
+	 * written to a class file.
+	 * @param methodNode the method to measure
+	 * @return the method's code length
+	 */
+	static int codeLength(MethodNode methodNode) {
+		if (methodNode.instructions.size() == 0)
+			return 0;
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, "CodeLength", null, "java/lang/Object", null);
+		LabelNode end = new LabelNode();
+		methodNode.instructions.add(end);
+		methodNode.accept(cw);
+		methodNode.instructions.remove(end);
+		return end.getLabel().getOffset();
 	}
 
 	private final Method method;
-	private final MethodNode methodNode;
-	private final Map<Value, Integer> registers;
+	private final Set<Option> options;
+	/**
+	 * The method being built, or null if writing directly to a visitor.
+	 */
+	private MethodNode methodNode;
+	private RegisterAllocator registerAllocator;
+	private Map<Value, Integer> registers;
 	private final Map<BasicBlock, LabelNode> labels;
+	/**
+	 * The blocks in emission order.
+	 */
+	private List<BasicBlock> layout;
+	/**
+	 * Maps each block to the block emitted after it.
+	 */
+	private final Map<BasicBlock, BasicBlock> nextBlock;
+	/**
+	 * Edge trampolines, emitted after all blocks so they don't break
+	 * fallthroughs between blocks.
+	 */
+	private final InsnList trampolines;
+	/**
+	 * Labels emitted within a block's terminator (between the stages of a
+	 * hybrid switch), mapped to that block.
+	 */
+	private final Map<LabelNode, BasicBlock> terminatorLabels;
+	/**
+	 * Labels of trampolines holding the phi moves for an edge, mapped to the
+	 * edge.
+	 */
+	private final Map<LabelNode, Map.Entry<BasicBlock, BasicBlock>> edgeLabels;
+	/**
+	 * Values left on the operand stack for their (only) use.
+	 */
+	private final Set<Value> stackified;
+	/**
+	 * Unused values that are popped rather than stored.
+	 */
+	private final Set<Value> popped;
+	/**
+	 * Commutative BinaryInsts whose operands are loaded in reverse order to
+	 * use a value already on the stack.
+	 */
+	private final Set<BinaryInst> swappedOperands;
 	private final PrimitiveType booleanType, byteType, charType, shortType,
 			intType, longType, floatType, doubleType;
-	private MethodUnresolver(Method m) {
+	private MethodUnresolver(Method m, Set<Option> options) {
 		this.method = m;
-		this.methodNode = new MethodNode(Opcodes.ASM4);
-		this.registers = new IdentityHashMap<>();
+		this.options = options;
 		this.labels = new IdentityHashMap<>();
+		this.nextBlock = new IdentityHashMap<>();
+		this.trampolines = new InsnList();
+		this.terminatorLabels = new IdentityHashMap<>();
+		this.edgeLabels = new IdentityHashMap<>();
+		this.stackified = Collections.newSetFromMap(new IdentityHashMap<Value, Boolean>());
+		this.popped = Collections.newSetFromMap(new IdentityHashMap<Value, Boolean>());
+		this.swappedOperands = Collections.newSetFromMap(new IdentityHashMap<BinaryInst, Boolean>());
 		TypeFactory tf = m.getParent().getParent().types();
 		this.booleanType = tf.getPrimitiveType(boolean.class);
 		this.byteType = tf.getPrimitiveType(byte.class);
@@ -116,55 +399,236 @@ public final class MethodUnresolver {
 		this.doubleType = tf.getPrimitiveType(double.class);
 	}
 
-	public MethodNode unresolve() {
+	private MethodNode unresolve() {
+		this.methodNode = new MethodNode(Opcodes.ASM4);
 		this.methodNode.access = Modifier.toBits(method.modifiers());
 		this.methodNode.name = method.getName();
 		this.methodNode.desc = methodDescriptor(method);
 		this.methodNode.exceptions = Collections.emptyList();
 
 		if (!method.modifiers().contains(Modifier.ABSTRACT)) {
-			allocateRegisters();
-			createLabels();
-			for (BasicBlock b : method.basicBlocks())
+			prepare();
+			for (BasicBlock b : layout)
 				methodNode.instructions.add(emit(b));
+			methodNode.instructions.add(trampolines);
 			peepholeOptimizations();
-			int maxRegister = registers.values().isEmpty() ? 0 : Collections.max(registers.values());
-			this.methodNode.maxLocals = maxRegister+2;
-			//We'd like to use ClassWriter's COMPUTE_MAXS option to compute this
-			//for us, but we also want to use CheckClassAdapter before
-			//ClassWriter to get useful errors.  But CheckClassAdapter will
-			//raise an error if we get this too low and run out of memory if we
-			//just say Short.MAX_VALUE.  I think any bytecode can push at most
-			//+2 net, so conservatively try 2*instructions.size().  Note that
-			//this counts labels and other pseudo-instructions, as well as
-			//instructions that have obviously no stack increase or a decrease.
-			this.methodNode.maxStack = Math.min(2*methodNode.instructions.size(), Short.MAX_VALUE);
-			buildLocalVariableTable();
+			insertFrames();
+			this.methodNode.maxLocals = registerAllocator.maxLocals();
+			this.methodNode.maxStack = maxStack(methodNode);
+			LabelNode first = new LabelNode(), last = new LabelNode();
+			methodNode.instructions.insert(first);
+			methodNode.instructions.add(last);
+			methodNode.localVariables = buildLocalVariableTable(first, last);
 		}
 
 		return methodNode;
 	}
 
-	private void allocateRegisters() {
-		//We allocate one or two registers (depending on type category) to each
-		//instruction producing a non-void value, the method arguments, and the
-		//local variables.
-		int regNum = 0;
-		for (Argument a : method.arguments()) {
-			registers.put(a, regNum);
-			regNum += a.getType().getCategory();
+	/**
+	 * Writes the method directly to the given ClassVisitor.  Each block's
+	 * instructions are emitted, optimized and written before the next block
+	 * is emitted, so we never hold the whole method's instructions.
+	 */
+	private void unresolve(ClassVisitor cv) {
+		MethodVisitor mv = cv.visitMethod(Modifier.toBits(method.modifiers()),
+				method.getName(), methodDescriptor(method), null, null);
+		if (!method.modifiers().contains(Modifier.ABSTRACT)) {
+			prepare();
+			mv.visitCode();
+			LabelNode first = new LabelNode(), last = new LabelNode();
+			first.accept(mv);
+			FrameBuilder frames = new FrameBuilder(blockJumpTargets());
+			int maxStack = 0;
+			for (BasicBlock b : layout)
+				maxStack = Math.max(maxStack, write(emit(b), frames, mv));
+			maxStack = Math.max(maxStack, write(trampolines, frames, mv));
+			last.accept(mv);
+			for (LocalVariableNode v : buildLocalVariableTable(first, last))
+				v.accept(mv);
+			mv.visitMaxs(maxStack, registerAllocator.maxLocals());
 		}
-		if (method.isMutable())
-			for (LocalVariable v : method.localVariables()) {
-				registers.put(v, regNum);
-				regNum += v.getType().getFieldType().getCategory();
+		mv.visitEnd();
+	}
+
+	/**
+	 * Decides how to emit the method: which values are stackified, register
+	 * allocation and block layout.
+	 */
+	private void prepare() {
+		if (options.contains(Option.STACKIFY))
+			stackify();
+		allocateRegisters();
+		createLabels();
+		layout = options.contains(Option.LAYOUT) ?
+				BlockLayout.layout(method) : ImmutableList.copyOf(method.basicBlocks());
+		for (int i = 0; i < layout.size()-1; ++i)
+			nextBlock.put(layout.get(i), layout.get(i+1));
+	}
+
+	/**
+	 * Optimizes the given instructions with the block-local peephole patterns,
+	 * then writes them to the given visitor, inserting frames.  The operand
+	 * stack is empty at every label we emit, so the stack depth can be
+	 * tracked in a single pass.
+	 * @return the maximum stack depth reached
+	 */
+	private static int write(InsnList insns, FrameBuilder frames, MethodVisitor mv) {
+		PeepholeOptimizer.optimize(insns, PeepholeOptimizer.LOCAL_PATTERNS);
+		int depth = 0, maxStack = 0;
+		for (AbstractInsnNode insn = insns.getFirst(); insn != null; insn = insn.getNext()) {
+			if (insn instanceof LabelNode) {
+				frames.label((LabelNode)insn);
+				depth = 0;
+			} else if (insn.getOpcode() != -1) {
+				FrameNode frame = frames.frameBefore(insn);
+				if (frame != null)
+					frame.accept(mv);
+				depth += stackDelta(insn);
+				maxStack = Math.max(maxStack, depth);
 			}
-		for (BasicBlock b : method.basicBlocks())
-			for (Instruction i : b.instructions())
-				if (!(i.getType() instanceof VoidType)) {
-					registers.put(i, regNum);
-					regNum += i.getType().getCategory();
+			insn.accept(mv);
+		}
+		return maxStack;
+	}
+
+	private void allocateRegisters() {
+		//Values whose live ranges don't overlap share registers, and phis are
+		//coalesced with their incoming values where possible.
+		Set<Value> unallocated = Collections.newSetFromMap(new IdentityHashMap<Value, Boolean>());
+		unallocated.addAll(stackified);
+		unallocated.addAll(popped);
+		this.registerAllocator = RegisterAllocator.allocate(method, unallocated);
+		this.registers = registerAllocator.registers();
+	}
+
+	/**
+	 * Decides which values to keep on the operand stack.  Within each block,
+	 * we simulate the stack of values defined but not yet used; a value is
+	 * kept on the stack if its only use is a later instruction in the same
+	 * block that loads it (along with any other stacked values it uses) first,
+	 * when it's on top of the stack.  Instructions are never reordered, so a
+	 * value whose use comes when the value isn't on top (or isn't loaded
+	 * first) gets a register as usual.
+	 */
+	private void stackify() {
+		for (BasicBlock block : method.basicBlocks()) {
+			List<Value> stack = new ArrayList<>();
+			for (Instruction i : block.instructions()) {
+				if (i instanceof PhiInst)
+					continue;
+				List<Value> loadOrder = operandLoadOrder(i);
+				int depth = stackedPrefix(stack, loadOrder);
+				if (i instanceof BinaryInst && isCommutative((BinaryInst)i)) {
+					int swappedDepth = stackedPrefix(stack, Lists.reverse(loadOrder));
+					if (swappedDepth > depth) {
+						swappedOperands.add((BinaryInst)i);
+						depth = swappedDepth;
+					}
 				}
+				for (int d = 0; d < depth; ++d)
+					stackified.add(stack.remove(stack.size()-1));
+				//Values used by this instruction but not consumed from the
+				//stack will need registers.
+				for (Iterator<Value> it = stack.iterator(); it.hasNext();)
+					if (Iterables.getOnlyElement(it.next().uses()).getUser() == i)
+						it.remove();
+
+				if (i.getType() instanceof VoidType || isSuperCtorCall(i))
+					continue;
+				if (i.uses().isEmpty())
+					popped.add(i);
+				else if (i.uses().size() == 1) {
+					User user = Iterables.getOnlyElement(i.uses()).getUser();
+					if (user instanceof Instruction && ((Instruction)user).getParent() == block && !(user instanceof PhiInst))
+						stack.add(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of values on top of the given stack that match a
+	 * prefix of the given load order.
+	 */
+	private static int stackedPrefix(List<Value> stack, List<Value> loadOrder) {
+		for (int depth = Math.min(stack.size(), loadOrder.size()); depth > 0; --depth)
+			if (stack.subList(stack.size()-depth, stack.size()).equals(loadOrder.subList(0, depth)))
+				return depth;
+		return 0;
+	}
+
+	/**
+	 * Returns the operands of the given instruction that are loaded onto the
+	 * stack, in the order they're loaded by emit(), excluding any loaded after
+	 * other instructions (like NEW and DUP) push values.
+	 */
+	private List<Value> operandLoadOrder(Instruction i) {
+		if (i instanceof CallInst) {
+			CallInst ci = (CallInst)i;
+			if (isSuperCtorCall(ci))
+				return ImmutableList.<Value>builder().add(method.arguments().get(0)).addAll(ci.arguments()).build();
+			if (ci.getMethod().isConstructor())
+				return ImmutableList.of();
+			return ImmutableList.copyOf(ci.arguments());
+		} else if (i instanceof LoadInst) {
+			LoadInst li = (LoadInst)i;
+			if (li.getLocation() instanceof LocalVariable || ((Field)li.getLocation()).isStatic())
+				return ImmutableList.of();
+			return ImmutableList.of(li.getInstance());
+		} else if (i instanceof StoreInst) {
+			StoreInst si = (StoreInst)i;
+			if (si.getLocation() instanceof LocalVariable || ((Field)si.getLocation()).isStatic())
+				return ImmutableList.of(si.getData());
+			return ImmutableList.of(si.getInstance(), si.getData());
+		} else if (i instanceof BranchInst)
+			return ImmutableList.of(i.getOperand(0), i.getOperand(1));
+		else if (i instanceof SwitchInst)
+			//Hybrid switches reload the value for each stage.
+			return switchStrategy((SwitchInst)i) == SwitchStrategy.HYBRID ?
+					ImmutableList.<Value>of() :
+					ImmutableList.of(((SwitchInst)i).getValue());
+		else if (i instanceof JumpInst)
+			return ImmutableList.of();
+		return ImmutableList.copyOf(i.operands());
+	}
+
+	private static boolean isCommutative(BinaryInst i) {
+		//Floating-point addition and multiplication are commutative too, but
+		//we don't bother.
+		if (i.getType().isFloatingPoint())
+			return false;
+		switch (i.getOperation()) {
+			case ADD:
+			case MUL:
+			case AND:
+			case OR:
+			case XOR:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Returns true if the given instruction is this constructor's call to its
+	 * superclass constructor, which initializes this (and so is emitted as
+	 * "aload_0, arguments, invokespecial" rather than "new, dup, arguments,
+	 * invokespecial", and produces no value).
+	 *
+	 * A constructor CallInst doesn't record which uninitialized value it
+	 * initializes, so this assumes, as MethodResolver does when it resolves
+	 * constructor calls, that any call to a direct superclass constructor from
+	 * a constructor initializes this.  Constructors that also construct new
+	 * instances of their direct superclass, or that delegate to a constructor
+	 * of their own class with this(...), aren't represented correctly by the
+	 * IR and won't be emitted correctly.
+	 */
+	private boolean isSuperCtorCall(Instruction i) {
+		if (!(i instanceof CallInst))
+			return false;
+		Method m = ((CallInst)i).getMethod();
+		return m.isConstructor() && method.isConstructor() &&
+				method.getParent().getSuperclass().equals(m.getParent());
 	}
 
 	private void createLabels() {
@@ -172,23 +636,75 @@ public final class MethodUnresolver {
 			labels.put(b, new LabelNode(new Label()));
 	}
 
-	private void buildLocalVariableTable() {
-		LabelNode first = new LabelNode(), last = new LabelNode();
-		methodNode.instructions.insert(first);
-		methodNode.instructions.add(last);
-		methodNode.localVariables = new ArrayList<>(registers.size());
-		for (Map.Entry<Value, Integer> r : registers.entrySet()) {
-			RegularType type = r.getKey() instanceof LocalVariable ?
-					((LocalVariable)r.getKey()).getType().getFieldType() :
-					(RegularType)r.getKey().getType();
-			methodNode.localVariables.add(new LocalVariableNode(
-					r.getKey().getName(),
+	/**
+	 * Builds the local variable table, given labels at the start and end of
+	 * the method's code.  Depending on the options, the table describes every
+	 * value in a register, only arguments and LocalVariables, or nothing.
+	 */
+	private List<LocalVariableNode> buildLocalVariableTable(LabelNode first, LabelNode last) {
+		boolean full = options.contains(Option.LOCAL_VARIABLE_TABLE);
+		if (!full && !options.contains(Option.COMPACT_LOCAL_VARIABLE_TABLE))
+			return new ArrayList<>(0);
+		List<LocalVariableNode> table = new ArrayList<>(full ? registers.size() : method.arguments().size());
+		//Registers are shared between values, so each value's entry covers
+		//only the runs of blocks where it's live (or defined).  LocalVariables
+		//and unshared arguments keep their registers throughout the method,
+		//so they get a single entry.  HotSpot rejects duplicate entries, so
+		//skip any we've already emitted.
+		Set<List<Object>> emitted = new HashSet<>();
+		Set<Value> wholeMethod = Collections.newSetFromMap(new IdentityHashMap<Value, Boolean>());
+		for (Value v : registers.keySet())
+			if (v instanceof LocalVariable)
+				wholeMethod.add(v);
+		wholeMethod.addAll(unsharedArguments());
+		for (Value v : wholeMethod)
+			addLocalVariable(v, first, last, emitted, table);
+
+		List<BasicBlock> blocks = layout;
+		Map<Value, Integer> runStart = new LinkedHashMap<>(), lastSeen = new LinkedHashMap<>();
+		for (int i = 0; i < blocks.size(); ++i) {
+			List<Value> present = new ArrayList<>(registerAllocator.liveInOrOut(blocks.get(i)));
+			for (Instruction inst : blocks.get(i).instructions())
+				if (registers.containsKey(inst) && !(inst instanceof PhiInst))
+					present.add(inst);
+			for (Value v : present) {
+				if (wholeMethod.contains(v) || !(full || v instanceof Argument))
+					continue;
+				Integer previous = lastSeen.put(v, i);
+				if (previous == null)
+					runStart.put(v, i);
+				else if (previous < i-1) {
+					addLocalVariable(v, blockStart(blocks, runStart.get(v), first), blockStart(blocks, previous+1, last), emitted, table);
+					runStart.put(v, i);
+				}
+			}
+		}
+		for (Map.Entry<Value, Integer> e : lastSeen.entrySet())
+			addLocalVariable(e.getKey(), blockStart(blocks, runStart.get(e.getKey()), first), blockStart(blocks, e.getValue()+1, last), emitted, table);
+		return table;
+	}
+
+	/**
+	 * Returns the label at the start of the block with the given index, or
+	 * the given label if the index is at either end of the method.
+	 */
+	private LabelNode blockStart(List<BasicBlock> blocks, int index, LabelNode end) {
+		return index == 0 || index == blocks.size() ? end : labels.get(blocks.get(index));
+	}
+
+	private void addLocalVariable(Value v, LabelNode start, LabelNode end, Set<List<Object>> emitted, List<LocalVariableNode> table) {
+		RegularType type = v instanceof LocalVariable ?
+				((LocalVariable)v).getType().getFieldType() :
+				(RegularType)v.getType();
+		int register = registers.get(v);
+		if (emitted.add(Arrays.<Object>asList(start, end, v.getName(), register)))
+			table.add(new LocalVariableNode(
+					v.getName(),
 					type.getDescriptor(),
 					null,
-					first,
-					last,
-					r.getValue()));
-		}
+					start,
+					end,
+					register));
 	}
 
 	private InsnList emit(BasicBlock block) {
@@ -201,9 +717,6 @@ public final class MethodUnresolver {
 		InsnList insns = new InsnList();
 		insns.add(labels.get(block));
 		for (Instruction i : block.instructions()) {
-			if (i instanceof TerminatorInst)
-				emitPhiMoves(block, insns);
-
 			if (i instanceof ArrayLengthInst)
 				emit((ArrayLengthInst)i, insns);
 			else if (i instanceof ArrayLoadInst)
@@ -297,8 +810,13 @@ public final class MethodUnresolver {
 			throw new AssertionError(i);
 	}
 	private void emit(BinaryInst i, InsnList insns) {
-		load(i.getOperand(0), insns);
-		load(i.getOperand(1), insns);
+		if (swappedOperands.contains(i)) {
+			load(i.getOperand(1), insns);
+			load(i.getOperand(0), insns);
+		} else {
+			load(i.getOperand(0), insns);
+			load(i.getOperand(1), insns);
+		}
 		int opcode = 0;
 		if (i.getOperand(0).getType().isSubtypeOf(intType)) {
 			switch (i.getOperation()) {
@@ -324,7 +842,7 @@ public final class MethodUnresolver {
 					opcode = Opcodes.ISHR;
 					break;
 				case USHR:
-					opcode = Opcodes.ISHR;
+					opcode = Opcodes.IUSHR;
 					break;
 				case AND:
 					opcode = Opcodes.IAND;
@@ -362,7 +880,7 @@ public final class MethodUnresolver {
 					opcode = Opcodes.LSHR;
 					break;
 				case USHR:
-					opcode = Opcodes.LSHR;
+					opcode = Opcodes.LUSHR;
 					break;
 				case AND:
 					opcode = Opcodes.LAND;
@@ -444,11 +962,19 @@ public final class MethodUnresolver {
 			throw new IllegalArgumentException("Branch targets block not in method: "+i);
 		if (!method.basicBlocks().contains(fallthrough))
 			throw new IllegalArgumentException("Branch falls through to block not in method: "+i);
+		BasicBlock block = i.getParent();
+		boolean invert = invertBranch(i);
+		if (invert) {
+			BasicBlock t = target;
+			target = fallthrough;
+			fallthrough = t;
+		}
+		LabelNode targetLabel = edgeTarget(block, target);
 		load(i.getOperand(0), insns);
 		load(i.getOperand(1), insns);
 		//TODO: long, float, doubles need to go through CMP inst first
 		int opcode;
-		if (left.getType() instanceof ReferenceType || left.getType() instanceof VoidType) {
+		if (left.getType() instanceof ReferenceType || left.getType() instanceof NullType || left.getType() instanceof VoidType) {
 			switch (i.getSense()) {
 				case EQ:
 					opcode = Opcodes.IF_ACMPEQ;
@@ -484,17 +1010,48 @@ public final class MethodUnresolver {
 			}
 		} else
 			throw new AssertionError(i);
-		insns.add(new JumpInsnNode(opcode, labels.get(target)));
-		insns.add(new JumpInsnNode(Opcodes.GOTO, labels.get(fallthrough)));
+		insns.add(new JumpInsnNode(invert ? negate(opcode) : opcode, targetLabel));
+		emitFallthrough(block, fallthrough, insns);
+	}
+
+	/**
+	 * Returns true if the given branch should be emitted inverted, jumping to
+	 * its fallthrough block and falling through to its target.  The jump edge
+	 * needs a trampoline if it has phi moves, and the fallthrough edge needs
+	 * a goto unless its block comes next; we invert the branch if that needs
+	 * fewer of them.
+	 */
+	private boolean invertBranch(BranchInst i) {
+		BasicBlock target = (BasicBlock)i.getOperand(2), fallthrough = (BasicBlock)i.getOperand(3);
+		BasicBlock block = i.getParent(), next = nextBlock.get(block);
+		int cost = (registerAllocator.phisMovedOn(block, target).isEmpty() ? 0 : 1) +
+				(fallthrough == next ? 0 : 1);
+		int invertedCost = (registerAllocator.phisMovedOn(block, fallthrough).isEmpty() ? 0 : 1) +
+				(target == next ? 0 : 1);
+		return invertedCost < cost;
+	}
+
+	/**
+	 * Returns the conditional jump opcode taking the jump exactly when the
+	 * given one doesn't.
+	 */
+	private static int negate(int opcode) {
+		if (Opcodes.IFEQ <= opcode && opcode <= Opcodes.IFLE)
+			return ((opcode - Opcodes.IFEQ) ^ 1) + Opcodes.IFEQ;
+		if (Opcodes.IF_ICMPEQ <= opcode && opcode <= Opcodes.IF_ACMPNE)
+			return ((opcode - Opcodes.IF_ICMPEQ) ^ 1) + Opcodes.IF_ICMPEQ;
+		if (opcode == Opcodes.IFNULL)
+			return Opcodes.IFNONNULL;
+		if (opcode == Opcodes.IFNONNULL)
+			return Opcodes.IFNULL;
+		throw new AssertionError(opcode);
 	}
 	private void emit(CallInst i, InsnList insns) {
 		Method m = i.getMethod();
 		boolean callingSuperCtor = false;
 		if (m.isConstructor()) {
 			//If we're calling super(), load this.
-			//TODO: this will get confused if we call a superclass constructor
-			//for any reason other than our own initialization!
-			if (method.isConstructor() && method.getParent().getSuperclass().equals(m.getParent())) {
+			if (isSuperCtorCall(i)) {
 				load(method.arguments().get(0), insns);
 				callingSuperCtor = true;
 			} else {
@@ -552,7 +1109,7 @@ public final class MethodUnresolver {
 		BasicBlock target = (BasicBlock)i.getOperand(0);
 		if (!method.basicBlocks().contains(target))
 			throw new IllegalArgumentException("Jump to block not in method: "+i);
-		insns.add(new JumpInsnNode(Opcodes.GOTO, labels.get(target)));
+		emitFallthrough(i.getParent(), target, insns);
 	}
 	private void emit(LoadInst i, InsnList insns) {
 		Value location = i.getLocation();
@@ -641,41 +1198,225 @@ public final class MethodUnresolver {
 		}
 	}
 	private void emit(SwitchInst i, InsnList insns) {
-		load(i.getValue(), insns);
-		LookupSwitchInsnNode insn = new LookupSwitchInsnNode(null, null, null);
-		insn.dflt = labels.get(i.getDefault());
-		Iterator<Constant<Integer>> cases = i.cases().iterator();
-		Iterator<BasicBlock> targets = i.successors().iterator();
-		while (cases.hasNext()) {
-			insn.keys.add(cases.next().getConstant());
-			insn.labels.add(labels.get(targets.next()));
+		SortedMap<Integer, BasicBlock> cases = caseTargets(i);
+		int[] keys = Ints.toArray(cases.keySet());
+		Map<BasicBlock, LabelNode> targets = new IdentityHashMap<>();
+		for (BasicBlock b : i.successors())
+			if (!targets.containsKey(b))
+				targets.put(b, edgeTarget(i.getParent(), b));
+		LabelNode dflt = targets.get(i.getDefault());
+		switch (switchStrategy(keys)) {
+			case TABLE:
+				load(i.getValue(), insns);
+				insns.add(tableSwitch(cases, targets, keys, dflt, dflt));
+				break;
+			case LOOKUP:
+				load(i.getValue(), insns);
+				insns.add(lookupSwitch(cases, targets, keys, dflt));
+				break;
+			case HYBRID:
+				List<int[]> clusters = clusters(keys);
+				List<Integer> sparse = new ArrayList<>();
+				for (int[] c : clusters)
+					if (c.length < MIN_CLUSTER_SIZE)
+						for (int k : c)
+							sparse.add(k);
+				List<int[]> dense = new ArrayList<>();
+				for (int[] c : clusters)
+					if (c.length >= MIN_CLUSTER_SIZE)
+						dense.add(c);
+				for (int d = 0; d < dense.size(); ++d) {
+					boolean last = d == dense.size()-1 && sparse.isEmpty();
+					LabelNode next = last ? dflt : new LabelNode(new Label());
+					load(i.getValue(), insns);
+					insns.add(tableSwitch(cases, targets, dense.get(d), dflt, next));
+					if (!last) {
+						insns.add(next);
+						terminatorLabels.put(next, i.getParent());
+					}
+				}
+				if (!sparse.isEmpty()) {
+					load(i.getValue(), insns);
+					insns.add(lookupSwitch(cases, targets, Ints.toArray(sparse), dflt));
+				}
+				break;
+			default:
+				throw new AssertionError();
 		}
-		insns.add(insn);
 	}
+
+	/**
+	 * Builds a tableswitch over the given sorted keys, jumping to the given
+	 * labels for the case targets, with holes going to hole and out-of-range
+	 * values going to dflt.
+	 */
+	private TableSwitchInsnNode tableSwitch(SortedMap<Integer, BasicBlock> cases, Map<BasicBlock, LabelNode> targetLabels, int[] keys, LabelNode hole, LabelNode dflt) {
+		int lo = keys[0], hi = keys[keys.length-1];
+		LabelNode[] targets = new LabelNode[hi-lo+1];
+		Arrays.fill(targets, hole);
+		for (int k : keys)
+			targets[k-lo] = targetLabels.get(cases.get(k));
+		return new TableSwitchInsnNode(lo, hi, dflt, targets);
+	}
+
+	private LookupSwitchInsnNode lookupSwitch(SortedMap<Integer, BasicBlock> cases, Map<BasicBlock, LabelNode> targetLabels, int[] keys, LabelNode dflt) {
+		LabelNode[] targets = new LabelNode[keys.length];
+		for (int k = 0; k < keys.length; ++k)
+			targets[k] = targetLabels.get(cases.get(keys[k]));
+		return new LookupSwitchInsnNode(dflt, keys, targets);
+	}
+
 	private void emit(ThrowInst i, InsnList insns) {
 		load(i.getOperand(0), insns);
 		insns.add(new InsnNode(Opcodes.ATHROW));
 	}
 
-	private void emitPhiMoves(BasicBlock block, InsnList insns) {
-		//In case phi instructions refer to one another, load all values onto
-		//the operand stack, then store all at once.
-		Deque<Value> pendingStores = new ArrayDeque<>();
-		for (BasicBlock b : block.successors())
-			for (Instruction i : b.instructions())
-				if (i instanceof PhiInst) {
-					PhiInst p = (PhiInst)i;
-					Value ourDef = p.get(block);
-					if (ourDef != null) {
-						load(ourDef, insns);
-						pendingStores.push(p);
-					}
+	/**
+	 * Emits the given edge at the end of the given block's code: the edge's
+	 * phi moves, then a goto to the successor, unless it's the next block
+	 * emitted.  If the successor is just a return, we copy the return instead
+	 * of jumping to it.
+	 */
+	private void emitFallthrough(BasicBlock from, BasicBlock to, InsnList insns) {
+		emitEdgeMoves(from, to, insns);
+		if (to == nextBlock.get(from))
+			return;
+		ReturnInst ret = loneReturn(to);
+		if (ret != null)
+			emit(ret, insns);
+		else
+			insns.add(new JumpInsnNode(Opcodes.GOTO, labels.get(to)));
+	}
+
+	/**
+	 * If the given block contains only phis and a return that can be copied
+	 * into a predecessor, returns the return; otherwise returns null.
+	 */
+	private ReturnInst loneReturn(BasicBlock block) {
+		for (Instruction i : block.instructions()) {
+			if (i instanceof PhiInst)
+				continue;
+			if (i instanceof ReturnInst && (i.getNumOperands() == 0 || !stackified.contains(i.getOperand(0))))
+				return (ReturnInst)i;
+			return null;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the labels of blocks our emitted code jumps to (directly or via
+	 * a trampoline), predicted from the IR before emitting any code.  Jumps
+	 * peephole optimization later removes just cause unneeded frames.
+	 */
+	private Set<LabelNode> blockJumpTargets() {
+		Set<LabelNode> targets = Collections.newSetFromMap(new IdentityHashMap<LabelNode, Boolean>());
+		for (BasicBlock b : method.basicBlocks()) {
+			TerminatorInst t = b.getTerminator();
+			BasicBlock fallthrough = null;
+			if (t == null)
+				continue; //emit() will complain
+			else if (t instanceof JumpInst)
+				fallthrough = (BasicBlock)t.getOperand(0);
+			else if (t instanceof BranchInst) {
+				boolean invert = invertBranch((BranchInst)t);
+				fallthrough = (BasicBlock)t.getOperand(invert ? 2 : 3);
+				targets.add(labels.get((BasicBlock)t.getOperand(invert ? 3 : 2)));
+			} else
+				for (BasicBlock s : t.successors())
+					targets.add(labels.get(s));
+			if (fallthrough != null && fallthrough != nextBlock.get(b) && loneReturn(fallthrough) == null)
+				targets.add(labels.get(fallthrough));
+		}
+		return targets;
+	}
+
+	/**
+	 * Returns the label to jump to for the given edge: the successor's label
+	 * if the edge needs no phi moves, otherwise the label of a new trampoline
+	 * performing the moves and jumping to the successor.  (This splits the
+	 * edge, so the moves only run when it's taken.)
+	 */
+	private LabelNode edgeTarget(BasicBlock from, BasicBlock to) {
+		if (registerAllocator.phisMovedOn(from, to).isEmpty())
+			return labels.get(to);
+		LabelNode label = new LabelNode(new Label());
+		edgeLabels.put(label, Maps.immutableEntry(from, to));
+		trampolines.add(label);
+		emitEdgeMoves(from, to, trampolines);
+		trampolines.add(new JumpInsnNode(Opcodes.GOTO, labels.get(to)));
+		return label;
+	}
+
+	/**
+	 * Emits the moves into the phis of the given successor for the edge from
+	 * the given block.  The moves are a parallel copy: we emit each move whose
+	 * destination isn't a pending move's source, and when only cycles remain,
+	 * keep a source on the operand stack to break one, storing it once its
+	 * destination is no longer needed.  Moves between coalesced registers are
+	 * omitted.
+	 */
+	private void emitEdgeMoves(BasicBlock from, BasicBlock to, InsnList insns) {
+		List<PhiInst> pending = new ArrayList<>();
+		for (PhiInst p : registerAllocator.phisMovedOn(from, to)) {
+			Value v = p.get(from);
+			if (!(registers.containsKey(v) && registers.get(v).equals(registers.get(p))))
+				pending.add(p);
+		}
+		Deque<PhiInst> saved = new ArrayDeque<>();
+		while (!pending.isEmpty() || !saved.isEmpty()) {
+			PhiInst ready = null;
+			for (PhiInst p : pending)
+				if (!sourceOverlaps(pending, p, from)) {
+					ready = p;
+					break;
 				}
-		while (!pendingStores.isEmpty())
-			store(pendingStores.pop(), insns);
+			if (ready != null) {
+				pending.remove(ready);
+				load(ready.get(from), insns);
+				store(ready, insns);
+			} else if (!saved.isEmpty() && !sourceOverlaps(pending, saved.peek(), from))
+				store(saved.pop(), insns);
+			else {
+				//Every pending destination is some pending move's source.
+				//Save a source that's also a destination, freeing it.
+				PhiInst cycle = null;
+				for (PhiInst p : pending)
+					for (PhiInst q : pending)
+						if (p != q && sourceOverlaps(ImmutableList.of(p), q, from)) {
+							cycle = p;
+							break;
+						}
+				assert cycle != null : pending;
+				pending.remove(cycle);
+				load(cycle.get(from), insns);
+				saved.push(cycle);
+			}
+		}
+	}
+
+	/**
+	 * Returns true iff the source of a move in the given list other than the
+	 * given phi's occupies any of the slots of the given phi's register.
+	 */
+	private boolean sourceOverlaps(List<PhiInst> moves, PhiInst phi, BasicBlock from) {
+		int dst = registers.get(phi), dstEnd = dst + phi.getType().getCategory();
+		for (PhiInst p : moves) {
+			if (p == phi)
+				continue;
+			Value v = p.get(from);
+			if (!registers.containsKey(v))
+				continue;
+			int src = registers.get(v), srcEnd = src + v.getType().getCategory();
+			if (src < dstEnd && dst < srcEnd)
+				return true;
+		}
+		return false;
 	}
 
 	private void load(Value v, InsnList insns) {
+		//Already on the stack.
+		if (stackified.contains(v))
+			return;
 		if (v instanceof Constant) {
 			Object c = ((Constant<?>)v).getConstant();
 			if (c == null)
@@ -765,6 +1506,13 @@ public final class MethodUnresolver {
 	}
 
 	private void store(Value v, InsnList insns) {
+		//Leave it on the stack.
+		if (stackified.contains(v))
+			return;
+		if (popped.contains(v)) {
+			insns.add(new InsnNode(v.getType().getCategory() == 2 ? Opcodes.POP2 : Opcodes.POP));
+			return;
+		}
 		assert registers.containsKey(v) : v;
 		int reg = registers.get(v);
 		Type t = v instanceof LocalVariable ? ((LocalVariable)v).getType().getFieldType() : v.getType();
@@ -797,62 +1545,433 @@ public final class MethodUnresolver {
 	}
 
 	/**
-	 * Performs peephole optimizations at the bytecode level, primarily to
-	 * reduce bytecode size for better inlining.  (HotSpot makes inlining
-	 * decisions based partially on the number of bytes in a method.)
+	 * Inserts stack map frames where the verifier requires them: at jump
+	 * targets and after unconditional control transfers.  Frames are built
+	 * from the IR rather than by ASM's dataflow analysis (which needs to load
+	 * classes to merge reference types).  The operand stack is always empty
+	 * at labels we emit, and a register holds a value wherever that value is
+	 * live, so the locals are just the live values' types.
+	 *
+	 * This runs after peephole optimization, which may remove code between
+	 * labels; where several labels end up at the same offset, we use the
+	 * frame of the last one, which is valid for the others because no code
+	 * separates them.
 	 */
-	private void peepholeOptimizations() {
-		boolean progress;
-		do {
-			progress = false;
-			progress |= removeLoadStore();
-			progress |= removeUnnecessaryGotos();
-		} while (progress);
+	private void insertFrames() {
+		Set<LabelNode> targets = Collections.newSetFromMap(new IdentityHashMap<LabelNode, Boolean>());
+		for (Iterator<AbstractInsnNode> it = methodNode.instructions.iterator(); it.hasNext();) {
+			AbstractInsnNode insn = it.next();
+			if (insn instanceof JumpInsnNode)
+				targets.add(((JumpInsnNode)insn).label);
+			else if (insn instanceof TableSwitchInsnNode) {
+				targets.add(((TableSwitchInsnNode)insn).dflt);
+				targets.addAll(((TableSwitchInsnNode)insn).labels);
+			} else if (insn instanceof LookupSwitchInsnNode) {
+				targets.add(((LookupSwitchInsnNode)insn).dflt);
+				targets.addAll(((LookupSwitchInsnNode)insn).labels);
+			}
+		}
+
+		FrameBuilder frames = new FrameBuilder(targets);
+		for (Iterator<AbstractInsnNode> it = methodNode.instructions.iterator(); it.hasNext();) {
+			AbstractInsnNode insn = it.next();
+			if (insn instanceof LabelNode)
+				frames.label((LabelNode)insn);
+			else if (insn.getOpcode() != -1) {
+				FrameNode frame = frames.frameBefore(insn);
+				if (frame != null)
+					methodNode.instructions.insertBefore(insn, frame);
+			}
+		}
 	}
 
-	private static final ImmutableList<Integer> LOADS = ImmutableList.of(
-			Opcodes.ALOAD, Opcodes.DLOAD, Opcodes.FLOAD, Opcodes.ILOAD, Opcodes.LLOAD
-	);
-	private static final ImmutableList<Integer> STORES = ImmutableList.of(
-			Opcodes.ASTORE, Opcodes.DSTORE, Opcodes.FSTORE, Opcodes.ISTORE, Opcodes.LSTORE
-	);
 	/**
-	 * Removes "xLOAD N xSTORE N".
-	 * @return true iff changes were made
+	 * Decides where frames are needed as instructions are visited in order,
+	 * and builds them.  Trampoline labels and labels within terminators are
+	 * always assumed to be jump targets; block labels are jump targets if
+	 * they're in the given set.
 	 */
-	private boolean removeLoadStore() {
-		InsnList insns = methodNode.instructions;
-		for (int i = 0; i < insns.size()-1; ++i) {
-			AbstractInsnNode first = insns.get(i);
-			int index = LOADS.indexOf(first.getOpcode());
-			if (index == -1) continue;
-			AbstractInsnNode second = insns.get(i+1);
-			if (second.getOpcode() != STORES.get(index)) continue;
-			if (((VarInsnNode)first).var != ((VarInsnNode)second).var) continue;
-			insns.remove(first);
-			insns.remove(second);
-			return true;
+	private final class FrameBuilder {
+		private final Set<LabelNode> targets;
+		private final Map<LabelNode, BasicBlock> blocksByLabel = new IdentityHashMap<>();
+		private final Set<BasicBlock> uninitializedThis = uninitializedThisBlocks();
+		private final Map<BasicBlock, BitSet[]> assigned = definitelyAssignedLocalVariables();
+		private final List<Argument> pinned = unsharedArguments();
+		/**
+		 * Labels since the last real instruction.
+		 */
+		private final List<LabelNode> group = new ArrayList<>();
+		private boolean afterTransfer = false;
+		private FrameBuilder(Set<LabelNode> targets) {
+			this.targets = targets;
+			for (Map.Entry<BasicBlock, LabelNode> e : labels.entrySet())
+				blocksByLabel.put(e.getValue(), e.getKey());
 		}
+
+		public void label(LabelNode label) {
+			group.add(label);
+		}
+
+		/**
+		 * Returns the frame to place before the given real instruction, or
+		 * null if none is needed.
+		 */
+		public FrameNode frameBefore(AbstractInsnNode insn) {
+			boolean needed = afterTransfer;
+			for (LabelNode l : group)
+				needed |= targets.contains(l) || edgeLabels.containsKey(l) || terminatorLabels.containsKey(l);
+			FrameNode frame = null;
+			if (needed) {
+				for (LabelNode l : Lists.reverse(group)) {
+					if (blocksByLabel.containsKey(l)) {
+						BasicBlock b = blocksByLabel.get(l);
+						frame = frame(liveInValues(b), pinned, uninitializedThis.contains(b), assigned.get(b)[0]);
+					} else if (edgeLabels.containsKey(l)) {
+						BasicBlock from = edgeLabels.get(l).getKey(), to = edgeLabels.get(l).getValue();
+						frame = frame(registerAllocator.liveOnEdge(from, to), pinned,
+								uninitializedThis.contains(from) && !containsSuperCtorCall(from), assigned.get(from)[1]);
+					} else if (terminatorLabels.containsKey(l)) {
+						BasicBlock b = terminatorLabels.get(l);
+						frame = frame(liveBeforeTerminator(b), pinned,
+								uninitializedThis.contains(b) && !containsSuperCtorCall(b), assigned.get(b)[1]);
+					}
+					if (frame != null)
+						break;
+				}
+				if (frame == null)
+					throw new AssertionError("no frame for "+insn+" in "+method.getName());
+			}
+			group.clear();
+			afterTransfer = PeepholeOptimizer.isUnconditionalTransfer(insn.getOpcode());
+			return frame;
+		}
+	}
+
+	private List<Value> liveInValues(BasicBlock block) {
+		List<Value> live = new ArrayList<>();
+		for (Value v : registerAllocator.liveInOrOut(block))
+			if (registerAllocator.isLiveIn(v, block))
+				live.add(v);
+		return live;
+	}
+
+	/**
+	 * Returns the values in registers at the given block's terminator: those
+	 * live out of the block and those used by the terminator.
+	 */
+	private List<Value> liveBeforeTerminator(BasicBlock block) {
+		List<Value> live = new ArrayList<>();
+		for (Value v : registerAllocator.liveInOrOut(block))
+			if (registerAllocator.isLiveOut(v, block))
+				live.add(v);
+		for (Value v : block.getTerminator().operands())
+			if (registers.containsKey(v) && !stackified.contains(v) && !live.contains(v))
+				live.add(v);
+		return live;
+	}
+
+	/**
+	 * Returns the arguments whose slots aren't shared with any other value.
+	 * These hold their argument throughout the method, so we put them in
+	 * every frame even where they're dead; frames then differ from each other
+	 * less, so they compress to smaller StackMapTable entries.
+	 */
+	private List<Argument> unsharedArguments() {
+		BitSet shared = new BitSet();
+		for (Map.Entry<Value, Integer> e : registers.entrySet())
+			if (!(e.getKey() instanceof Argument)) {
+				Type t = e.getKey() instanceof LocalVariable ?
+						((LocalVariable)e.getKey()).getType().getFieldType() : e.getKey().getType();
+				shared.set(e.getValue(), e.getValue() + t.getCategory());
+			}
+		List<Argument> unshared = new ArrayList<>();
+		for (Argument a : method.arguments()) {
+			int r = registers.get(a);
+			if (shared.get(r, r + a.getType().getCategory()).isEmpty())
+				unshared.add(a);
+		}
+		return unshared;
+	}
+
+	private FrameNode frame(List<Value> live, List<Argument> pinned, boolean uninitializedThis, BitSet assignedLocals) {
+		Object[] slots = new Object[registerAllocator.maxLocals()];
+		for (Value v : Iterables.concat(pinned, live)) {
+			int r = registers.get(v);
+			slots[r] = uninitializedThis && v.equals(method.arguments().get(0)) ?
+					Opcodes.UNINITIALIZED_THIS : frameType(v.getType());
+		}
+		if (method.isMutable()) {
+			List<LocalVariable> localVariables = method.localVariables();
+			for (int i = assignedLocals.nextSetBit(0); i >= 0; i = assignedLocals.nextSetBit(i+1)) {
+				LocalVariable v = localVariables.get(i);
+				slots[registers.get(v)] = frameType(v.getType().getFieldType());
+			}
+		}
+
+		List<Object> locals = new ArrayList<>();
+		int lastNonTop = 0;
+		for (int r = 0; r < slots.length;) {
+			Object type = slots[r] != null ? slots[r] : Opcodes.TOP;
+			locals.add(type);
+			if (type != Opcodes.TOP)
+				lastNonTop = locals.size();
+			r += type == Opcodes.LONG || type == Opcodes.DOUBLE ? 2 : 1;
+		}
+		Object[] localArray = locals.subList(0, lastNonTop).toArray();
+		return new FrameNode(Opcodes.F_NEW, localArray.length, localArray, 0, new Object[0]);
+	}
+
+	private Object frameType(Type t) {
+		if (t instanceof NullType)
+			return Opcodes.NULL;
+		if (t instanceof ReferenceType)
+			return internalName(((ReferenceType)t).getKlass());
+		if (t.equals(longType))
+			return Opcodes.LONG;
+		if (t.equals(doubleType))
+			return Opcodes.DOUBLE;
+		if (t.equals(floatType))
+			return Opcodes.FLOAT;
+		assert t instanceof PrimitiveType : t;
+		return Opcodes.INTEGER;
+	}
+
+	/**
+	 * Returns the blocks entered before the superclass constructor has been
+	 * called (in a constructor), where this is an uninitializedThis.
+	 */
+	private Set<BasicBlock> uninitializedThisBlocks() {
+		Set<BasicBlock> blocks = Collections.newSetFromMap(new IdentityHashMap<BasicBlock, Boolean>());
+		if (!method.isConstructor())
+			return blocks;
+		Deque<BasicBlock> worklist = new ArrayDeque<>();
+		worklist.add(method.basicBlocks().get(0));
+		while (!worklist.isEmpty()) {
+			BasicBlock b = worklist.pop();
+			if (!blocks.add(b) || containsSuperCtorCall(b))
+				continue;
+			Iterables.addAll(worklist, b.successors());
+		}
+		return blocks;
+	}
+
+	private boolean containsSuperCtorCall(BasicBlock block) {
+		for (Instruction i : block.instructions())
+			if (isSuperCtorCall(i))
+				return true;
 		return false;
 	}
 
 	/**
-	 * Removes goto instructions that go to the label immediately following
-	 * them.
-	 * @return true iff changes were made
+	 * LocalVariables aren't in SSA form, so we must only put them in frames
+	 * where they're definitely assigned.  Returns a map from each block to the
+	 * LocalVariables (by index) definitely assigned on entry to and exit from
+	 * it.
 	 */
-	private boolean removeUnnecessaryGotos() {
+	private Map<BasicBlock, BitSet[]> definitelyAssignedLocalVariables() {
+		Map<BasicBlock, BitSet[]> result = new IdentityHashMap<>();
+		List<LocalVariable> localVariables = method.isMutable() ?
+				method.localVariables() : ImmutableList.<LocalVariable>of();
+		Map<BasicBlock, BitSet> stores = new IdentityHashMap<>();
+		for (BasicBlock b : method.basicBlocks()) {
+			BitSet s = new BitSet();
+			for (Instruction i : b.instructions())
+				if (i instanceof StoreInst && ((StoreInst)i).getLocation() instanceof LocalVariable)
+					s.set(localVariables.indexOf(((StoreInst)i).getLocation()));
+			stores.put(b, s);
+			BitSet all = new BitSet();
+			all.set(0, localVariables.size());
+			result.put(b, new BitSet[]{all, (BitSet)all.clone()});
+		}
+
+		BasicBlock entry = method.basicBlocks().get(0);
+		boolean changed;
+		do {
+			changed = false;
+			for (BasicBlock b : method.basicBlocks()) {
+				BitSet in = new BitSet();
+				if (b != entry && !Iterables.isEmpty(b.predecessors())) {
+					in.set(0, localVariables.size());
+					for (BasicBlock p : b.predecessors())
+						in.and(result.get(p)[1]);
+				}
+				BitSet out = (BitSet)in.clone();
+				out.or(stores.get(b));
+				BitSet[] old = result.get(b);
+				if (!in.equals(old[0]) || !out.equals(old[1])) {
+					result.put(b, new BitSet[]{in, out});
+					changed = true;
+				}
+			}
+		} while (changed);
+		return result;
+	}
+
+	/**
+	 * Computes the maximum operand stack depth of the given method's code, by
+	 * propagating depths along control flow.  (We never emit exception
+	 * handlers, so we don't consider them.)
+	 */
+	static int maxStack(MethodNode methodNode) {
 		InsnList insns = methodNode.instructions;
-		for (int i = 0; i < insns.size()-1; ++i) {
-			AbstractInsnNode first = insns.get(i);
-			if (first.getOpcode() != Opcodes.GOTO) continue;
-			AbstractInsnNode second = insns.get(i+1);
-			if (!(second instanceof LabelNode)) continue;
-			if (((JumpInsnNode)first).label != second) continue;
-			insns.remove(first);
-			return true;
+		if (insns.size() == 0)
+			return 0;
+		int[] depths = new int[insns.size()];
+		Arrays.fill(depths, -1);
+		Deque<Integer> worklist = new ArrayDeque<>();
+		depths[0] = 0;
+		worklist.add(0);
+
+		int maxStack = 0;
+		while (!worklist.isEmpty()) {
+			int index = worklist.pop();
+			int depth = depths[index];
+			for (AbstractInsnNode insn = insns.get(index); insn != null; insn = insn.getNext()) {
+				index = insns.indexOf(insn);
+				if (depths[index] != -1 && depths[index] != depth)
+					throw new IllegalStateException("inconsistent stack depth at "+index+" in "+methodNode.name);
+				depths[index] = depth;
+				depth += stackDelta(insn);
+				maxStack = Math.max(maxStack, depth);
+
+				List<LabelNode> successors = new ArrayList<>();
+				if (insn instanceof JumpInsnNode)
+					successors.add(((JumpInsnNode)insn).label);
+				else if (insn instanceof TableSwitchInsnNode) {
+					successors.add(((TableSwitchInsnNode)insn).dflt);
+					successors.addAll(((TableSwitchInsnNode)insn).labels);
+				} else if (insn instanceof LookupSwitchInsnNode) {
+					successors.add(((LookupSwitchInsnNode)insn).dflt);
+					successors.addAll(((LookupSwitchInsnNode)insn).labels);
+				}
+				for (LabelNode l : successors) {
+					int target = insns.indexOf(l);
+					if (depths[target] == -1) {
+						depths[target] = depth;
+						worklist.add(target);
+					} else if (depths[target] != depth)
+						throw new IllegalStateException("inconsistent stack depth at "+target+" in "+methodNode.name);
+				}
+				if (PeepholeOptimizer.isUnconditionalTransfer(insn.getOpcode()))
+					break;
+				AbstractInsnNode next = insn.getNext();
+				if (next != null && depths[insns.indexOf(next)] != -1) {
+					if (depths[insns.indexOf(next)] != depth)
+						throw new IllegalStateException("inconsistent stack depth at "+insns.indexOf(next)+" in "+methodNode.name);
+					break;
+				}
+			}
 		}
-		return false;
+		return maxStack;
+	}
+
+	/**
+	 * Returns the net change in operand stack depth (in slots) caused by
+	 * executing the given instruction.
+	 */
+	private static int stackDelta(AbstractInsnNode insn) {
+		int opcode = insn.getOpcode();
+		switch (opcode) {
+			case -1: //pseudo-instructions
+			case Opcodes.NOP:
+			case Opcodes.LALOAD: case Opcodes.DALOAD:
+			case Opcodes.SWAP:
+			case Opcodes.INEG: case Opcodes.LNEG: case Opcodes.FNEG: case Opcodes.DNEG:
+			case Opcodes.IINC:
+			case Opcodes.I2F: case Opcodes.L2D: case Opcodes.F2I: case Opcodes.D2L:
+			case Opcodes.I2B: case Opcodes.I2C: case Opcodes.I2S:
+			case Opcodes.GOTO: case Opcodes.RET: case Opcodes.RETURN:
+			case Opcodes.NEWARRAY: case Opcodes.ANEWARRAY: case Opcodes.ARRAYLENGTH:
+			case Opcodes.CHECKCAST: case Opcodes.INSTANCEOF:
+				return 0;
+			case Opcodes.ACONST_NULL:
+			case Opcodes.ICONST_M1: case Opcodes.ICONST_0: case Opcodes.ICONST_1:
+			case Opcodes.ICONST_2: case Opcodes.ICONST_3: case Opcodes.ICONST_4:
+			case Opcodes.ICONST_5:
+			case Opcodes.FCONST_0: case Opcodes.FCONST_1: case Opcodes.FCONST_2:
+			case Opcodes.BIPUSH: case Opcodes.SIPUSH:
+			case Opcodes.ILOAD: case Opcodes.FLOAD: case Opcodes.ALOAD:
+			case Opcodes.DUP: case Opcodes.DUP_X1: case Opcodes.DUP_X2:
+			case Opcodes.I2L: case Opcodes.I2D: case Opcodes.F2L: case Opcodes.F2D:
+			case Opcodes.JSR: case Opcodes.NEW:
+				return 1;
+			case Opcodes.LCONST_0: case Opcodes.LCONST_1:
+			case Opcodes.DCONST_0: case Opcodes.DCONST_1:
+			case Opcodes.LLOAD: case Opcodes.DLOAD:
+			case Opcodes.DUP2: case Opcodes.DUP2_X1: case Opcodes.DUP2_X2:
+				return 2;
+			case Opcodes.IALOAD: case Opcodes.FALOAD: case Opcodes.AALOAD:
+			case Opcodes.BALOAD: case Opcodes.CALOAD: case Opcodes.SALOAD:
+			case Opcodes.ISTORE: case Opcodes.FSTORE: case Opcodes.ASTORE:
+			case Opcodes.POP:
+			case Opcodes.IADD: case Opcodes.ISUB: case Opcodes.IMUL: case Opcodes.IDIV:
+			case Opcodes.IREM: case Opcodes.ISHL: case Opcodes.ISHR: case Opcodes.IUSHR:
+			case Opcodes.IAND: case Opcodes.IOR: case Opcodes.IXOR:
+			case Opcodes.FADD: case Opcodes.FSUB: case Opcodes.FMUL: case Opcodes.FDIV:
+			case Opcodes.FREM:
+			case Opcodes.LSHL: case Opcodes.LSHR: case Opcodes.LUSHR:
+			case Opcodes.L2I: case Opcodes.L2F: case Opcodes.D2I: case Opcodes.D2F:
+			case Opcodes.FCMPL: case Opcodes.FCMPG:
+			case Opcodes.IFEQ: case Opcodes.IFNE: case Opcodes.IFLT: case Opcodes.IFGE:
+			case Opcodes.IFGT: case Opcodes.IFLE: case Opcodes.IFNULL: case Opcodes.IFNONNULL:
+			case Opcodes.TABLESWITCH: case Opcodes.LOOKUPSWITCH:
+			case Opcodes.IRETURN: case Opcodes.FRETURN: case Opcodes.ARETURN:
+			case Opcodes.ATHROW:
+			case Opcodes.MONITORENTER: case Opcodes.MONITOREXIT:
+				return -1;
+			case Opcodes.LSTORE: case Opcodes.DSTORE:
+			case Opcodes.POP2:
+			case Opcodes.LADD: case Opcodes.LSUB: case Opcodes.LMUL: case Opcodes.LDIV:
+			case Opcodes.LREM: case Opcodes.LAND: case Opcodes.LOR: case Opcodes.LXOR:
+			case Opcodes.DADD: case Opcodes.DSUB: case Opcodes.DMUL: case Opcodes.DDIV:
+			case Opcodes.DREM:
+			case Opcodes.IF_ICMPEQ: case Opcodes.IF_ICMPNE: case Opcodes.IF_ICMPLT:
+			case Opcodes.IF_ICMPGE: case Opcodes.IF_ICMPGT: case Opcodes.IF_ICMPLE:
+			case Opcodes.IF_ACMPEQ: case Opcodes.IF_ACMPNE:
+			case Opcodes.LRETURN: case Opcodes.DRETURN:
+				return -2;
+			case Opcodes.IASTORE: case Opcodes.FASTORE: case Opcodes.AASTORE:
+			case Opcodes.BASTORE: case Opcodes.CASTORE: case Opcodes.SASTORE:
+			case Opcodes.LCMP: case Opcodes.DCMPL: case Opcodes.DCMPG:
+				return -3;
+			case Opcodes.LASTORE: case Opcodes.DASTORE:
+				return -4;
+			case Opcodes.LDC:
+				Object cst = ((LdcInsnNode)insn).cst;
+				return cst instanceof Long || cst instanceof Double ? 2 : 1;
+			case Opcodes.GETSTATIC:
+				return org.objectweb.asm.Type.getType(((FieldInsnNode)insn).desc).getSize();
+			case Opcodes.PUTSTATIC:
+				return -org.objectweb.asm.Type.getType(((FieldInsnNode)insn).desc).getSize();
+			case Opcodes.GETFIELD:
+				return org.objectweb.asm.Type.getType(((FieldInsnNode)insn).desc).getSize() - 1;
+			case Opcodes.PUTFIELD:
+				return -org.objectweb.asm.Type.getType(((FieldInsnNode)insn).desc).getSize() - 1;
+			case Opcodes.INVOKEVIRTUAL: case Opcodes.INVOKESPECIAL:
+			case Opcodes.INVOKEINTERFACE: case Opcodes.INVOKESTATIC: {
+				//getArgumentsAndReturnSizes counts an implicit receiver.
+				int sizes = org.objectweb.asm.Type.getArgumentsAndReturnSizes(((MethodInsnNode)insn).desc);
+				int argSize = (sizes >> 2) - (opcode == Opcodes.INVOKESTATIC ? 1 : 0);
+				return (sizes & 3) - argSize;
+			}
+			case Opcodes.INVOKEDYNAMIC: {
+				int sizes = org.objectweb.asm.Type.getArgumentsAndReturnSizes(((InvokeDynamicInsnNode)insn).desc);
+				return (sizes & 3) - ((sizes >> 2) - 1);
+			}
+			case Opcodes.MULTIANEWARRAY:
+				return 1 - ((MultiANewArrayInsnNode)insn).dims;
+			default:
+				throw new AssertionError("unknown opcode "+opcode);
+		}
+	}
+
+	/**
+	 * Performs peephole optimizations at the bytecode level, primarily to
+	 * reduce bytecode size for better inlining.  (HotSpot makes inlining
+	 * decisions based partially on the number of bytes in a method.)
+	 */
+	private void peepholeOptimizations() {
+		PeepholeOptimizer.optimize(methodNode.instructions);
 	}
 
 	public static void main(String[] args) {
@@ -40,6 +40,11 @@ import java.util.Map;
 /**
  * Module is the top-level IR node for a single compilation, analogous to a
  * translation unit in other compilers.
+ *
+ * Modules aren't thread-safe in general, but the lookups that lazily create
+ * IR objects (Klasses, types and constants) synchronize on the Module, so
+ * multiple threads may read a Module that's no longer being mutated (e.g.,
+ * to unresolve its Klasses concurrently).
  * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
  * @since 3/6/2013
  */
@@ -71,7 +76,9 @@ public final class Module {
 	 */
 	public Klass getKlass(String name) {
 		checkNotNull(name);
-		return klassesMap.get(name);
+		synchronized (this) {
+			return klassesMap.get(name);
+		}
 	}
 
 	/**
@@ -80,14 +87,14 @@ public final class Module {
 	 * @param klass the class to get a Klass for
 	 * @return a Klass representing the given Class
 	 */
-	public Klass getKlass(Class<?> klass) {
+	public synchronized Klass getKlass(Class<?> klass) {
 		Klass klassByName = getKlass(klass.getName());
 		if (klassByName != null)
 			return klassByName;
 		return new Klass(klass, this);
 	}
 
-	public Klass getArrayKlass(Klass componentType, int dimensions) {
+	public synchronized Klass getArrayKlass(Klass componentType, int dimensions) {
 		checkNotNull(componentType);
 		checkArgument(dimensions >= 1);
 		if (componentType.getBackingClass() != null)
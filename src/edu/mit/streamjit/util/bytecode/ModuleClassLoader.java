@@ -21,16 +21,54 @@
  */
 package edu.mit.streamjit.util.bytecode;
 
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * A ModuleClassLoader loads classes from a Module.
  *
- * TODO: This loader keeps the Module alive as long as any classes it loads are
- * alive.  We may wish to load classes eagerly, then discard the Module.
+ * By default, classes are unresolved lazily when first loaded, so this loader
+ * keeps the Module alive as long as the loader is alive (which is as long as
+ * any classes it loads are alive).  {@link #loadEagerly(Module, ClassLoader)}
+ * instead unresolves every mutable Klass up front (in parallel), defines them
+ * all, and then discards the Module.  Either way, huge methods are split
+ * before unresolving, adding helper methods to their Klasses.
+ *
+ * Given a {@link ClassArchive}, archived classes whose Klass hasn't changed
+ * are loaded through the parent (from the CDS archive, if one was created)
+ * rather than unresolved.
+ *
+ * Like other class loaders, a ModuleClassLoader delegates to its parent first,
+ * so when loading lazily, a Klass is shadowed by any class of the same name the
+ * parent can load.  Eagerly loaded Klasses are always defined from the Module.
+ *
+ * This loader is parallel capable, so threads loading different classes don't
+ * serialize on the loader.
  * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
  * @since 4/23/2013
  */
 public final class ModuleClassLoader extends ClassLoader {
-	private final Module module;
+	static {
+		registerAsParallelCapable();
+	}
+	/**
+	 * The Module we load from, or null if we loaded eagerly and discarded it.
+	 */
+	private volatile Module module;
+	/**
+	 * When loading eagerly, bytes unresolved but not yet defined.
+	 */
+	private final Map<String, byte[]> unresolved = new ConcurrentHashMap<>();
+	/**
+	 * Archived classes to load through the parent if current, or null.
+	 */
+	private final ClassArchive archive;
 	/**
 	 * Creates a new ModuleClassLoader that will load classes from the given
 	 * module after delegating to the current thread's context class loader.
@@ -47,24 +85,153 @@ public final class ModuleClassLoader extends ClassLoader {
 	 * @param parent the parent class loader
 	 */
 	public ModuleClassLoader(Module module, ClassLoader parent) {
+		this(module, parent, null);
+	}
+
+	/**
+	 * Creates a new ModuleClassLoader that will load classes from the given
+	 * module after delegating to the given class loader, except that classes
+	 * in the given archive whose Klass has changed since they were archived
+	 * are loaded from the module without delegating.
+	 * @param module the module to load classes from
+	 * @param parent the parent class loader, which can load the archived
+	 * classes
+	 * @param archive the archived classes, or null
+	 */
+	public ModuleClassLoader(Module module, ClassLoader parent, ClassArchive archive) {
 		super(parent);
-		this.module = module;
+		this.module = checkNotNull(module);
+		this.archive = archive;
+	}
+
+	/**
+	 * Creates a new ModuleClassLoader that has loaded all mutable Klasses in
+	 * the given module, after delegating to the current thread's context class
+	 * loader.
+	 * @param module the module to load classes from
+	 * @return a ModuleClassLoader that has loaded all the module's classes
+	 * @see #loadEagerly(Module, ClassLoader)
+	 */
+	public static ModuleClassLoader loadEagerly(Module module) {
+		return loadEagerly(module, Thread.currentThread().getContextClassLoader());
+	}
+
+	/**
+	 * Creates a new ModuleClassLoader that has loaded all mutable Klasses in
+	 * the given module, after delegating to the given class loader.  The
+	 * Klasses' huge methods are split first (adding helper methods to them),
+	 * then the Klasses are unresolved concurrently and all defined.  The
+	 * returned loader does not retain the module, so it may be collected once
+	 * the caller drops it.
+	 *
+	 * The module must not be modified while this method is running.
+	 * @param module the module to load classes from
+	 * @param parent the parent class loader
+	 * @return a ModuleClassLoader that has loaded all the module's classes
+	 */
+	public static ModuleClassLoader loadEagerly(Module module, ClassLoader parent) {
+		return loadEagerly(module, parent, null);
 	}
 
 	/**
-	 * Returns the Module this ModuleClassLoader loads from.
-	 * @return the Module this loader loads from
+	 * Creates a new ModuleClassLoader that has loaded all mutable Klasses in
+	 * the given module, loading those that are current in the given archive
+	 * through the parent and unresolving the rest concurrently.  The returned
+	 * loader does not retain the module.
+	 *
+	 * The module must not be modified while this method is running.
+	 * @param module the module to load classes from
+	 * @param parent the parent class loader, which can load the archived
+	 * classes
+	 * @param archive the archived classes, or null
+	 * @return a ModuleClassLoader that has loaded all the module's classes
+	 * @see ClassArchive
+	 */
+	public static ModuleClassLoader loadEagerly(Module module, ClassLoader parent, ClassArchive archive) {
+		ModuleClassLoader loader = new ModuleClassLoader(module, parent, archive);
+		List<Klass> klasses;
+		synchronized (module) {
+			klasses = ImmutableList.copyOf(module.klasses());
+		}
+		Set<String> archived = new HashSet<>();
+		for (Klass k : klasses)
+			if (k.isMutable() && archive != null && archive.matches(k))
+				archived.add(k.getName());
+		List<Klass> toUnresolve = new ArrayList<>();
+		for (Klass k : klasses)
+			if (k.isMutable() && !archived.contains(k.getName()))
+				toUnresolve.add(k);
+		//Splitting huge methods modifies the module, so split sequentially,
+		//then unresolve in parallel without modifying anything.
+		for (Klass k : toUnresolve)
+			KlassUnresolver.splitHugeMethods(k, MethodUnresolver.DEFAULT_OPTIONS);
+		toUnresolve.parallelStream()
+				.forEach(k -> loader.unresolved.put(k.getName(), KlassUnresolver.unresolve(k)));
+		try {
+			//Defining a class may load its superclass and interfaces from
+			//unresolved, so iterate over a copy of the names.
+			for (String name : ImmutableList.copyOf(loader.unresolved.keySet()))
+				loader.loadClass(name);
+			for (String name : archived)
+				loader.loadClass(name);
+		} catch (ClassNotFoundException ex) {
+			throw new AssertionError(ex);
+		}
+		assert loader.unresolved.isEmpty() : loader.unresolved.keySet();
+		loader.module = null;
+		return loader;
+	}
+
+	/**
+	 * Returns the Module this ModuleClassLoader loads from, or null if this
+	 * loader was created by {@link #loadEagerly(Module, ClassLoader)}.
+	 * @return the Module this loader loads from, or null
 	 */
 	public Module getModule() {
 		return module;
 	}
 
+	@Override
+	protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		//Eagerly unresolved classes are ours even if the parent has a class of
+		//the same name (e.g., from an exported archive on the class path).
+		if (!unresolved.containsKey(name) && (archive == null || !archive.contains(name)))
+			return super.loadClass(name, resolve);
+		synchronized (getClassLoadingLock(name)) {
+			Class<?> c = findLoadedClass(name);
+			if (c != null)
+				return c;
+			if (!unresolved.containsKey(name)) {
+				//Load changed classes ourselves rather than getting the stale
+				//archived class from the parent.
+				Module m = module;
+				Klass klass = m != null ? m.getKlass(name) : null;
+				if (klass == null || !klass.isMutable() || archive == null || archive.matches(klass))
+					return super.loadClass(name, resolve);
+			}
+			c = findClass(name);
+			if (resolve)
+				resolveClass(c);
+			return c;
+		}
+	}
+
 	@Override
 	protected Class<?> findClass(String name) throws ClassNotFoundException {
-		Klass klass = module.getKlass(name);
-		if (klass == null)
-			throw new ClassNotFoundException(name);
-		byte[] bytes = KlassUnresolver.unresolve(klass);
+		byte[] bytes = unresolved.remove(name);
+		if (bytes == null) {
+			Module m = module;
+			Klass klass = m != null ? m.getKlass(name) : null;
+			if (klass == null)
+				throw new ClassNotFoundException(name);
+			//Other classes may be loading concurrently, and splitting huge
+			//methods modifies the module, so nothing else may split (or walk
+			//the module) until we're done unresolving.
+			synchronized (m) {
+				KlassUnresolver.splitHugeMethods(klass, MethodUnresolver.DEFAULT_OPTIONS);
+				bytes = KlassUnresolver.unresolve(klass);
+			}
+		}
 		return defineClass(name, bytes, 0, bytes.length);
 	}
 
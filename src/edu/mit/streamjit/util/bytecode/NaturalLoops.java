@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The natural loops of a method, found from the back edges of its dominator
+ * tree (edges whose target dominates their source).  Back edges with the same
+ * target form one loop.  Loops are nested by containment; irreducible cycles
+ * (with no dominating header) aren't loops.
+ *
+ * Like DominatorTree, this is a snapshot that isn't updated when the method's
+ * control flow graph changes.
+ * @author agent <agent@local>
+ * @since 10/19/2026
+ */
+public final class NaturalLoops {
+	private final DominatorTree domTree;
+	/**
+	 * Loops in dominator tree preorder of their headers, so outer loops come
+	 * before the loops they contain.
+	 */
+	private final ImmutableList<Loop> loops;
+	private final Map<BasicBlock, Loop> innermostLoop = new IdentityHashMap<>();
+
+	public NaturalLoops(Method method) {
+		this(new DominatorTree(method));
+	}
+
+	public NaturalLoops(DominatorTree domTree) {
+		this.domTree = checkNotNull(domTree);
+		ImmutableList.Builder<Loop> builder = ImmutableList.builder();
+		for (BasicBlock header : domTree.preorder()) {
+			List<BasicBlock> latches = new ArrayList<>();
+			for (BasicBlock p : header.predecessors())
+				if (domTree.isReachable(p) && domTree.dominates(header, p))
+					latches.add(p);
+			if (!latches.isEmpty())
+				builder.add(new Loop(header, latches));
+		}
+		this.loops = builder.build();
+
+		//Outer loops come first, so the innermost loop containing a header
+		//when we reach it is the loop's parent, and inner loops overwrite
+		//their parents' entries.
+		for (Loop loop : loops) {
+			loop.parent = innermostLoop.get(loop.header);
+			if (loop.parent != null)
+				loop.parent.children.add(loop);
+			for (BasicBlock b : loop.blocks)
+				innermostLoop.put(b, loop);
+		}
+	}
+
+	public DominatorTree getDominatorTree() {
+		return domTree;
+	}
+
+	/**
+	 * Returns all loops, with each loop before the loops nested in it.
+	 * @return all loops, outermost first
+	 */
+	public ImmutableList<Loop> loops() {
+		return loops;
+	}
+
+	/**
+	 * Returns all loops, with each loop after the loops nested in it.
+	 * @return all loops, innermost first
+	 */
+	public ImmutableList<Loop> innermostFirst() {
+		return loops.reverse();
+	}
+
+	/**
+	 * Returns the innermost loop containing the given block, or null if the
+	 * block isn't in a loop.
+	 * @param block a block
+	 * @return the innermost loop containing the block, or null
+	 */
+	public Loop getLoopFor(BasicBlock block) {
+		return innermostLoop.get(block);
+	}
+
+	/**
+	 * A natural loop.
+	 */
+	public final class Loop {
+		private final BasicBlock header;
+		private final ImmutableList<BasicBlock> latches;
+		/**
+		 * The loop's blocks in dominator tree preorder, starting with the
+		 * header.
+		 */
+		private final ImmutableList<BasicBlock> blocks;
+		private final Set<BasicBlock> blockSet = Collections.newSetFromMap(new IdentityHashMap<BasicBlock, Boolean>());
+		private Loop parent;
+		private final List<Loop> children = new ArrayList<>();
+		private Loop(BasicBlock header, List<BasicBlock> latches) {
+			this.header = header;
+			this.latches = ImmutableList.copyOf(latches);
+			//The body is everything that reaches a latch without passing
+			//through the header.
+			blockSet.add(header);
+			Deque<BasicBlock> worklist = new ArrayDeque<>(latches);
+			while (!worklist.isEmpty()) {
+				BasicBlock b = worklist.removeFirst();
+				if (!blockSet.add(b))
+					continue;
+				for (BasicBlock p : b.predecessors())
+					if (domTree.isReachable(p) && !blockSet.contains(p))
+						worklist.addLast(p);
+			}
+			//The header dominates the whole loop.
+			List<BasicBlock> ordered = new ArrayList<>(blockSet.size());
+			for (BasicBlock b : domTree.dominated(header))
+				if (blockSet.contains(b))
+					ordered.add(b);
+			this.blocks = ImmutableList.copyOf(ordered);
+		}
+
+		public BasicBlock getHeader() {
+			return header;
+		}
+
+		/**
+		 * Returns the blocks with back edges to the header.
+		 * @return this loop's latches
+		 */
+		public ImmutableList<BasicBlock> getLatches() {
+			return latches;
+		}
+
+		/**
+		 * Returns this loop's blocks (including those of nested loops), in
+		 * dominator tree preorder; the header is first.
+		 * @return this loop's blocks
+		 */
+		public ImmutableList<BasicBlock> blocks() {
+			return blocks;
+		}
+
+		public boolean contains(BasicBlock block) {
+			return blockSet.contains(block);
+		}
+
+		/**
+		 * Returns the innermost loop containing this loop, or null if this is
+		 * an outermost loop.
+		 * @return the loop containing this loop, or null
+		 */
+		public Loop getParent() {
+			return parent;
+		}
+
+		public ImmutableList<Loop> getChildren() {
+			return ImmutableList.copyOf(children);
+		}
+
+		/**
+		 * Returns the blocks outside this loop with predecessors inside it.
+		 * @return this loop's exit blocks
+		 */
+		public ImmutableSet<BasicBlock> exitBlocks() {
+			Set<BasicBlock> exits = new LinkedHashSet<>();
+			for (BasicBlock b : blocks)
+				for (BasicBlock s : b.successors())
+					if (!contains(s))
+						exits.add(s);
+			return ImmutableSet.copyOf(exits);
+		}
+
+		/**
+		 * Returns this loop's preheader: the only predecessor of the header
+		 * from outside the loop, if the header is its only successor.
+		 * Returns null if the loop has no preheader.
+		 * @return this loop's preheader, or null
+		 */
+		public BasicBlock getPreheader() {
+			BasicBlock preheader = null;
+			for (BasicBlock p : header.predecessors()) {
+				if (contains(p))
+					continue;
+				if (preheader != null)
+					return null;
+				preheader = p;
+			}
+			if (preheader == null)
+				return null;
+			for (BasicBlock s : preheader.successors())
+				if (s != header)
+					return null;
+			return preheader;
+		}
+
+		@Override
+		public String toString() {
+			return "loop " + header.getName() + " (" + blocks.size() + " blocks)";
+		}
+	}
+}
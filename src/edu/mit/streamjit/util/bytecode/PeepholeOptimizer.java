@@ -0,0 +1,607 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Performs peephole optimizations at the bytecode level, primarily to reduce
+ * bytecode size for better inlining.  (HotSpot makes inlining decisions based
+ * partially on the number of bytes in a method.)
+ *
+ * The optimizer makes a single pass over the instruction list, trying each
+ * pattern at each instruction.  After a pattern makes a change, the pass backs
+ * up just far enough to find any new matches the change exposed, so the total
+ * work is linear in the size of the list.  Patterns never match across labels,
+ * so they can't disturb control flow merges.
+ * @author agent <agent@local>
+ * @since 10/18/2026
+ */
+public final class PeepholeOptimizer {
+	private PeepholeOptimizer() {}
+
+	/**
+	 * A peephole pattern.
+	 */
+	public interface Pattern {
+		/**
+		 * Returns the maximum number of consecutive instructions this pattern
+		 * examines; after a change, the optimizer backs up this far to look
+		 * for new matches.
+		 * @return this pattern's window size
+		 */
+		public int window();
+		/**
+		 * Tries to apply this pattern to the instructions beginning at the
+		 * given instruction.  Patterns may modify or remove the given
+		 * instruction and instructions following it, and may insert
+		 * instructions in their place, but must not modify instructions
+		 * preceding it.
+		 * @param insns the instruction list
+		 * @param insn the first instruction to match
+		 * @return true iff changes were made
+		 */
+		public boolean apply(InsnList insns, AbstractInsnNode insn);
+	}
+
+	public static final ImmutableList<Pattern> DEFAULT_PATTERNS = ImmutableList.<Pattern>of(
+			new RemoveDeadCode(),
+			new RemoveLoadStore(),
+			new RemovePushPop(),
+			new StoreLoadToDup(),
+			new FormIinc(),
+			new FoldConstantBranch(),
+			new CompareWithZero(),
+			new FoldJumps(),
+			new RemoveUnnecessaryGoto()
+	);
+
+	/**
+	 * The default patterns that only examine the instructions they match, not
+	 * the targets of jumps, and so can be applied to part of a method's code.
+	 */
+	public static final ImmutableList<Pattern> LOCAL_PATTERNS = ImmutableList.<Pattern>of(
+			new RemoveDeadCode(),
+			new RemoveLoadStore(),
+			new RemovePushPop(),
+			new StoreLoadToDup(),
+			new FormIinc(),
+			new FoldConstantBranch(),
+			new CompareWithZero()
+	);
+
+	/**
+	 * Optimizes the given instruction list using the default patterns.
+	 * @param insns the instruction list to optimize
+	 * @return true iff changes were made
+	 */
+	public static boolean optimize(InsnList insns) {
+		return optimize(insns, DEFAULT_PATTERNS);
+	}
+
+	/**
+	 * Optimizes the given instruction list using the given patterns.
+	 * @param insns the instruction list to optimize
+	 * @param patterns the patterns to apply, in priority order
+	 * @return true iff changes were made
+	 */
+	public static boolean optimize(InsnList insns, List<? extends Pattern> patterns) {
+		checkNotNull(insns);
+		int window = 1;
+		for (Pattern p : patterns)
+			window = Math.max(window, p.window());
+
+		boolean changed = false;
+		AbstractInsnNode insn = insns.getFirst();
+		while (insn != null) {
+			//Patterns don't modify preceding instructions, so this survives.
+			AbstractInsnNode previous = insn.getPrevious();
+			boolean applied = false;
+			for (Pattern p : patterns)
+				if (p.apply(insns, insn)) {
+					applied = true;
+					break;
+				}
+			if (!applied) {
+				insn = insn.getNext();
+				continue;
+			}
+			changed = true;
+			//A new match could begin up to window-1 instructions before the
+			//first changed instruction.
+			insn = previous;
+			for (int i = 2; insn != null && i < window; ++i)
+				insn = insn.getPrevious();
+			if (insn == null)
+				insn = insns.getFirst();
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes instructions following an unconditional control transfer that
+	 * aren't preceded by a label, and thus can't be reached.  (Verifiers
+	 * using stack map frames reject such code.)
+	 */
+	private static final class RemoveDeadCode implements Pattern {
+		@Override
+		public int window() {
+			return 2;
+		}
+		@Override
+		public boolean apply(InsnList insns, AbstractInsnNode insn) {
+			if (!isUnconditionalTransfer(insn.getOpcode())) return false;
+			AbstractInsnNode next = insn.getNext();
+			if (next == null || next.getOpcode() < 0) return false;
+			insns.remove(next);
+			return true;
+		}
+	}
+
+	/**
+	 * Removes "xLOAD N xSTORE N".
+	 */
+	private static final class RemoveLoadStore implements Pattern {
+		@Override
+		public int window() {
+			return 2;
+		}
+		@Override
+		public boolean apply(InsnList insns, AbstractInsnNode insn) {
+			if (!isLoad(insn.getOpcode())) return false;
+			AbstractInsnNode next = insn.getNext();
+			if (next == null || next.getOpcode() != storeFor(insn.getOpcode())) return false;
+			if (((VarInsnNode)insn).var != ((VarInsnNode)next).var) return false;
+			insns.remove(insn);
+			insns.remove(next);
+			return true;
+		}
+	}
+
+	/**
+	 * Removes side-effect-free pushes (loads, constants and dups) immediately
+	 * popped.
+	 */
+	private static final class RemovePushPop implements Pattern {
+		@Override
+		public int window() {
+			return 2;
+		}
+		@Override
+		public boolean apply(InsnList insns, AbstractInsnNode insn) {
+			int pushed = pushedCategory(insn);
+			if (pushed == 0 && insn.getOpcode() == Opcodes.DUP)
+				pushed = 1;
+			else if (pushed == 0 && insn.getOpcode() == Opcodes.DUP2)
+				pushed = 2;
+			if (pushed == 0) return false;
+			AbstractInsnNode next = insn.getNext();
+			if (next == null || next.getOpcode() != (pushed == 2 ? Opcodes.POP2 : Opcodes.POP)) return false;
+			insns.remove(insn);
+			insns.remove(next);
+			return true;
+		}
+	}
+
+	/**
+	 * Replaces "xSTORE N xLOAD N" with "DUP xSTORE N", avoiding the local
+	 * variable read.
+	 */
+	private static final class StoreLoadToDup implements Pattern {
+		@Override
+		public int window() {
+			return 2;
+		}
+		@Override
+		public boolean apply(InsnList insns, AbstractInsnNode insn) {
+			if (!isStore(insn.getOpcode())) return false;
+			AbstractInsnNode next = insn.getNext();
+			if (next == null || storeFor(next.getOpcode()) != insn.getOpcode()) return false;
+			if (((VarInsnNode)insn).var != ((VarInsnNode)next).var) return false;
+			int opcode = insn.getOpcode();
+			insns.insertBefore(insn, new InsnNode(opcode == Opcodes.LSTORE || opcode == Opcodes.DSTORE ? Opcodes.DUP2 : Opcodes.DUP));
+			insns.remove(next);
+			return true;
+		}
+	}
+
+	/**
+	 * Replaces "ILOAD N; ICONST C; IADD; ISTORE N" (and the ISUB and reversed
+	 * IADD forms) with "IINC N C".
+	 */
+	private static final class FormIinc implements Pattern {
+		@Override
+		public int window() {
+			return 4;
+		}
+		@Override
+		public boolean apply(InsnList insns, AbstractInsnNode insn) {
+			AbstractInsnNode second = insn.getNext();
+			if (second == null) return false;
+			AbstractInsnNode op = second.getNext();
+			if (op == null) return false;
+			AbstractInsnNode store = op.getNext();
+			if (store == null || store.getOpcode() != Opcodes.ISTORE) return false;
+
+			VarInsnNode load;
+			Integer constant;
+			if (insn.getOpcode() == Opcodes.ILOAD && (constant = intConstant(second)) != null)
+				load = (VarInsnNode)insn;
+			else if (second.getOpcode() == Opcodes.ILOAD && (constant = intConstant(insn)) != null && op.getOpcode() == Opcodes.IADD)
+				load = (VarInsnNode)second;
+			else
+				return false;
+			if (load.var != ((VarInsnNode)store).var) return false;
+
+			long increment;
+			if (op.getOpcode() == Opcodes.IADD)
+				increment = constant;
+			else if (op.getOpcode() == Opcodes.ISUB)
+				increment = -(long)constant;
+			else
+				return false;
+			if (increment < Short.MIN_VALUE || increment > Short.MAX_VALUE) return false;
+
+			insns.insertBefore(insn, new IincInsnNode(load.var, (int)increment));
+			insns.remove(insn);
+			insns.remove(second);
+			insns.remove(op);
+			insns.remove(store);
+			return true;
+		}
+	}
+
+	/**
+	 * Folds conditional branches on constants into unconditional branches
+	 * (or nothing).
+	 */
+	private static final class FoldConstantBranch implements Pattern {
+		@Override
+		public int window() {
+			return 3;
+		}
+		@Override
+		public boolean apply(InsnList insns, AbstractInsnNode insn) {
+			AbstractInsnNode next = insn.getNext();
+			if (next == null) return false;
+			Integer a = intConstant(insn);
+			boolean aNull = insn.getOpcode() == Opcodes.ACONST_NULL;
+			if (a == null && !aNull) return false;
+
+			Boolean taken = null;
+			AbstractInsnNode branch = next;
+			if (a != null && isIfZero(next.getOpcode()))
+				taken = compare(next.getOpcode() - Opcodes.IFEQ, a, 0);
+			else if (aNull && (next.getOpcode() == Opcodes.IFNULL || next.getOpcode() == Opcodes.IFNONNULL))
+				taken = next.getOpcode() == Opcodes.IFNULL;
+			else if (next.getNext() != null) {
+				branch = next.getNext();
+				Integer b = intConstant(next);
+				if (a != null && b != null && isIfIcmp(branch.getOpcode()))
+					taken = compare(branch.getOpcode() - Opcodes.IF_ICMPEQ, a, b);
+				else if (aNull && next.getOpcode() == Opcodes.ACONST_NULL &&
+						(branch.getOpcode() == Opcodes.IF_ACMPEQ || branch.getOpcode() == Opcodes.IF_ACMPNE))
+					taken = branch.getOpcode() == Opcodes.IF_ACMPEQ;
+			}
+			if (taken == null) return false;
+
+			if (taken)
+				insns.insertBefore(insn, new JumpInsnNode(Opcodes.GOTO, ((JumpInsnNode)branch).label));
+			for (AbstractInsnNode n = insn, end = branch.getNext(); n != end;) {
+				AbstractInsnNode following = n.getNext();
+				insns.remove(n);
+				n = following;
+			}
+			return true;
+		}
+
+		/**
+		 * Evaluates a comparison, where sense is the offset of the opcode from
+		 * IFEQ or IF_ICMPEQ (the two families are in the same order).
+		 */
+		private static boolean compare(int sense, int a, int b) {
+			switch (sense) {
+				case 0: return a == b;
+				case 1: return a != b;
+				case 2: return a < b;
+				case 3: return a >= b;
+				case 4: return a > b;
+				case 5: return a <= b;
+				default: throw new AssertionError(sense);
+			}
+		}
+	}
+
+	/**
+	 * Replaces comparisons against zero or null with the specialized branch
+	 * instructions (e.g., "ICONST_0 IF_ICMPLT" becomes "IFLT").
+	 */
+	private static final class CompareWithZero implements Pattern {
+		@Override
+		public int window() {
+			return 3;
+		}
+		@Override
+		public boolean apply(InsnList insns, AbstractInsnNode insn) {
+			boolean intZero = Integer.valueOf(0).equals(intConstant(insn));
+			boolean isNull = insn.getOpcode() == Opcodes.ACONST_NULL;
+			if (!intZero && !isNull) return false;
+			AbstractInsnNode next = insn.getNext();
+			if (next == null) return false;
+
+			//Zero loaded second: x 0 IF_ICMPxx => x IFxx
+			if (intZero && isIfIcmp(next.getOpcode())) {
+				insns.set(next, new JumpInsnNode(next.getOpcode() - Opcodes.IF_ICMPEQ + Opcodes.IFEQ, ((JumpInsnNode)next).label));
+				insns.remove(insn);
+				return true;
+			}
+			if (isNull && (next.getOpcode() == Opcodes.IF_ACMPEQ || next.getOpcode() == Opcodes.IF_ACMPNE)) {
+				insns.set(next, new JumpInsnNode(next.getOpcode() == Opcodes.IF_ACMPEQ ? Opcodes.IFNULL : Opcodes.IFNONNULL, ((JumpInsnNode)next).label));
+				insns.remove(insn);
+				return true;
+			}
+
+			//Zero loaded first: 0 x IF_ICMPxx => x IFyy, with the sense
+			//reversed.  x must be a single side-effect-free push.
+			AbstractInsnNode branch = next.getNext();
+			if (branch == null || pushedCategory(next) != 1) return false;
+			if (intZero && isIfIcmp(branch.getOpcode()) && (next.getOpcode() == Opcodes.ILOAD || intConstant(next) != null)) {
+				insns.set(branch, new JumpInsnNode(REVERSED_IF[branch.getOpcode() - Opcodes.IF_ICMPEQ], ((JumpInsnNode)branch).label));
+				insns.remove(insn);
+				return true;
+			}
+			if (isNull && next.getOpcode() == Opcodes.ALOAD &&
+					(branch.getOpcode() == Opcodes.IF_ACMPEQ || branch.getOpcode() == Opcodes.IF_ACMPNE)) {
+				insns.set(branch, new JumpInsnNode(branch.getOpcode() == Opcodes.IF_ACMPEQ ? Opcodes.IFNULL : Opcodes.IFNONNULL, ((JumpInsnNode)branch).label));
+				insns.remove(insn);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * The IFxx opcode testing "0 op x", indexed by IF_ICMPxx - IF_ICMPEQ.
+		 */
+		private static final int[] REVERSED_IF = {
+			Opcodes.IFEQ, Opcodes.IFNE, Opcodes.IFGT, Opcodes.IFLE, Opcodes.IFLT, Opcodes.IFGE
+		};
+	}
+
+	/**
+	 * Replaces jumps to unconditional jumps with jumps to the final target,
+	 * and gotos to returns with the return itself (when the return only needs
+	 * a single load).
+	 */
+	private static final class FoldJumps implements Pattern {
+		@Override
+		public int window() {
+			return 1;
+		}
+		@Override
+		public boolean apply(InsnList insns, AbstractInsnNode insn) {
+			if (!(insn instanceof JumpInsnNode) || insn.getOpcode() == Opcodes.JSR) return false;
+			JumpInsnNode jump = (JumpInsnNode)insn;
+			AbstractInsnNode target = nextInstruction(jump.label);
+			if (target == null) return false;
+
+			if (target.getOpcode() == Opcodes.GOTO) {
+				//Follow the whole chain at once.  If the gotos form a cycle
+				//(or lead back to this jump), there's no final target, and
+				//retargeting within the cycle would just go around forever.
+				Set<LabelNode> visited = new HashSet<>();
+				visited.add(jump.label);
+				LabelNode destination = jump.label;
+				while (target != null && target.getOpcode() == Opcodes.GOTO) {
+					destination = ((JumpInsnNode)target).label;
+					if (target == jump || !visited.add(destination)) return false;
+					target = nextInstruction(destination);
+				}
+				jump.label = destination;
+				return true;
+			}
+
+			if (insn.getOpcode() != Opcodes.GOTO) return false;
+			//A goto to the next instruction will be removed outright; copying
+			//the return would leave the original unreachable.
+			if (nextInstruction(insn.getNext()) == target) return false;
+			if (isReturn(target.getOpcode())) {
+				insns.set(insn, new InsnNode(target.getOpcode()));
+				return true;
+			}
+			AbstractInsnNode ret = target.getNext();
+			if (ret != null && isReturn(ret.getOpcode()) && pushedCategory(target) != 0) {
+				insns.insertBefore(insn, target.clone(null));
+				insns.set(insn, new InsnNode(ret.getOpcode()));
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Removes goto instructions that go to a label immediately following
+	 * them.
+	 */
+	private static final class RemoveUnnecessaryGoto implements Pattern {
+		@Override
+		public int window() {
+			return 1;
+		}
+		@Override
+		public boolean apply(InsnList insns, AbstractInsnNode insn) {
+			if (insn.getOpcode() != Opcodes.GOTO) return false;
+			LabelNode target = ((JumpInsnNode)insn).label;
+			for (AbstractInsnNode n = insn.getNext(); n != null && n.getOpcode() < 0; n = n.getNext())
+				if (n == target) {
+					insns.remove(insn);
+					return true;
+				}
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the first real instruction at or after the given node.
+	 */
+	private static AbstractInsnNode nextInstruction(AbstractInsnNode node) {
+		while (node != null && node.getOpcode() < 0)
+			node = node.getNext();
+		return node;
+	}
+
+	private static boolean isLoad(int opcode) {
+		return Opcodes.ILOAD <= opcode && opcode <= Opcodes.ALOAD;
+	}
+
+	private static boolean isStore(int opcode) {
+		return Opcodes.ISTORE <= opcode && opcode <= Opcodes.ASTORE;
+	}
+
+	/**
+	 * Returns the store opcode corresponding to the given load opcode, or -1.
+	 */
+	private static int storeFor(int loadOpcode) {
+		return isLoad(loadOpcode) ? loadOpcode - Opcodes.ILOAD + Opcodes.ISTORE : -1;
+	}
+
+	private static boolean isReturn(int opcode) {
+		return Opcodes.IRETURN <= opcode && opcode <= Opcodes.RETURN;
+	}
+
+	static boolean isUnconditionalTransfer(int opcode) {
+		return opcode == Opcodes.GOTO || isReturn(opcode) || opcode == Opcodes.ATHROW ||
+				opcode == Opcodes.TABLESWITCH || opcode == Opcodes.LOOKUPSWITCH;
+	}
+
+	private static boolean isIfZero(int opcode) {
+		return Opcodes.IFEQ <= opcode && opcode <= Opcodes.IFLE;
+	}
+
+	private static boolean isIfIcmp(int opcode) {
+		return Opcodes.IF_ICMPEQ <= opcode && opcode <= Opcodes.IF_ICMPLE;
+	}
+
+	/**
+	 * If the given instruction pushes an int constant, returns it; otherwise,
+	 * returns null.
+	 */
+	private static Integer intConstant(AbstractInsnNode insn) {
+		int opcode = insn.getOpcode();
+		if (Opcodes.ICONST_M1 <= opcode && opcode <= Opcodes.ICONST_5)
+			return opcode - Opcodes.ICONST_0;
+		if (opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH)
+			return ((IntInsnNode)insn).operand;
+		if (opcode == Opcodes.LDC && ((LdcInsnNode)insn).cst instanceof Integer)
+			return (Integer)((LdcInsnNode)insn).cst;
+		return null;
+	}
+
+	/**
+	 * If the given instruction pushes a single value without side effects (a
+	 * load or constant), returns the category of that value; otherwise,
+	 * returns 0.
+	 */
+	private static int pushedCategory(AbstractInsnNode insn) {
+		int opcode = insn.getOpcode();
+		switch (opcode) {
+			case Opcodes.LLOAD:
+			case Opcodes.DLOAD:
+			case Opcodes.LCONST_0:
+			case Opcodes.LCONST_1:
+			case Opcodes.DCONST_0:
+			case Opcodes.DCONST_1:
+				return 2;
+			case Opcodes.ILOAD:
+			case Opcodes.FLOAD:
+			case Opcodes.ALOAD:
+			case Opcodes.ACONST_NULL:
+			case Opcodes.FCONST_0:
+			case Opcodes.FCONST_1:
+			case Opcodes.FCONST_2:
+			case Opcodes.BIPUSH:
+			case Opcodes.SIPUSH:
+				return 1;
+			case Opcodes.LDC:
+				Object cst = ((LdcInsnNode)insn).cst;
+				return cst instanceof Long || cst instanceof Double ? 2 : 1;
+			default:
+				return Opcodes.ICONST_M1 <= opcode && opcode <= Opcodes.ICONST_5 ? 1 : 0;
+		}
+	}
+
+	public static void main(String[] args) {
+		//A chain of gotos folds to its final target.
+		LabelNode l1 = new LabelNode(), l2 = new LabelNode(), l3 = new LabelNode();
+		InsnList chain = new InsnList();
+		chain.add(new VarInsnNode(Opcodes.ILOAD, 0));
+		chain.add(new JumpInsnNode(Opcodes.IFEQ, l1));
+		chain.add(new InsnNode(Opcodes.RETURN));
+		chain.add(l1);
+		chain.add(new JumpInsnNode(Opcodes.GOTO, l2));
+		chain.add(l2);
+		chain.add(new JumpInsnNode(Opcodes.GOTO, l3));
+		chain.add(l3);
+		chain.add(new InsnNode(Opcodes.ATHROW));
+		optimize(chain);
+		print(chain);
+		checkState(((JumpInsnNode)chain.get(1)).label == l3, "chain not folded");
+
+		//A cycle of gotos has no final target; folding must still terminate.
+		InsnList cycle = new InsnList();
+		l1 = new LabelNode();
+		l2 = new LabelNode();
+		cycle.add(new VarInsnNode(Opcodes.ILOAD, 0));
+		cycle.add(new JumpInsnNode(Opcodes.IFEQ, l1));
+		cycle.add(new InsnNode(Opcodes.RETURN));
+		cycle.add(l1);
+		cycle.add(new JumpInsnNode(Opcodes.GOTO, l2));
+		cycle.add(l2);
+		cycle.add(new JumpInsnNode(Opcodes.GOTO, l1));
+		optimize(cycle);
+		print(cycle);
+	}
+
+	private static void print(InsnList insns) {
+		for (int i = 0; i < insns.size(); ++i) {
+			AbstractInsnNode insn = insns.get(i);
+			if (insn instanceof JumpInsnNode)
+				System.out.format("%d: %d -> %d%n", i, insn.getOpcode(), insns.indexOf(((JumpInsnNode)insn).label));
+			else
+				System.out.format("%d: %d%n", i, insn.getOpcode());
+		}
+		System.out.println();
+	}
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import edu.mit.streamjit.util.bytecode.insts.ArrayLoadInst;
+import edu.mit.streamjit.util.bytecode.insts.ArrayStoreInst;
+import edu.mit.streamjit.util.bytecode.insts.CallInst;
+import edu.mit.streamjit.util.bytecode.insts.CastInst;
+import edu.mit.streamjit.util.bytecode.insts.Instruction;
+import edu.mit.streamjit.util.bytecode.insts.LoadInst;
+import edu.mit.streamjit.util.bytecode.insts.StoreInst;
+import edu.mit.streamjit.util.bytecode.types.ArrayType;
+import edu.mit.streamjit.util.bytecode.types.PrimitiveType;
+import edu.mit.streamjit.util.bytecode.types.RegularType;
+import edu.mit.streamjit.util.bytecode.types.Type;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Eliminates field and array element loads whose value is already known,
+ * either from an earlier load of the same location or from a store to it.
+ *
+ * Walking the dominator tree, we track the known contents of memory: a
+ * location is a field and its instance (if any), or an array and an index,
+ * compared by identity (so this pass works best after global value
+ * numbering).  The alias model is simple: different fields never alias, and
+ * arrays alias only if their elements are the same primitive type or both
+ * references.  A store kills every location it may alias, then records its
+ * value.  Calls, volatile accesses, and static accesses that may initialize a
+ * class (and so run arbitrary code) forget everything.
+ *
+ * A block inherits its immediate dominator's memory, less whatever may be
+ * stored on paths from the dominator to the block; for loop headers, this
+ * includes the loop body.
+ * @author agent <agent@local>
+ * @since 10/19/2026
+ */
+public final class RedundantLoadElimination {
+	private RedundantLoadElimination() {}
+
+	/**
+	 * Eliminates redundant loads in the given method.
+	 * @param method the method to optimize
+	 * @return true iff changes were made
+	 */
+	public static boolean eliminateRedundantLoads(Method method) {
+		checkArgument(method.isMutable(), "%s not mutable", method);
+		if (method.basicBlocks().isEmpty())
+			return false;
+		DominatorTree domTree = new DominatorTree(method);
+		Map<BasicBlock, Clobbers> clobbers = new IdentityHashMap<>();
+		for (BasicBlock b : method.basicBlocks())
+			clobbers.put(b, new Clobbers(b));
+
+		//The method's class (and so its superclasses) is initialized, or at
+		//least being initialized by this thread, whenever the method runs.
+		Set<Klass> initialized = new HashSet<>();
+		addWithSuperclasses(initialized, method.getParent());
+
+		boolean changed = false;
+		Deque<Frame> stack = new ArrayDeque<>();
+		stack.push(new Frame(method.basicBlocks().get(0), new Memory(initialized), domTree));
+		while (!stack.isEmpty()) {
+			Frame frame = stack.peek();
+			if (!frame.visited) {
+				frame.visited = true;
+				changed |= process(frame.block, frame.memory);
+			}
+			if (frame.children.hasNext()) {
+				BasicBlock child = frame.children.next();
+				Memory memory = frame.memory.copy();
+				clobberPathsTo(child, frame.block, clobbers, memory);
+				stack.push(new Frame(child, memory, domTree));
+			} else
+				stack.pop();
+		}
+		return changed;
+	}
+
+	private static final class Frame {
+		private final BasicBlock block;
+		private final Memory memory;
+		private final Iterator<BasicBlock> children;
+		private boolean visited = false;
+		private Frame(BasicBlock block, Memory memory, DominatorTree domTree) {
+			this.block = block;
+			this.memory = memory;
+			this.children = domTree.getChildren(block).iterator();
+		}
+	}
+
+	/**
+	 * Forwards known values to the loads in the given block, updating the
+	 * memory state as we go.
+	 */
+	private static boolean process(BasicBlock block, Memory memory) {
+		boolean changed = false;
+		for (Instruction i : ImmutableList.copyOf(block.instructions())) {
+			if (i instanceof LoadInst && i.getOperand(0) instanceof Field) {
+				LoadInst li = (LoadInst)i;
+				Field f = (Field)li.getLocation();
+				if (!enterField(f, memory))
+					continue;
+				Value instance = f.isStatic() ? f : li.getInstance();
+				Value known = memory.get(f, instance);
+				if (known != null && forward(li, known))
+					changed = true;
+				else
+					memory.put(f, instance, li);
+			} else if (i instanceof StoreInst && i.getOperand(0) instanceof Field) {
+				StoreInst si = (StoreInst)i;
+				Field f = (Field)si.getLocation();
+				if (!enterField(f, memory))
+					continue;
+				memory.kill(f);
+				memory.put(f, f.isStatic() ? f : si.getInstance(), si.getData());
+			} else if (i instanceof ArrayLoadInst) {
+				ArrayLoadInst ali = (ArrayLoadInst)i;
+				Type aliasClass = aliasClass(ali.getArray());
+				List<Value> element = Arrays.asList(ali.getArray(), ali.getIndex());
+				Value known = memory.get(aliasClass, element);
+				if (known != null && forward(ali, known))
+					changed = true;
+				else
+					memory.put(aliasClass, element, ali);
+			} else if (i instanceof ArrayStoreInst) {
+				ArrayStoreInst asi = (ArrayStoreInst)i;
+				Type aliasClass = aliasClass(asi.getArray());
+				memory.kill(aliasClass);
+				memory.put(aliasClass, Arrays.asList(asi.getArray(), asi.getIndex()), asi.getData());
+			} else if (i instanceof CallInst)
+				memory.clear();
+		}
+		return changed;
+	}
+
+	/**
+	 * Updates the memory state for an access to the given field, returning
+	 * false if the access is volatile and so shouldn't be tracked.
+	 */
+	private static boolean enterField(Field f, Memory memory) {
+		if (f.modifiers().contains(Modifier.VOLATILE)) {
+			memory.clear();
+			return false;
+		}
+		if (f.isStatic() && !memory.initialized.contains(f.getParent())) {
+			memory.clear();
+			addWithSuperclasses(memory.initialized, f.getParent());
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the given load with the given known value, converting a
+	 * stored int to the load's sub-int type if necessary.  Returns false if
+	 * the value can't be used.
+	 */
+	private static boolean forward(Instruction load, Value known) {
+		Type type = load.getType();
+		if (!known.getType().isSubtypeOf(type)) {
+			//Stores of byte, short and char locations take an int and
+			//truncate.  Booleans are masked instead, so we leave them alone.
+			if (!(type instanceof PrimitiveType) || ((PrimitiveType)type).isBoolean() ||
+					!known.getType().equals(type.getTypeFactory().getType(int.class)))
+				return false;
+			CastInst cast = new CastInst(type, known);
+			BasicBlock block = load.getParent();
+			block.instructions().add(block.instructions().indexOf(load), cast);
+			known = cast;
+		}
+		load.replaceInstWithValue(known);
+		return true;
+	}
+
+	/**
+	 * Returns the type identifying the arrays the given array may alias: its
+	 * component type if primitive, or Object for all arrays of references.
+	 */
+	private static Type aliasClass(Value array) {
+		RegularType component = ((ArrayType)array.getType()).getComponentType();
+		if (component instanceof PrimitiveType)
+			return component;
+		return component.getTypeFactory().getType(Object.class);
+	}
+
+	private static void addWithSuperclasses(Set<Klass> set, Klass klass) {
+		for (Klass k = klass; k != null; k = k.getSuperclass())
+			set.add(k);
+	}
+
+	/**
+	 * Kills the locations in the given memory state (the state at the end of
+	 * the given block's immediate dominator) that may be stored on some path
+	 * from the dominator to the block.
+	 */
+	private static void clobberPathsTo(BasicBlock block, BasicBlock idom, Map<BasicBlock, Clobbers> clobbers, Memory memory) {
+		Set<BasicBlock> visited = new HashSet<>();
+		Deque<BasicBlock> worklist = new ArrayDeque<>();
+		for (BasicBlock p : block.predecessors())
+			if (p != idom && visited.add(p))
+				worklist.add(p);
+		while (!worklist.isEmpty()) {
+			BasicBlock b = worklist.pop();
+			Clobbers c = clobbers.get(b);
+			if (c.barrier || !memory.initialized.containsAll(c.klasses)) {
+				memory.clear();
+				return;
+			}
+			for (Field f : c.fields)
+				memory.kill(f);
+			for (Type t : c.aliasClasses)
+				memory.kill(t);
+			for (BasicBlock p : b.predecessors())
+				if (p != idom && visited.add(p))
+					worklist.add(p);
+		}
+	}
+
+	/**
+	 * A summary of the locations a block may store.
+	 */
+	private static final class Clobbers {
+		/**
+		 * True if the block may write anything (calls and volatile accesses).
+		 */
+		private boolean barrier = false;
+		private final Set<Field> fields = new HashSet<>();
+		private final Set<Type> aliasClasses = new HashSet<>();
+		/**
+		 * Classes whose static fields are accessed, which forget everything
+		 * if the classes weren't already initialized.
+		 */
+		private final Set<Klass> klasses = new HashSet<>();
+		private Clobbers(BasicBlock block) {
+			for (Instruction i : block.instructions())
+				if (i instanceof CallInst)
+					barrier = true;
+				else if ((i instanceof LoadInst || i instanceof StoreInst) && i.getOperand(0) instanceof Field) {
+					Field f = (Field)i.getOperand(0);
+					if (f.modifiers().contains(Modifier.VOLATILE))
+						barrier = true;
+					if (f.isStatic())
+						klasses.add(f.getParent());
+					if (i instanceof StoreInst)
+						fields.add(f);
+				} else if (i instanceof ArrayStoreInst)
+					aliasClasses.add(aliasClass(((ArrayStoreInst)i).getArray()));
+		}
+	}
+
+	/**
+	 * The known contents of memory at some point.  Field locations are keyed
+	 * by field, then instance (the field itself for static fields); array
+	 * locations by alias class, then array and index.
+	 */
+	private static final class Memory {
+		private final Map<Field, Map<Value, Value>> fields = new HashMap<>();
+		private final Map<Type, Map<List<Value>, Value>> arrays = new HashMap<>();
+		private final Set<Klass> initialized;
+		private Memory(Set<Klass> initialized) {
+			this.initialized = initialized;
+		}
+		private Memory copy() {
+			Memory copy = new Memory(new HashSet<>(initialized));
+			for (Map.Entry<Field, Map<Value, Value>> e : fields.entrySet())
+				copy.fields.put(e.getKey(), new HashMap<>(e.getValue()));
+			for (Map.Entry<Type, Map<List<Value>, Value>> e : arrays.entrySet())
+				copy.arrays.put(e.getKey(), new HashMap<>(e.getValue()));
+			return copy;
+		}
+		private Value get(Field f, Value instance) {
+			Map<Value, Value> m = fields.get(f);
+			return m != null ? m.get(instance) : null;
+		}
+		private void put(Field f, Value instance, Value value) {
+			Map<Value, Value> m = fields.get(f);
+			if (m == null)
+				fields.put(f, m = new HashMap<>());
+			m.put(instance, value);
+		}
+		private void kill(Field f) {
+			fields.remove(f);
+		}
+		private Value get(Type aliasClass, List<Value> element) {
+			Map<List<Value>, Value> m = arrays.get(aliasClass);
+			return m != null ? m.get(element) : null;
+		}
+		private void put(Type aliasClass, List<Value> element, Value value) {
+			Map<List<Value>, Value> m = arrays.get(aliasClass);
+			if (m == null)
+				arrays.put(aliasClass, m = new HashMap<>());
+			m.put(element, value);
+		}
+		private void kill(Type aliasClass) {
+			arrays.remove(aliasClass);
+		}
+		private void clear() {
+			fields.clear();
+			arrays.clear();
+		}
+	}
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import edu.mit.streamjit.util.bytecode.insts.Instruction;
+import edu.mit.streamjit.util.bytecode.insts.PhiInst;
+import edu.mit.streamjit.util.bytecode.insts.TerminatorInst;
+import edu.mit.streamjit.util.bytecode.types.VoidType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Assigns JVM local variable slots to the values of a method, reusing slots
+ * between values whose live ranges do not overlap.
+ *
+ * Liveness is computed over the SSA form.  A phi is considered to be defined
+ * on each of its incoming edges, after the predecessor's terminator has
+ * chosen the edge, where MethodUnresolver emits the moves into it as a
+ * parallel copy; its incoming value is used just before that.  Phis that
+ * aren't live into their block get no moves.  Values that interfere are
+ * never assigned overlapping slots; phis are coalesced with their incoming
+ * values when they don't interfere, so most phi moves disappear.
+ *
+ * Arguments keep the slots the JVM passes them in (though a dead argument's
+ * slot may be reused), and LocalVariables, which aren't in SSA form, each get
+ * a dedicated slot just past the arguments.
+ * @author agent <agent@local>
+ * @since 10/18/2026
+ */
+final class RegisterAllocator {
+	private final Method method;
+	/**
+	 * The values we allocate registers for (arguments and instructions
+	 * producing non-void values), numbered by their index in this list.
+	 */
+	private final List<Value> values = new ArrayList<>();
+	private final Map<Value, Integer> numbers = new IdentityHashMap<>();
+	private final Map<BasicBlock, BitSet> liveIn = new IdentityHashMap<>();
+	private final Map<BasicBlock, BitSet> liveOut = new IdentityHashMap<>();
+	private final Map<BasicBlock, List<PhiInst>> phis = new IdentityHashMap<>();
+	/**
+	 * interference.get(i) is the set of values interfering with value i.  After
+	 * coalescing, the set for a class leader is the union of its members' sets.
+	 */
+	private final List<BitSet> interference = new ArrayList<>();
+	/**
+	 * Union-find forest of coalesced values; members.get(i) is the set of
+	 * values coalesced with i, valid only if i is a leader.
+	 */
+	private int[] leader;
+	private final List<BitSet> members = new ArrayList<>();
+	private final Map<Value, Integer> registers = new IdentityHashMap<>();
+	private int maxLocals;
+	private RegisterAllocator(Method method) {
+		this.method = method;
+	}
+
+	/**
+	 * Allocates registers for the given method.
+	 * @param method the method to allocate registers for
+	 * @param unallocated values that don't need a register (because they're
+	 * kept on the operand stack or never stored)
+	 * @return a RegisterAllocator holding the allocation and liveness
+	 */
+	public static RegisterAllocator allocate(Method method, Set<Value> unallocated) {
+		RegisterAllocator ra = new RegisterAllocator(method);
+		ra.numberValues(unallocated);
+		ra.computeLiveness();
+		ra.buildInterferenceGraph();
+		ra.coalescePhis();
+		ra.color();
+		return ra;
+	}
+
+	/**
+	 * Returns the register assignment, mapping each argument, LocalVariable and
+	 * instruction producing a non-void value to its first slot.
+	 * @return the register assignment
+	 */
+	public Map<Value, Integer> registers() {
+		return registers;
+	}
+
+	/**
+	 * Returns the number of slots required to hold all values in the method,
+	 * suitable for use as the method's max_locals.
+	 * @return the number of slots required
+	 */
+	public int maxLocals() {
+		return maxLocals;
+	}
+
+	/**
+	 * Returns true iff the given value is live on entry to the given block.
+	 * Phis of the block are live on entry iff they are used.
+	 * @param v a value
+	 * @param block a block
+	 * @return true iff v is live on entry to block
+	 */
+	public boolean isLiveIn(Value v, BasicBlock block) {
+		Integer n = numbers.get(v);
+		return n != null && liveIn.get(block).get(n);
+	}
+
+	/**
+	 * Returns true iff the given value is live on exit from the given block,
+	 * after its terminator (but before the phi moves on its outgoing edges).
+	 * @param v a value
+	 * @param block a block
+	 * @return true iff v is live on exit from block
+	 */
+	public boolean isLiveOut(Value v, BasicBlock block) {
+		Integer n = numbers.get(v);
+		return n != null && liveOut.get(block).get(n);
+	}
+
+	/**
+	 * Returns the phis of the given successor block that need moves on the
+	 * edge from the given block: those with an incoming value for the edge that
+	 * are live into the successor.
+	 * @param from a block
+	 * @param to a successor of from
+	 * @return the phis to move into on the edge
+	 */
+	public List<PhiInst> phisMovedOn(BasicBlock from, BasicBlock to) {
+		List<PhiInst> moved = new ArrayList<>();
+		BitSet in = liveIn.get(to);
+		for (PhiInst p : phis.get(to))
+			if (p.get(from) != null && numbers.containsKey(p) && in.get(numbers.get(p)))
+				moved.add(p);
+		return moved;
+	}
+
+	/**
+	 * Returns the values live on the edge between the given blocks, after the
+	 * predecessor's terminator but before the edge's phi moves.
+	 * @param from a block
+	 * @param to a successor of from
+	 * @return the values live on the edge
+	 */
+	public List<Value> liveOnEdge(BasicBlock from, BasicBlock to) {
+		return values(liveOnEdgeBits(from, to));
+	}
+
+	private BitSet liveOnEdgeBits(BasicBlock from, BasicBlock to) {
+		BitSet live = (BitSet)liveIn.get(to).clone();
+		List<PhiInst> moved = phisMovedOn(from, to);
+		for (PhiInst p : moved)
+			live.clear(numbers.get(p));
+		for (PhiInst p : moved)
+			use(p.get(from), live);
+		return live;
+	}
+
+	/**
+	 * Returns the values live on entry to or exit from the given block.
+	 * @param block a block
+	 * @return the values live on entry to or exit from block
+	 */
+	public List<Value> liveInOrOut(BasicBlock block) {
+		BitSet live = (BitSet)liveIn.get(block).clone();
+		live.or(liveOut.get(block));
+		return values(live);
+	}
+
+	private List<Value> values(BitSet set) {
+		List<Value> result = new ArrayList<>(set.cardinality());
+		for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i+1))
+			result.add(values.get(i));
+		return result;
+	}
+
+	private void numberValues(Set<Value> unallocated) {
+		for (Argument a : method.arguments())
+			number(a);
+		for (BasicBlock b : method.basicBlocks())
+			for (Instruction i : b.instructions())
+				if (!(i.getType() instanceof VoidType) && !unallocated.contains(i))
+					number(i);
+	}
+
+	private void number(Value v) {
+		numbers.put(v, values.size());
+		values.add(v);
+		interference.add(new BitSet());
+	}
+
+	private void computeLiveness() {
+		Map<BasicBlock, BitSet> gen = new IdentityHashMap<>(), kill = new IdentityHashMap<>();
+		for (BasicBlock b : method.basicBlocks()) {
+			BitSet g = new BitSet(), k = new BitSet();
+			walkBackward(b, g, k);
+			gen.put(b, g);
+			kill.put(b, k);
+			liveIn.put(b, new BitSet());
+			liveOut.put(b, new BitSet());
+			List<PhiInst> blockPhis = new ArrayList<>();
+			for (Instruction i : b.instructions())
+				if (i instanceof PhiInst)
+					blockPhis.add((PhiInst)i);
+			phis.put(b, blockPhis);
+		}
+
+		boolean changed;
+		do {
+			changed = false;
+			List<BasicBlock> blocks = method.basicBlocks();
+			for (ListIterator<BasicBlock> it = blocks.listIterator(blocks.size()); it.hasPrevious();) {
+				BasicBlock b = it.previous();
+				BitSet out = new BitSet();
+				for (BasicBlock s : b.successors())
+					out.or(liveOnEdgeBits(b, s));
+				liveOut.put(b, out);
+				BitSet in = (BitSet)out.clone();
+				in.andNot(kill.get(b));
+				in.or(gen.get(b));
+				if (!in.equals(liveIn.get(b))) {
+					liveIn.put(b, in);
+					changed = true;
+				}
+			}
+		} while (changed);
+	}
+
+	private void buildInterferenceGraph() {
+		for (BasicBlock b : method.basicBlocks()) {
+			//The phi moves on each edge define their phis (in parallel) while
+			//the successor's live-in values are live.
+			for (BasicBlock s : b.successors()) {
+				BitSet live = liveIn.get(s);
+				for (PhiInst p : phisMovedOn(b, s))
+					define(numbers.get(p), live, null);
+			}
+			walkBackward(b, (BitSet)liveOut.get(b).clone(), null);
+		}
+	}
+
+	/**
+	 * Walks the given block backward from its terminator, starting from the
+	 * given live set.  If kill is non-null, computes the block's upward-exposed
+	 * uses into live and its definitions into kill (so live should start
+	 * empty); otherwise, records interferences between each definition and the
+	 * values live across it.
+	 */
+	private void walkBackward(BasicBlock block, BitSet live, BitSet kill) {
+		TerminatorInst terminator = block.getTerminator();
+		if (terminator != null)
+			use(terminator, live);
+
+		List<Instruction> insts = block.instructions();
+		for (ListIterator<Instruction> it = insts.listIterator(insts.size()); it.hasPrevious();) {
+			Instruction i = it.previous();
+			if (i instanceof TerminatorInst || i instanceof PhiInst)
+				continue;
+			Integer n = numbers.get(i);
+			if (n != null) {
+				define(n, live, kill);
+				live.clear(n);
+				if (kill != null)
+					kill.set(n);
+			}
+			use(i, live);
+		}
+	}
+
+	private void define(int d, BitSet live, BitSet kill) {
+		if (kill != null)
+			return;
+		for (int l = live.nextSetBit(0); l >= 0; l = live.nextSetBit(l+1))
+			if (l != d) {
+				interference.get(d).set(l);
+				interference.get(l).set(d);
+			}
+	}
+
+	private void use(User user, BitSet live) {
+		for (Value v : user.operands())
+			use(v, live);
+	}
+
+	private void use(Value v, BitSet live) {
+		Integer n = numbers.get(v);
+		if (n != null)
+			live.set(n);
+	}
+
+	private void coalescePhis() {
+		leader = new int[values.size()];
+		for (int i = 0; i < leader.length; ++i) {
+			leader[i] = i;
+			BitSet m = new BitSet();
+			m.set(i);
+			members.add(m);
+		}
+		for (BasicBlock b : method.basicBlocks())
+			for (Instruction i : b.instructions())
+				if (i instanceof PhiInst)
+					for (Value v : ((PhiInst)i).incomingValues())
+						if (numbers.containsKey(v))
+							tryCoalesce(numbers.get(i), numbers.get(v));
+	}
+
+	private void tryCoalesce(int a, int b) {
+		a = find(a);
+		b = find(b);
+		if (a == b)
+			return;
+		if (category(a) != category(b))
+			return;
+		if (interference.get(a).intersects(members.get(b)))
+			return;
+		//Arguments have fixed slots, so a class can contain at most one.
+		if (containsArgument(a) && containsArgument(b))
+			return;
+		//Keep the lower-numbered leader, so arguments remain leaders.
+		if (b < a) {
+			int t = a;
+			a = b;
+			b = t;
+		}
+		leader[b] = a;
+		members.get(a).or(members.get(b));
+		interference.get(a).or(interference.get(b));
+	}
+
+	private int find(int i) {
+		while (leader[i] != i) {
+			leader[i] = leader[leader[i]];
+			i = leader[i];
+		}
+		return i;
+	}
+
+	private boolean containsArgument(int leader) {
+		//Arguments are numbered first.
+		return members.get(leader).nextSetBit(0) < method.arguments().size();
+	}
+
+	private int category(int i) {
+		return values.get(i).getType().getCategory();
+	}
+
+	private void color() {
+		int[] colors = new int[values.size()];
+		Arrays.fill(colors, -1);
+		int nextSlot = 0;
+		for (Argument a : method.arguments()) {
+			colors[numbers.get(a)] = nextSlot;
+			nextSlot += a.getType().getCategory();
+		}
+		maxLocals = nextSlot;
+
+		BitSet reserved = new BitSet();
+		if (method.isMutable())
+			for (LocalVariable v : method.localVariables()) {
+				registers.put(v, nextSlot);
+				int category = v.getType().getFieldType().getCategory();
+				reserved.set(nextSlot, nextSlot+category);
+				nextSlot += category;
+			}
+		maxLocals = Math.max(maxLocals, nextSlot);
+
+		for (int i = 0; i < values.size(); ++i) {
+			int l = find(i);
+			if (colors[l] == -1) {
+				BitSet occupied = (BitSet)reserved.clone();
+				BitSet neighbors = interference.get(l);
+				for (int n = neighbors.nextSetBit(0); n >= 0; n = neighbors.nextSetBit(n+1)) {
+					int c = colors[find(n)];
+					if (c != -1)
+						occupied.set(c, c+category(n));
+				}
+				colors[l] = lowestFree(occupied, category(l));
+			}
+			registers.put(values.get(i), colors[l]);
+			maxLocals = Math.max(maxLocals, colors[l]+category(i));
+		}
+	}
+
+	private static int lowestFree(BitSet occupied, int size) {
+		int slot = occupied.nextClearBit(0);
+		while (size == 2 && occupied.get(slot+1))
+			slot = occupied.nextClearBit(slot+1);
+		return slot;
+	}
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import edu.mit.streamjit.util.bytecode.insts.ArrayLengthInst;
+import edu.mit.streamjit.util.bytecode.insts.ArrayLoadInst;
+import edu.mit.streamjit.util.bytecode.insts.ArrayStoreInst;
+import edu.mit.streamjit.util.bytecode.insts.CallInst;
+import edu.mit.streamjit.util.bytecode.insts.CastInst;
+import edu.mit.streamjit.util.bytecode.insts.Instruction;
+import edu.mit.streamjit.util.bytecode.insts.LoadInst;
+import edu.mit.streamjit.util.bytecode.insts.NewArrayInst;
+import edu.mit.streamjit.util.bytecode.insts.PhiInst;
+import edu.mit.streamjit.util.bytecode.insts.ReturnInst;
+import edu.mit.streamjit.util.bytecode.insts.StoreInst;
+import edu.mit.streamjit.util.bytecode.types.PrimitiveType;
+import edu.mit.streamjit.util.bytecode.types.RegularType;
+import edu.mit.streamjit.util.bytecode.types.Type;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replaces allocations that never escape the method with SSA values, one per
+ * array element or field.
+ *
+ * An allocation is either a NewArrayInst of one dimension with a small
+ * constant length or a call to a constructor that just stores its arguments
+ * and constants into fields of a class extending Object directly (with no
+ * finalizer or static initializer, so nothing observes the allocation).  It
+ * doesn't escape if it (and the phis merging only it) is used only as the
+ * array of loads and stores at constant in-bounds indices and of arraylength,
+ * or as the instance of field loads and stores; passing it anywhere else,
+ * storing it anywhere or comparing it counts as escaping.
+ *
+ * Element values are then rebuilt in SSA form over the blocks dominated by
+ * the allocation, with phis at merge points (trivial phis are removed again).
+ * Loads are replaced by the reaching value, arraylength by the constant
+ * length, and the stores and the allocation itself are deleted.
+ * @author agent <agent@local>
+ * @since 10/19/2026
+ */
+public final class ScalarReplacement {
+	/**
+	 * The largest allocation (in array elements or fields) we'll replace.
+	 */
+	private static final int MAX_SLOTS = 32;
+	private final Method method;
+	private final ConstantFactory constants;
+	private DominatorTree domTree;
+	private ScalarReplacement(Method method) {
+		this.method = method;
+		this.constants = method.getParent().getParent().constants();
+	}
+
+	/**
+	 * Replaces non-escaping allocations in the given method with SSA values.
+	 * @param method the method to optimize
+	 * @return true iff changes were made
+	 */
+	public static boolean replaceScalars(Method method) {
+		checkArgument(method.isMutable(), "%s not mutable", method);
+		if (method.basicBlocks().isEmpty())
+			return false;
+		return new ScalarReplacement(method).run();
+	}
+
+	private boolean run() {
+		boolean changed = false, makingProgress;
+		//Replacing one allocation can make another stop escaping (e.g., an
+		//array stored only into another replaced array).
+		do {
+			makingProgress = false;
+			domTree = new DominatorTree(method);
+			for (BasicBlock block : ImmutableList.copyOf(method.basicBlocks()))
+				for (Instruction i : ImmutableList.copyOf(block.instructions()))
+					if (i.getParent() != null && domTree.isReachable(block))
+						changed |= makingProgress |= tryReplace(i);
+		} while (makingProgress);
+		return changed;
+	}
+
+	private boolean tryReplace(Instruction alloc) {
+		List<RegularType> slotTypes = new ArrayList<>();
+		Value[] initial;
+		List<Field> fields = null;
+		if (alloc instanceof NewArrayInst) {
+			NewArrayInst nai = (NewArrayInst)alloc;
+			if (nai.getNumOperands() != 1 || !(nai.getOperand(0) instanceof Constant))
+				return false;
+			int length = ((Number)normalize((Constant<?>)nai.getOperand(0))).intValue();
+			if (length < 0 || length > MAX_SLOTS)
+				return false;
+			slotTypes.addAll(Collections.nCopies(length, nai.getType().getComponentType()));
+			initial = defaults(slotTypes);
+		} else if (alloc instanceof CallInst && ((CallInst)alloc).getMethod().isConstructor()) {
+			CallInst call = (CallInst)alloc;
+			Klass klass = call.getMethod().getParent();
+			if (!isUnobservable(klass))
+				return false;
+			fields = new ArrayList<>();
+			for (Field f : klass.fields())
+				if (!f.isStatic()) {
+					fields.add(f);
+					slotTypes.add(f.getType().getFieldType());
+				}
+			if (fields.size() > MAX_SLOTS)
+				return false;
+			initial = constructorValues(call, fields, defaults(slotTypes));
+			if (initial == null)
+				return false;
+		} else
+			return false;
+
+		Set<Value> aliases = aliases(alloc);
+		if (aliases == null)
+			return false;
+		Set<BasicBlock> region = Collections.newSetFromMap(new IdentityHashMap<BasicBlock, Boolean>());
+		region.addAll(domTree.dominated(alloc.getParent()));
+		for (Value v : aliases)
+			for (User u : v.users())
+				if (!(u instanceof PhiInst) && slotOf((Instruction)u, aliases, fields, slotTypes) < 0)
+					return false;
+				else if (!region.contains(((Instruction)u).getParent()))
+					return false;
+
+		replace(alloc, aliases, fields, slotTypes, initial);
+		return true;
+	}
+
+	/**
+	 * Returns the given allocation together with the phis merging only it, or
+	 * null if it's merged with anything else.
+	 */
+	private static Set<Value> aliases(Value alloc) {
+		Set<Value> aliases = Collections.newSetFromMap(new IdentityHashMap<Value, Boolean>());
+		Deque<Value> worklist = new ArrayDeque<>();
+		aliases.add(alloc);
+		worklist.add(alloc);
+		while (!worklist.isEmpty())
+			for (User u : worklist.pop().users())
+				if (u instanceof PhiInst && aliases.add((PhiInst)u))
+					worklist.add((PhiInst)u);
+		for (Value v : aliases)
+			if (v instanceof PhiInst)
+				for (Value incoming : ((PhiInst)v).incomingValues())
+					if (!aliases.contains(incoming))
+						return null;
+		return aliases;
+	}
+
+	/**
+	 * Returns the slot the given non-phi user of an allocation accesses, the
+	 * number of slots for an arraylength, or -1 if the use lets the allocation
+	 * escape.
+	 */
+	private int slotOf(Instruction i, Set<Value> aliases, List<Field> fields, List<RegularType> slotTypes) {
+		if (fields == null) {
+			if (i instanceof ArrayLengthInst)
+				return slotTypes.size();
+			Value index;
+			if (i instanceof ArrayLoadInst && aliases.contains(((ArrayLoadInst)i).getArray()))
+				index = ((ArrayLoadInst)i).getIndex();
+			else if (i instanceof ArrayStoreInst && aliases.contains(((ArrayStoreInst)i).getArray()) &&
+					!aliases.contains(((ArrayStoreInst)i).getData()) &&
+					canStore(((ArrayStoreInst)i).getData().getType(), slotTypes.get(0)))
+				index = ((ArrayStoreInst)i).getIndex();
+			else
+				return -1;
+			if (!(index instanceof Constant))
+				return -1;
+			//Out-of-bounds accesses keep their exception.
+			int x = ((Number)normalize((Constant<?>)index)).intValue();
+			return 0 <= x && x < slotTypes.size() ? x : -1;
+		} else if (i instanceof LoadInst && ((LoadInst)i).getLocation() instanceof Field &&
+				!((Field)((LoadInst)i).getLocation()).isStatic() &&
+				aliases.contains(((LoadInst)i).getInstance()))
+			return fields.indexOf(((LoadInst)i).getLocation());
+		else if (i instanceof StoreInst && ((StoreInst)i).getLocation() instanceof Field &&
+				!((Field)((StoreInst)i).getLocation()).isStatic() &&
+				aliases.contains(((StoreInst)i).getInstance()) &&
+				!aliases.contains(((StoreInst)i).getData()))
+			return fields.indexOf(((StoreInst)i).getLocation());
+		return -1;
+	}
+
+	/**
+	 * Returns true if a value of the given type can be stored in an element
+	 * of the given type, converting it with a cast if necessary.  Array stores
+	 * of ints into smaller-than-int arrays truncate, which we express as a
+	 * cast; stores into boolean arrays mask instead, so we don't handle them.
+	 * Reference stores must not be able to throw ArrayStoreException.
+	 */
+	private boolean canStore(Type data, RegularType component) {
+		if (data.isSubtypeOf(component))
+			return true;
+		return component instanceof PrimitiveType && !((PrimitiveType)component).isBoolean() &&
+				data.equals(data.getTypeFactory().getType(int.class));
+	}
+
+	/**
+	 * Returns true if allocating an instance of the given class can't be
+	 * observed except through its constructor: its superclass is Object, it
+	 * has no finalizer and neither it nor its superinterfaces have static
+	 * initializers.
+	 */
+	private boolean isUnobservable(Klass klass) {
+		if (klass.modifiers().contains(Modifier.ABSTRACT) ||
+				klass.getSuperclass() != method.getParent().getParent().getKlass(Object.class))
+			return false;
+		if (!Iterables.isEmpty(klass.getMethods("finalize")))
+			return false;
+		Deque<Klass> worklist = new ArrayDeque<>();
+		worklist.add(klass);
+		while (!worklist.isEmpty()) {
+			Klass k = worklist.pop();
+			if (!Iterables.isEmpty(k.getMethods("<clinit>")))
+				return false;
+			worklist.addAll(k.interfaces());
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the field values after the given constructor call, or null if
+	 * the constructor does anything but call Object's constructor and store
+	 * its arguments or constants into fields of the object.
+	 */
+	private static Value[] constructorValues(CallInst call, List<Field> fields, Value[] values) {
+		Method ctor = call.getMethod();
+		if (!ctor.isResolved()) {
+			try {
+				if (!ctor.isResolvable() ||
+						(!ctor.isMutable() && !MethodNodeBuilder.buildMethodNode(ctor).tryCatchBlocks.isEmpty()))
+					return null;
+				ctor.resolve();
+			} catch (IOException | NoSuchMethodException | RuntimeException | AssertionError ex) {
+				return null;
+			}
+		}
+		if (ctor.basicBlocks().size() != 1)
+			return null;
+		int argumentOffset = ctor.arguments().size() - (call.getNumOperands() - 1);
+		for (Instruction i : ctor.basicBlocks().get(0).instructions()) {
+			if (i instanceof CallInst) {
+				Method m = ((CallInst)i).getMethod();
+				if (!m.isConstructor() || m.getParent() != ctor.getParent().getSuperclass() ||
+						i.getNumOperands() != 1 || !i.uses().isEmpty())
+					return null;
+			} else if (i instanceof StoreInst) {
+				StoreInst si = (StoreInst)i;
+				int slot = fields.indexOf(si.getLocation());
+				if (slot < 0 || !(si.getInstance() instanceof UninitializedValue))
+					return null;
+				Value data = si.getData();
+				if (data instanceof Argument) {
+					int index = ctor.arguments().indexOf(data) - argumentOffset;
+					if (index < 0)
+						return null;
+					data = call.getArgument(index);
+				} else if (!(data instanceof Constant))
+					return null;
+				if (!data.getType().isSubtypeOf(fields.get(slot).getType().getFieldType()))
+					return null;
+				values[slot] = data;
+			} else if (!(i instanceof ReturnInst))
+				return null;
+		}
+		return values;
+	}
+
+	private void replace(Instruction alloc, Set<Value> aliases, List<Field> fields, List<RegularType> slotTypes, Value[] initial) {
+		Value[] undefined = defaults(slotTypes);
+		List<BasicBlock> region = domTree.dominated(alloc.getParent());
+		Map<BasicBlock, Value[]> liveOut = new IdentityHashMap<>();
+		Set<PhiInst> createdPhis = Collections.newSetFromMap(new IdentityHashMap<PhiInst, Boolean>());
+		Map<BasicBlock, PhiInst[]> blockPhis = new IdentityHashMap<>();
+		for (BasicBlock b : region)
+			if (b != alloc.getParent() && Iterables.size(b.predecessors()) > 1) {
+				PhiInst[] phis = new PhiInst[slotTypes.size()];
+				for (int s = 0; s < phis.length; ++s) {
+					phis[s] = new PhiInst(slotTypes.get(s));
+					b.instructions().add(0, phis[s]);
+					createdPhis.add(phis[s]);
+				}
+				blockPhis.put(b, phis);
+			}
+
+		//Dominator tree preorder visits a block's single predecessor (its
+		//immediate dominator) before the block.
+		List<Instruction> dead = new ArrayList<>();
+		for (BasicBlock b : region) {
+			Value[] current;
+			if (b == alloc.getParent())
+				current = undefined.clone();
+			else if (blockPhis.containsKey(b))
+				current = Arrays.copyOf(blockPhis.get(b), slotTypes.size(), Value[].class);
+			else
+				current = liveOut.get(Iterables.getOnlyElement(b.predecessors())).clone();
+			for (Instruction i : ImmutableList.copyOf(b.instructions())) {
+				if (i == alloc) {
+					current = initial.clone();
+					continue;
+				}
+				if (createdPhis.contains(i) || !usesAny(i, aliases))
+					continue;
+				if (i instanceof PhiInst) {
+					dead.add(i);
+					continue;
+				}
+				int slot = slotOf(i, aliases, fields, slotTypes);
+				if (i instanceof ArrayLengthInst)
+					i.replaceInstWithValue(constants.getConstant(slotTypes.size()));
+				else if (i instanceof ArrayLoadInst || i instanceof LoadInst)
+					i.replaceInstWithValue(current[slot]);
+				else {
+					Value data = i instanceof StoreInst ? ((StoreInst)i).getData() : ((ArrayStoreInst)i).getData();
+					if (!data.getType().isSubtypeOf(slotTypes.get(slot))) {
+						CastInst cast = new CastInst(slotTypes.get(slot), data);
+						b.instructions().add(b.instructions().indexOf(i), cast);
+						data = cast;
+					}
+					current[slot] = data;
+					i.eraseFromParent();
+				}
+			}
+			liveOut.put(b, current);
+		}
+
+		for (Map.Entry<BasicBlock, PhiInst[]> entry : blockPhis.entrySet())
+			for (BasicBlock p : entry.getKey().predecessors()) {
+				Value[] incoming = liveOut.containsKey(p) ? liveOut.get(p) : undefined;
+				for (int s = 0; s < slotTypes.size(); ++s)
+					entry.getValue()[s].put(p, incoming[s]);
+			}
+
+		for (Instruction i : dead)
+			i.dropAllOperands();
+		for (Instruction i : dead)
+			i.removeFromParent();
+		alloc.eraseFromParent();
+		cleanUpPhis(createdPhis);
+	}
+
+	private static boolean usesAny(Instruction i, Set<Value> values) {
+		for (Value v : i.operands())
+			if (values.contains(v))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Removes the phis we created that merge only one value or are only used
+	 * by other phis we created.
+	 */
+	private static void cleanUpPhis(Set<PhiInst> remaining) {
+		boolean makingProgress;
+		do {
+			makingProgress = false;
+			for (PhiInst phi : ImmutableList.copyOf(remaining)) {
+				Value same = null;
+				for (Value v : phi.incomingValues())
+					if (v != phi && v != same) {
+						if (same != null) {
+							same = phi;
+							break;
+						}
+						same = v;
+					}
+				if (same == null || same == phi)
+					continue;
+				phi.replaceInstWithValue(same);
+				remaining.remove(phi);
+				makingProgress = true;
+			}
+		} while (makingProgress);
+
+		//Phis feeding only other phis are dead.
+		Set<PhiInst> live = Collections.newSetFromMap(new IdentityHashMap<PhiInst, Boolean>());
+		Deque<PhiInst> worklist = new ArrayDeque<>();
+		for (PhiInst phi : remaining)
+			for (User u : phi.users())
+				if (!remaining.contains(u) && live.add(phi))
+					worklist.add(phi);
+		while (!worklist.isEmpty())
+			for (Value v : worklist.pop().incomingValues())
+				if (remaining.contains(v) && live.add((PhiInst)v))
+					worklist.add((PhiInst)v);
+		remaining.removeAll(live);
+		for (PhiInst phi : remaining)
+			phi.dropAllOperands();
+		for (PhiInst phi : remaining)
+			phi.removeFromParent();
+	}
+
+	private Value[] defaults(List<RegularType> types) {
+		Value[] values = new Value[types.size()];
+		for (int i = 0; i < values.length; ++i)
+			values[i] = defaultValue(types.get(i));
+		return values;
+	}
+
+	private Value defaultValue(RegularType type) {
+		if (!(type instanceof PrimitiveType))
+			return constants.getNullConstant();
+		Class<?> c = ((PrimitiveType)type).getKlass().getBackingClass();
+		if (c == boolean.class)
+			return constants.getConstant(false);
+		if (c == byte.class)
+			return constants.getConstant((byte)0);
+		if (c == char.class)
+			return constants.getConstant((char)0);
+		if (c == short.class)
+			return constants.getConstant((short)0);
+		if (c == int.class)
+			return constants.getConstant(0);
+		if (c == long.class)
+			return constants.getConstant(0L);
+		if (c == float.class)
+			return constants.getConstant(0f);
+		assert c == double.class : c;
+		return constants.getConstant(0d);
+	}
+
+	private static Object normalize(Constant<?> c) {
+		Object v = c.getConstant();
+		if (v instanceof Boolean)
+			return (Boolean)v ? 1 : 0;
+		if (v instanceof Character)
+			return (int)(Character)v;
+		return v;
+	}
+}
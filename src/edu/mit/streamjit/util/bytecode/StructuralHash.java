@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2013-2014 Massachusetts Institute of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.mit.streamjit.util.bytecode;
+
+import static com.google.common.base.Preconditions.*;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import edu.mit.streamjit.util.bytecode.insts.BinaryInst;
+import edu.mit.streamjit.util.bytecode.insts.BranchInst;
+import edu.mit.streamjit.util.bytecode.insts.CallInst;
+import edu.mit.streamjit.util.bytecode.insts.InstanceofInst;
+import edu.mit.streamjit.util.bytecode.insts.Instruction;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Computes a stable hash of a mutable Klass's structure: its name, modifiers,
+ * supertypes, fields and methods, including method bodies.  Values are
+ * identified by their position (argument index, block index, instruction
+ * index), not by name or identity, so the hash is the same for equivalent IR
+ * built in different processes.  Values outside the klass (other klasses'
+ * fields and methods, constants) are identified by name, type and value.
+ *
+ * Value names only affect debug information (the local variable table), so
+ * klasses differing only in names have the same hash.
+ * @author agent <agent@local>
+ * @since 10/18/2026
+ */
+public final class StructuralHash {
+	private StructuralHash() {}
+
+	/**
+	 * Returns a structural hash of the given klass.
+	 * @param klass a mutable klass
+	 * @return the klass's structural hash
+	 */
+	public static HashCode hash(Klass klass) {
+		checkNotNull(klass);
+		checkArgument(klass.isMutable(), "hashing immutable klass %s", klass);
+		Hasher h = Hashing.sha256().newHasher();
+		putString(h, klass.getName());
+		h.putInt(Modifier.toBits(klass.modifiers()));
+		putString(h, klass.getSuperclass() != null ? klass.getSuperclass().getName() : "");
+		h.putInt(klass.interfaces().size());
+		for (Klass k : klass.interfaces())
+			putString(h, k.getName());
+		h.putInt(klass.fields().size());
+		for (Field f : klass.fields()) {
+			putString(h, f.getName());
+			h.putInt(Modifier.toBits(f.modifiers()));
+			putString(h, f.getType().getFieldType().getDescriptor());
+		}
+		h.putInt(klass.methods().size());
+		for (Method m : klass.methods())
+			hash(m, h);
+		return h.hash();
+	}
+
+	private static void hash(Method method, Hasher h) {
+		putString(h, method.getName());
+		h.putInt(Modifier.toBits(method.modifiers()));
+		putString(h, method.getType().toString());
+		h.putBoolean(method.isResolved());
+		if (!method.isResolved())
+			return;
+
+		//Number the method's values first, as phis refer forward.
+		Map<Value, Integer> numbers = new IdentityHashMap<>();
+		for (Argument a : method.arguments())
+			numbers.put(a, numbers.size());
+		for (LocalVariable v : method.localVariables())
+			numbers.put(v, numbers.size());
+		for (BasicBlock b : method.basicBlocks())
+			numbers.put(b, numbers.size());
+		for (BasicBlock b : method.basicBlocks())
+			for (Instruction i : b.instructions())
+				numbers.put(i, numbers.size());
+
+		h.putInt(method.localVariables().size());
+		for (LocalVariable v : method.localVariables())
+			putString(h, v.getType().toString());
+		h.putInt(method.basicBlocks().size());
+		for (BasicBlock b : method.basicBlocks()) {
+			//Frequencies affect block layout.
+			h.putDouble(b.getFrequency());
+			h.putInt(b.instructions().size());
+			for (Instruction i : b.instructions()) {
+				putString(h, i.getClass().getName());
+				putString(h, i.getType().toString());
+				if (i instanceof BinaryInst)
+					h.putInt(((BinaryInst)i).getOperation().ordinal());
+				else if (i instanceof BranchInst)
+					h.putInt(((BranchInst)i).getSense().ordinal());
+				else if (i instanceof CallInst)
+					putString(h, ((CallInst)i).callDescriptor());
+				else if (i instanceof InstanceofInst)
+					putString(h, ((InstanceofInst)i).getTestType().toString());
+				h.putInt(i.getNumOperands());
+				for (Value v : i.operands())
+					hash(v, numbers, h);
+			}
+		}
+	}
+
+	private static void hash(Value v, Map<Value, Integer> numbers, Hasher h) {
+		if (v instanceof UninitializedValue && !numbers.containsKey(v))
+			numbers.put(v, numbers.size());
+		Integer number = numbers.get(v);
+		if (number != null) {
+			h.putByte((byte)0);
+			h.putInt(number);
+		} else if (v instanceof Constant) {
+			h.putByte((byte)1);
+			putString(h, v.getType().toString());
+			Object c = ((Constant<?>)v).getConstant();
+			if (c instanceof Float)
+				h.putInt(Float.floatToRawIntBits((Float)c));
+			else if (c instanceof Double)
+				h.putLong(Double.doubleToRawLongBits((Double)c));
+			else if (c instanceof Class)
+				putString(h, ((Class<?>)c).getName());
+			else
+				putString(h, String.valueOf(c));
+		} else if (v instanceof Field) {
+			h.putByte((byte)2);
+			Field f = (Field)v;
+			putString(h, f.getParent().getName());
+			putString(h, f.getName());
+			putString(h, f.getType().toString());
+			h.putInt(Modifier.toBits(f.modifiers()));
+		} else if (v instanceof Method) {
+			h.putByte((byte)3);
+			Method m = (Method)v;
+			putString(h, m.getParent().getName());
+			putString(h, m.getName());
+			putString(h, m.getType().toString());
+			h.putInt(Modifier.toBits(m.modifiers()));
+		} else
+			throw new IllegalArgumentException("can't hash "+v+" ("+v.getClass().getSimpleName()+")");
+	}
+
+	/**
+	 * Hashes a string with its length, so adjacent strings can't run
+	 * together.
+	 */
+	private static void putString(Hasher h, String s) {
+		h.putInt(s.length());
+		h.putString(s, StandardCharsets.UTF_8);
+	}
+}
@@ -166,7 +166,7 @@ public abstract class User extends Value {
 	//Provided for subclasses that want a variable-size operand list.
 	protected void removeOperand(int i) {
 		//Check before committing any changes, for debuggability.
-		for (int j = i; j < uses.size(); ++j)
+		for (int j = i; j+1 < uses.size(); ++j)
 			checkOperandInternal(j, uses.get(j+1).getOperand());
 
 		Use use = uses.get(i);
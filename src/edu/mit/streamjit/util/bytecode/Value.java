@@ -39,6 +39,11 @@ import java.util.Objects;
  * @since 3/6/2013
  */
 public abstract class Value {
+	/**
+	 * Stands in for the default name until it's asked for, so we don't format
+	 * names for values nobody names.  (Compared by identity.)
+	 */
+	private static final String DEFAULT_NAME = new String("<default>");
 	private final Type type;
 	private String name;
 	/**
@@ -54,7 +59,7 @@ public abstract class Value {
 	}
 	public Value(Type type, String name) {
 		this.type = checkNotNull(type);
-		this.name = name != null ? name : getDefaultName();
+		this.name = name != null ? name : DEFAULT_NAME;
 	}
 
 	public Type getType() {
@@ -66,6 +71,8 @@ public abstract class Value {
 	 * @return this Value's name, or null
 	 */
 	public String getName() {
+		if (name == DEFAULT_NAME)
+			name = getDefaultName();
 		return name;
 	}
 
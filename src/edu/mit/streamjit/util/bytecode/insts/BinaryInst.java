@@ -92,6 +92,11 @@ public final class BinaryInst extends Instruction {
 		//If both promotable to int, result is int.
 		if (left.getType().isSubtypeOf(intType) && right.getType().isSubtypeOf(intType))
 			return intType;
+		//Shifts take an int distance regardless of the shifted type.
+		if ((operation == Operation.SHL || operation == Operation.SHR || operation == Operation.USHR) &&
+				left.getType().equals(left.getType().getTypeFactory().getPrimitiveType(long.class)) &&
+				right.getType().isSubtypeOf(intType))
+			return (PrimitiveType)left.getType();
 		//Else types must be primitive and equal.
 		if (left.getType().equals(right.getType()) && left.getType() instanceof PrimitiveType)
 			return (PrimitiveType)left.getType();
@@ -48,6 +48,7 @@ import edu.mit.streamjit.util.bytecode.types.VoidType;
  */
 public final class CallInst extends Instruction {
 	private final MethodType methodType;
+	private boolean direct;
 	public CallInst(Method m) {
 		this(m, m.getType());
 	}
@@ -86,6 +87,19 @@ public final class CallInst extends Instruction {
 //		checkState(getMethod().isSignaturePolymorphic(), "can't remove arguments to non-signature-polymorphic method %s", getMethod());
 //		super.removeOperand(i + 1);
 //	}
+	/**
+	 * Returns true if this call is known to invoke exactly getMethod(), even
+	 * though the method could be overridden (e.g., because the receiver's
+	 * exact type is known).  Direct calls are still emitted as virtual calls,
+	 * which dispatch to the same method.
+	 * @return true iff this call is known to be direct
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+	public void setDirect(boolean direct) {
+		this.direct = direct;
+	}
 	public Iterable<Value> arguments() {
 		return Iterables.skip(operands(), 1);
 	}
@@ -106,7 +120,9 @@ public final class CallInst extends Instruction {
 			arguments[i] = operandMap.apply(getArgument(i));
 		Method newMethod = (Method)operandMap.apply(getMethod());
 		MethodType newMethodType = newMethod.isSignaturePolymorphic() ? methodType : newMethod.getType();
-		return new CallInst(newMethod, newMethodType, arguments);
+		CallInst clone = new CallInst(newMethod, newMethodType, arguments);
+		clone.setDirect(direct && newMethod == getMethod());
+		return clone;
 	}
 
 	@Override
@@ -134,7 +150,7 @@ public final class CallInst extends Instruction {
 			sb.append(": ");
 		else
 			sb.append(" (").append(getType()).append(") = ");
-		sb.append("call ").append(getMethod().getParent().getName()).append("#").append(getMethod().getName());
+		sb.append(direct ? "call direct " : "call ").append(getMethod().getParent().getName()).append("#").append(getMethod().getName());
 		sb.append("(");
 		Joiner.on(", ").appendTo(sb, FluentIterable.from(arguments()).transform(new Function<Value, String>() {
 			@Override
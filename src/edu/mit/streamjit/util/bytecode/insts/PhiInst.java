@@ -61,6 +61,22 @@ public final class PhiInst extends Instruction {
 		return oldVal;
 	}
 
+	/**
+	 * Removes the given block and its incoming value from this phi, if
+	 * present.
+	 * @param b the predecessor block to remove
+	 * @return the removed incoming value, or null if the block wasn't present
+	 */
+	public Value remove(BasicBlock b) {
+		int bbi = Iterables.indexOf(operands(), Predicates.<Value>equalTo(b));
+		if (bbi == -1)
+			return null;
+		Value oldVal = getOperand(bbi+1);
+		removeOperand(bbi+1);
+		removeOperand(bbi);
+		return oldVal;
+	}
+
 	public FluentIterable<BasicBlock> predecessors() {
 		return operands().filter(BasicBlock.class);
 	}
@@ -80,12 +80,14 @@ public final class TypeFactory implements Iterable<Type> {
 	}
 
 	public ReturnType getType(Klass klass) {
-		ReturnType t = typeMap.get(klass);
-		if (t == null) {
-			t = makeType(klass);
-			typeMap.put(klass, t);
+		synchronized (parent) {
+			ReturnType t = typeMap.get(klass);
+			if (t == null) {
+				t = makeType(klass);
+				typeMap.put(klass, t);
+			}
+			return t;
 		}
-		return t;
 	}
 
 	public ReturnType getType(Class<?> klass) {
@@ -157,16 +159,18 @@ public final class TypeFactory implements Iterable<Type> {
 	}
 
 	public MethodType getMethodType(ReturnType returnType, List<RegularType> parameterTypes) {
-		//If this linear search gets too expensive, we can break it up by return
-		//type and perhaps first parameter type.  Another strategy would be to
-		//overlay a tree through all the MethodType instances, so that a lookup
-		//just chases pointers from the return type roots.
-		for (MethodType t : methodTypes)
-			if (t.getReturnType().equals(returnType) && t.getParameterTypes().equals(parameterTypes))
-				return t;
-		MethodType t = new MethodType(returnType, parameterTypes);
-		methodTypes.add(t);
-		return t;
+		synchronized (parent) {
+			//If this linear search gets too expensive, we can break it up by
+			//return type and perhaps first parameter type.  Another strategy
+			//would be to overlay a tree through all the MethodType instances,
+			//so that a lookup just chases pointers from the return type roots.
+			for (MethodType t : methodTypes)
+				if (t.getReturnType().equals(returnType) && t.getParameterTypes().equals(parameterTypes))
+					return t;
+			MethodType t = new MethodType(returnType, parameterTypes);
+			methodTypes.add(t);
+			return t;
+		}
 	}
 
 	public MethodType getMethodType(ReturnType returnType, RegularType... parameterTypes) {
@@ -224,21 +228,25 @@ public final class TypeFactory implements Iterable<Type> {
 	}
 
 	public StaticFieldType getFieldType(RegularType fieldType) {
-		for (StaticFieldType t : staticFieldTypes)
-			if (t.getFieldType().equals(fieldType))
-				return t;
-		StaticFieldType t = new StaticFieldType(fieldType);
-		staticFieldTypes.add(t);
-		return t;
+		synchronized (parent) {
+			for (StaticFieldType t : staticFieldTypes)
+				if (t.getFieldType().equals(fieldType))
+					return t;
+			StaticFieldType t = new StaticFieldType(fieldType);
+			staticFieldTypes.add(t);
+			return t;
+		}
 	}
 
 	public InstanceFieldType getFieldType(ReferenceType instanceType, RegularType fieldType) {
-		for (InstanceFieldType t : instanceFieldTypes)
-			if (t.getFieldType().equals(fieldType) && t.getInstanceType().equals(instanceType))
-				return t;
-		InstanceFieldType t = new InstanceFieldType(instanceType, fieldType);
-		instanceFieldTypes.add(t);
-		return t;
+		synchronized (parent) {
+			for (InstanceFieldType t : instanceFieldTypes)
+				if (t.getFieldType().equals(fieldType) && t.getInstanceType().equals(instanceType))
+					return t;
+			InstanceFieldType t = new InstanceFieldType(instanceType, fieldType);
+			instanceFieldTypes.add(t);
+			return t;
+		}
 	}
 
 	public FieldType getFieldType(java.lang.reflect.Field field) {